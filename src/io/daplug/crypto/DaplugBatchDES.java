@@ -0,0 +1,163 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.crypto;
+
+import java.util.concurrent.RecursiveAction;
+
+import io.daplug.utils.DaplugUtils;
+import io.daplug.utils.DaplugWorkers;
+
+/**
+ * Host side batch Triple DES-ECB engine.
+ * The key schedule is computed once and shared by all the blocks of a batch. Blocks are processed two at a time (see DaplugDES.ecbBlocks()), 
+ * and large batches are split in slices processed in parallel on the shared DaplugWorkers pool.
+ * Batches smaller than the parallel threshold are processed on the calling thread.
+ */
+public final class DaplugBatchDES {
+	
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 4096; //Minimum number of blocks processed by one task
+	
+	private final DaplugDES des;
+	private int parallelThreshold;
+	
+	/**
+	 * Constructs a new DaplugBatchDES object.
+	 * @param key A 16-bytes GP key (or an 8-bytes DES / 24-bytes Triple DES key).
+	 */
+	public DaplugBatchDES(byte[] key){
+		
+		this.des = new DaplugDES(key);
+		this.parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+	}
+	
+	/**
+	 * Sets the minimum number of blocks processed by one parallel task. 
+	 * @param blocks Number of blocks. Use Integer.MAX_VALUE to always process batches on the calling thread.
+	 */
+	public void setParallelThreshold(int blocks){
+		if(blocks < 1){
+			throw new IllegalArgumentException("setParallelThreshold() - Invalid threshold : " + blocks);
+		}
+		this.parallelThreshold = blocks;
+	}
+	
+	/**
+	 * Encrypts a batch of independent 8-bytes blocks.
+	 * @param in Input buffer.
+	 * @param inOff Input offset.
+	 * @param out Output buffer (can be the input buffer).
+	 * @param outOff Output offset.
+	 * @param blocks Number of blocks.
+	 */
+	public void encrypt(byte[] in, int inOff, byte[] out, int outOff, int blocks){
+		process(true, in, inOff, out, outOff, blocks);
+	}
+	
+	/**
+	 * Decrypts a batch of independent 8-bytes blocks.
+	 * @param in Input buffer.
+	 * @param inOff Input offset.
+	 * @param out Output buffer (can be the input buffer).
+	 * @param outOff Output offset.
+	 * @param blocks Number of blocks.
+	 */
+	public void decrypt(byte[] in, int inOff, byte[] out, int outOff, int blocks){
+		process(false, in, inOff, out, outOff, blocks);
+	}
+	
+	/**
+	 * Encrypts or decrypts data in ECB mode. Same result as DaplugCrypto.tripleDES_ECB_GP().
+	 * @param data Data to process. Length must be a multiple of 8.
+	 * @param enc DaplugCrypto.ENCRYPT or DaplugCrypto.DECRYPT.
+	 * @return Resultant data.
+	 * @throws Exception if the data length is not valid.
+	 */
+	public byte[] tripleDES_ECB(byte[] data, int enc) throws Exception{
+		
+		if(data.length % DaplugDES.BLOCK_LEN != 0){
+			throw new Exception("tripleDES_ECB() - Invalid data length : " + data.length);
+		}
+		
+		byte[] out = new byte[data.length];
+		process(enc != DaplugCrypto.DECRYPT, data, 0, out, 0, data.length / DaplugDES.BLOCK_LEN);
+		
+		return out;
+	}
+	
+	/**
+	 * Encrypts or decrypts a batch of independent blocks with a GP key.
+	 * @param data Data to process. Length must be a multiple of 8.
+	 * @param key 16-bytes GP key.
+	 * @param enc DaplugCrypto.ENCRYPT or DaplugCrypto.DECRYPT.
+	 * @return Resultant data.
+	 * @throws Exception if the key or the data length is not valid.
+	 */
+	public static byte[] tripleDES_ECB_GP(byte[] data, byte[] key, int enc) throws Exception{
+		
+		if(key.length != 16){
+			throw new Exception("tripleDES_ECB_GP() - Invalid GP key : " + DaplugUtils.byteArrayToHexString(key));
+		}
+		
+		return new DaplugBatchDES(key).tripleDES_ECB(data, enc);
+	}
+	
+	//=== private methods ===
+	
+	private void process(boolean encrypt, byte[] in, int inOff, byte[] out, int outOff, int blocks){
+		
+		if(blocks <= this.parallelThreshold){
+			this.des.ecbBlocks(encrypt, in, inOff, out, outOff, blocks);
+		}else{
+			DaplugWorkers.getPool().invoke(new Slice(encrypt, in, inOff, out, outOff, 0, blocks));
+		}
+	}
+	
+	//A range of blocks, split in halves until it is small enough
+	private final class Slice extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final boolean encrypt;
+		private final byte[] in, out;
+		private final int inOff, outOff, from, to;
+		
+		Slice(boolean encrypt, byte[] in, int inOff, byte[] out, int outOff, int from, int to){
+			this.encrypt = encrypt;
+			this.in = in;
+			this.inOff = inOff;
+			this.out = out;
+			this.outOff = outOff;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute(){
+			
+			int n = this.to - this.from;
+			
+			if(n <= parallelThreshold){
+				des.ecbBlocks(this.encrypt, this.in, this.inOff + this.from * DaplugDES.BLOCK_LEN, 
+						this.out, this.outOff + this.from * DaplugDES.BLOCK_LEN, n);
+			}else{
+				int mid = this.from + n / 2;
+				invokeAll(new Slice(this.encrypt, this.in, this.inOff, this.out, this.outOff, this.from, mid),
+						new Slice(this.encrypt, this.in, this.inOff, this.out, this.outOff, mid, this.to));
+			}
+		}
+	}
+}
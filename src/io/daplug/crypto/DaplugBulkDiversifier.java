@@ -0,0 +1,184 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.crypto;
+
+import java.util.concurrent.RecursiveAction;
+
+import io.daplug.keyset.DaplugDiversifiedKeysets;
+import io.daplug.keyset.DaplugKeyset;
+import io.daplug.utils.DaplugUtils;
+import io.daplug.utils.DaplugWorkers;
+
+/**
+ * Bulk diversification of a master keyset, for fleet provisioning.
+ * Each diversified key is the one computed by DaplugCrypto.computeDiversifiedKey(), and its KCV the one computed by DaplugCrypto.computeKCV().
+ * The master key schedules are computed once and shared. The work is split across the cores of the shared DaplugWorkers fork/join pool ; 
+ * each worker thread uses its own cipher context, so no allocation is done per diversifier.
+ */
+public final class DaplugBulkDiversifier {
+	
+	public static final int DIVERSIFIER_LEN = 16;
+	public static final int DEFAULT_TASK_SIZE = 256; //Diversifiers processed by one task
+	
+	private final DaplugKeyset master;
+	private final DaplugDES[] masterKeys = new DaplugDES[3];
+	private int taskSize;
+	
+	//Per thread cipher context
+	private static final class Context {
+		final int[] k1 = new int[32], k2 = new int[32];
+		final boolean[] pc1m = new boolean[56], pcr = new boolean[56];
+		final byte[] zero = new byte[DaplugDES.BLOCK_LEN], block = new byte[DaplugDES.BLOCK_LEN];
+	}
+	
+	private static final ThreadLocal<Context> contexts = new ThreadLocal<Context>(){
+		@Override
+		protected Context initialValue(){
+			return new Context();
+		}
+	};
+	
+	/**
+	 * Constructs a new DaplugBulkDiversifier object.
+	 * @param master The master keyset.
+	 * @throws Exception if the master keyset is not valid.
+	 */
+	public DaplugBulkDiversifier(DaplugKeyset master) throws Exception{
+		
+		this.master = master;
+		for(int i = 0; i < 3; i++){
+			this.masterKeys[i] = new DaplugDES(master.getKey(i));
+		}
+		this.taskSize = DEFAULT_TASK_SIZE;
+	}
+	
+	/**
+	 * Sets the number of diversifiers processed by one parallel task.
+	 * @param size Task size. Use Integer.MAX_VALUE to process everything on the calling thread.
+	 */
+	public void setTaskSize(int size){
+		if(size < 1){
+			throw new IllegalArgumentException("setTaskSize() - Invalid task size : " + size);
+		}
+		this.taskSize = size;
+	}
+	
+	/**
+	 * Diversifies the master keyset with each provided diversifier.
+	 * @param diversifiers 16-bytes diversifiers.
+	 * @return The diversified keysets and their KCVs, in the diversifiers order.
+	 * @throws Exception if a diversifier is not valid.
+	 */
+	public DaplugDiversifiedKeysets diversify(byte[][] diversifiers) throws Exception{
+		
+		byte[] flat = new byte[diversifiers.length * DIVERSIFIER_LEN];
+		for(int i = 0; i < diversifiers.length; i++){
+			if(diversifiers[i] == null || diversifiers[i].length != DIVERSIFIER_LEN){
+				throw new Exception("diversify() - Not a valid diversifier : " + DaplugUtils.byteArrayToHexString(diversifiers[i]));
+			}
+			System.arraycopy(diversifiers[i], 0, flat, i * DIVERSIFIER_LEN, DIVERSIFIER_LEN);
+		}
+		
+		return diversify(flat, 0, diversifiers.length);
+	}
+	
+	/**
+	 * Diversifies the master keyset with count diversifiers stored one after the other in a flat array.
+	 * @param diversifiers Flat diversifiers array (16 bytes per diversifier).
+	 * @param off Offset of the first diversifier.
+	 * @param count Number of diversifiers.
+	 * @return The diversified keysets and their KCVs, in the diversifiers order.
+	 * @throws Exception if the array is too short.
+	 */
+	public DaplugDiversifiedKeysets diversify(byte[] diversifiers, int off, int count) throws Exception{
+		
+		if(count < 0 || off < 0 || off + count * DIVERSIFIER_LEN > diversifiers.length){
+			throw new Exception("diversify() - Invalid diversifiers length !");
+		}
+		
+		DaplugDiversifiedKeysets result = new DaplugDiversifiedKeysets(this.master, count);
+		
+		if(count <= this.taskSize){
+			process(diversifiers, off, result, 0, count);
+		}else{
+			DaplugWorkers.getPool().invoke(new Slice(diversifiers, off, result, 0, count));
+		}
+		
+		return result;
+	}
+	
+	//=== private methods ===
+	
+	//Diversify entries [from, to[
+	private void process(byte[] divs, int divOff, DaplugDiversifiedKeysets result, int from, int to){
+		
+		Context ctx = contexts.get();
+		byte[] keys = result.getKeysArray();
+		byte[] kcvs = result.getKCVsArray();
+		
+		for(int i = from; i < to; i++){
+			int d = divOff + i * DIVERSIFIER_LEN;
+			for(int k = 0; k < 3; k++){
+				int o = i * DaplugDiversifiedKeysets.KEYS_LEN + k * DaplugKeyset.GP_KEY_LEN;
+				
+				//3DES-CBC, zero IV, on the 2 diversifier blocks
+				this.masterKeys[k].encryptBlock(divs, d, keys, o);
+				for(int j = 0; j < DaplugDES.BLOCK_LEN; j++){
+					ctx.block[j] = (byte) (divs[d + DaplugDES.BLOCK_LEN + j] ^ keys[o + j]);
+				}
+				this.masterKeys[k].encryptBlock(ctx.block, 0, keys, o + DaplugDES.BLOCK_LEN);
+				
+				//KCV : 3DES-ECB of a zero block, only the encryption schedules are needed
+				DaplugDES.workingKey(true, keys, o, ctx.k1, ctx.pc1m, ctx.pcr);
+				DaplugDES.workingKey(false, keys, o + DaplugDES.BLOCK_LEN, ctx.k2, ctx.pc1m, ctx.pcr);
+				DaplugDES.crypt(ctx.k1, ctx.k2, ctx.k1, ctx.zero, 0, ctx.block, 0);
+				System.arraycopy(ctx.block, 0, kcvs, i * DaplugDiversifiedKeysets.KCVS_LEN + k * DaplugDiversifiedKeysets.KCV_LEN, 
+						DaplugDiversifiedKeysets.KCV_LEN);
+			}
+		}
+	}
+	
+	//A range of diversifiers, split in halves until it is small enough
+	private final class Slice extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final byte[] divs;
+		private final int divOff, from, to;
+		private final DaplugDiversifiedKeysets result;
+		
+		Slice(byte[] divs, int divOff, DaplugDiversifiedKeysets result, int from, int to){
+			this.divs = divs;
+			this.divOff = divOff;
+			this.result = result;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute(){
+			
+			if(this.to - this.from <= taskSize){
+				process(this.divs, this.divOff, this.result, this.from, this.to);
+			}else{
+				int mid = this.from + (this.to - this.from) / 2;
+				invokeAll(new Slice(this.divs, this.divOff, this.result, this.from, mid),
+						new Slice(this.divs, this.divOff, this.result, mid, this.to));
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.crypto;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Buffer of random bytes filled by a background thread, used by DaplugCrypto.generateChallenge() once installed with DaplugCrypto.setChallengeBuffer().
+ * Each byte is given only once. When the buffer is empty, callers fall back on their own generator and never wait for the background thread.
+ */
+public final class DaplugChallengeBuffer {
+	
+	public static final int DEFAULT_CAPACITY = 4096;
+	
+	private static final int CHUNK_LEN = 256; //Bytes generated at once by the background thread
+	
+	private final byte[] buffer;
+	private int readPos = 0, available = 0;
+	private volatile Thread filler = null; //Current background thread ; a stopped thread exits even if another one was started since
+	
+	/**
+	 * Constructs a new DaplugChallengeBuffer object. The background thread is not started.
+	 * @param capacity Number of random bytes kept ready.
+	 */
+	public DaplugChallengeBuffer(int capacity){
+		if(capacity < CHUNK_LEN){
+			throw new IllegalArgumentException("DaplugChallengeBuffer() - Invalid capacity : " + capacity);
+		}
+		this.buffer = new byte[capacity];
+	}
+	
+	/**
+	 * Starts the background thread (a daemon thread).
+	 */
+	public synchronized void start(){
+		if(this.filler != null){
+			return;
+		}
+		this.filler = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				fill();
+			}
+		}, "daplug-challenge-buffer");
+		this.filler.setDaemon(true);
+		this.filler.start();
+	}
+	
+	/**
+	 * Stops the background thread. Remaining bytes can still be taken.
+	 */
+	public synchronized void stop(){
+		this.filler = null;
+		this.notifyAll();
+	}
+	
+	/**
+	 * Fills out with buffered random bytes, without waiting.
+	 * @param out Array to fill.
+	 * @return true if out was filled, false if not enough bytes were available (out is then left unchanged).
+	 */
+	public synchronized boolean take(byte[] out){
+		
+		if(out.length > this.available){
+			return false;
+		}
+		
+		for(int i = 0; i < out.length; i++){
+			out[i] = this.buffer[this.readPos];
+			this.buffer[this.readPos] = 0;
+			this.readPos = (this.readPos + 1) % this.buffer.length;
+		}
+		this.available = this.available - out.length;
+		
+		this.notifyAll();
+		return true;
+	}
+	
+	/**
+	 * Returns the number of random bytes currently buffered.
+	 */
+	public synchronized int available(){
+		return this.available;
+	}
+	
+	//=== private methods ===
+	
+	private void fill(){
+		
+		//Seeding may block here, not in the handshake
+		SecureRandom random = new SecureRandom();
+		byte[] chunk = new byte[CHUNK_LEN];
+		Thread self = Thread.currentThread();
+		
+		while(this.filler == self){
+			
+			random.nextBytes(chunk);
+			
+			synchronized(this){
+				while(this.filler == self && this.buffer.length - this.available < CHUNK_LEN){
+					try{
+						this.wait();
+					}catch(InterruptedException e){
+						if(this.filler == self){
+							this.filler = null;
+						}
+					}
+				}
+				if(this.filler != self){
+					break;
+				}
+				int writePos = (this.readPos + this.available) % this.buffer.length;
+				for(int i = 0; i < CHUNK_LEN; i++){
+					this.buffer[writePos] = chunk[i];
+					writePos = (writePos + 1) % this.buffer.length;
+				}
+				this.available = this.available + CHUNK_LEN;
+			}
+		}
+		
+		Arrays.fill(chunk, (byte) 0);
+	}
+}
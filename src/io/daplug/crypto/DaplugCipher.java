@@ -0,0 +1,168 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.crypto;
+
+import java.nio.ByteBuffer;
+
+import io.daplug.utils.DaplugUtils;
+
+/**
+ * Incremental GP Triple DES-CBC encryption/decryption, without padding.
+ * Same result as DaplugCrypto.tripleDES_CBC_GP() on the concatenation of all the processed data. 
+ * The CBC chaining value is kept between update() calls and at most one partial block is buffered,
+ * so large buffers or memory-mapped files can be processed in constant memory.
+ */
+public final class DaplugCipher {
+	
+	private static final int SCRATCH_LEN = 64 * DaplugDES.BLOCK_LEN;
+	
+	private final DaplugDES des;
+	private final boolean encrypt;
+	private final byte[] iv;
+	
+	private final byte[] chain = new byte[DaplugDES.BLOCK_LEN];
+	private final byte[] pending = new byte[DaplugDES.BLOCK_LEN];
+	private final byte[] scratchIn = new byte[SCRATCH_LEN];
+	private final byte[] scratchOut = new byte[SCRATCH_LEN];
+	private int pendingLen;
+	
+	/**
+	 * Constructs a new DaplugCipher object.
+	 * @param key 16-bytes GP key.
+	 * @param iv 8-bytes initialization vector. If not specified (null), a zero IV is used.
+	 * @param enc DaplugCrypto.ENCRYPT or DaplugCrypto.DECRYPT.
+	 * @throws Exception if a parameter is not valid.
+	 */
+	public DaplugCipher(byte[] key, byte[] iv, int enc) throws Exception{
+		
+		if(key == null || key.length != 16){
+			throw new Exception("DaplugCipher() - Invalid GP key : " + DaplugUtils.byteArrayToHexString(key));
+		}
+		if(iv != null && iv.length != DaplugDES.BLOCK_LEN){
+			throw new Exception("DaplugCipher() - Invalid IV : " + DaplugUtils.byteArrayToHexString(iv));
+		}
+		
+		this.des = new DaplugDES(key);
+		this.encrypt = enc != DaplugCrypto.DECRYPT;
+		this.iv = iv == null ? new byte[DaplugDES.BLOCK_LEN] : iv.clone();
+		
+		reset();
+	}
+	
+	/**
+	 * Restarts a new operation with the same key and IV.
+	 */
+	public void reset(){
+		System.arraycopy(this.iv, 0, this.chain, 0, DaplugDES.BLOCK_LEN);
+		this.pendingLen = 0;
+	}
+	
+	/**
+	 * Returns the current chaining value : the IV, or the last ciphertext block processed so far.
+	 * It can be used as the IV of a DaplugSession.encrypt()/decrypt() call continuing the same CBC chain.
+	 * @return A copy of the chaining value.
+	 */
+	public byte[] getChainingValue(){
+		return this.chain.clone();
+	}
+	
+	/**
+	 * Processes the remaining bytes of the input buffer and writes the resultant full blocks to the output buffer.
+	 * A trailing partial block is kept until more data is provided.
+	 * @param in Input data. Its position is moved to its limit.
+	 * @param out Output buffer. Must have room for in.remaining() + 7 bytes.
+	 * @return Number of bytes written to out.
+	 */
+	public int update(ByteBuffer in, ByteBuffer out){
+		
+		int written = 0;
+		
+		while(in.hasRemaining()){
+			int n = Math.min(in.remaining(), SCRATCH_LEN - this.pendingLen);
+			System.arraycopy(this.pending, 0, this.scratchIn, 0, this.pendingLen);
+			in.get(this.scratchIn, this.pendingLen, n);
+			n += this.pendingLen;
+			
+			int full = n - n % DaplugDES.BLOCK_LEN;
+			this.des.cbc(this.encrypt, this.chain, this.scratchIn, 0, full, this.scratchOut, 0);
+			out.put(this.scratchOut, 0, full);
+			written += full;
+			
+			this.pendingLen = n - full;
+			System.arraycopy(this.scratchIn, full, this.pending, 0, this.pendingLen);
+		}
+		
+		return written;
+	}
+	
+	/**
+	 * Processes len bytes of the given array.
+	 * @param in Input data.
+	 * @param off Input offset.
+	 * @param len Input length.
+	 * @return The resultant full blocks (may be empty).
+	 */
+	public byte[] update(byte[] in, int off, int len){
+		
+		int total = this.pendingLen + len;
+		ByteBuffer out = ByteBuffer.allocate(total - total % DaplugDES.BLOCK_LEN);
+		update(ByteBuffer.wrap(in, off, len), out);
+		
+		return out.array();
+	}
+	
+	/**
+	 * Processes the remaining bytes of the input buffer and finishes the operation. The total processed length must be a multiple of 8.
+	 * This object is then reset for a new operation.
+	 * @param in Last input data (can be empty).
+	 * @param out Output buffer. Must have room for in.remaining() + 7 bytes.
+	 * @return Number of bytes written to out.
+	 * @throws Exception if the total data length is not a multiple of 8.
+	 */
+	public int doFinal(ByteBuffer in, ByteBuffer out) throws Exception{
+		
+		int written = update(in, out);
+		
+		if(this.pendingLen != 0){
+			reset();
+			throw new Exception("doFinal() - Invalid data length !");
+		}
+		
+		reset();
+		
+		return written;
+	}
+	
+	/**
+	 * Processes the given data and finishes the operation. The total processed length must be a multiple of 8.
+	 * @param in Last input data (can be empty).
+	 * @return The resultant data.
+	 * @throws Exception if the total data length is not a multiple of 8.
+	 */
+	public byte[] doFinal(byte[] in) throws Exception{
+		
+		if((this.pendingLen + in.length) % DaplugDES.BLOCK_LEN != 0){
+			reset();
+			throw new Exception("doFinal() - Invalid data length !");
+		}
+		
+		byte[] out = update(in, 0, in.length);
+		reset();
+		
+		return out;
+	}
+}
@@ -22,6 +22,10 @@ package io.daplug.crypto;
 import java.security.*;
 import java.security.spec.KeySpec;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
@@ -39,12 +43,81 @@ public class DaplugCrypto {
 					  		ENCRYPT = 1,
 					  		DECRYPT = 0;
 	
+	//Crypto backends
+	public static final int BACKEND_JCE = 0, /** Java Cryptography Extension (installed providers) */
+							BACKEND_DAPLUG_DES = 1; /** Pure Java table driven engine (DaplugDES) */
+	
+	public static final String BACKEND_PROPERTY = "io.daplug.crypto.backend"; //"jce", "daplug" or "auto" (default)
+	
 	public static final byte[]	KEY_CONSTANT_S_ENC = {(byte)0x01,(byte)0x82},
 					  			KEY_CONSTANT_R_ENC = {(byte)0x01,(byte)0x83},
 					  			KEY_CONSTANT_C_MAC = {(byte)0x01,(byte)0x01},
 					  			KEY_CONSTANT_R_MAC = {(byte)0x01,(byte)0x02},
 					  			KEY_CONSTANT_DEK   = {(byte)0x01,(byte)0x81};
 	
+	private static final int ENGINE_CACHE_SIZE = 4; //DaplugDES key schedules kept per thread (session keys are reused on each APDU)
+	private static final int BENCH_WARMUP = 500, BENCH_ROUNDS = 2000;
+	
+	private static final ThreadLocal<DaplugDES[]> engines = new ThreadLocal<DaplugDES[]>(){
+		@Override
+		protected DaplugDES[] initialValue(){
+			return new DaplugDES[ENGINE_CACHE_SIZE];
+		}
+	};
+	
+	//Every cached key schedule, whatever its thread, for clearKeyCache()
+	private static final Set<DaplugDES> liveEngines = Collections.newSetFromMap(new WeakHashMap<DaplugDES, Boolean>());
+	
+	//One generator per thread : SecureRandom is seeded once, not on each challenge
+	private static final ThreadLocal<SecureRandom> randoms = new ThreadLocal<SecureRandom>(){
+		@Override
+		protected SecureRandom initialValue(){
+			return new SecureRandom();
+		}
+	};
+	
+	private static volatile DaplugChallengeBuffer challengeBuffer = null;
+	
+	private static volatile int backend = initBackend();
+	
+	/**
+	 * Returns the backend currently used for DES/Triple DES operations.
+	 * @return BACKEND_JCE or BACKEND_DAPLUG_DES.
+	 */
+	public static int getBackend(){
+		return backend;
+	}
+	
+	/**
+	 * Forces the backend used for DES/Triple DES operations.
+	 * @param b BACKEND_JCE or BACKEND_DAPLUG_DES.
+	 */
+	public static void setBackend(int b){
+		if(b != BACKEND_JCE && b != BACKEND_DAPLUG_DES){
+			throw new IllegalArgumentException("setBackend() - Invalid backend : " + b);
+		}
+		backend = b;
+	}
+	
+	/**
+	 * Runs a short self-benchmark of both backends on a single block Triple DES operation (the typical SCP02 case) and selects the fastest one.
+	 * This is done once at startup unless the io.daplug.crypto.backend system property forces a backend.
+	 * @return The selected backend.
+	 */
+	public static int selectFastestBackend(){
+		
+		long jceTime = benchmark(BACKEND_JCE);
+		long desTime = benchmark(BACKEND_DAPLUG_DES);
+		
+		if(jceTime < 0 || desTime <= jceTime){
+			backend = BACKEND_DAPLUG_DES;
+		}else{
+			backend = BACKEND_JCE;
+		}
+		
+		return backend;
+	}
+	
 	//Obtain a 3DES key from a GP key
 	private static byte[] GPKeyTo3DESKey(byte[] GPKey){
 		
@@ -61,39 +134,43 @@ public class DaplugCrypto {
 	//Generate a challenge with a given size
 	public static byte[] generateChallenge(int size){
 		
-		SecureRandom random = new SecureRandom();
 		byte challenge[] = new byte[size];
-		random.nextBytes(challenge);
+		DaplugChallengeBuffer b = challengeBuffer;
+		if(b == null || !b.take(challenge)){
+			randoms.get().nextBytes(challenge);
+		}
 		
 		return challenge;
 		
 	}
 	
+	/**
+	 * Installs a buffer of prefetched random bytes used by generateChallenge(). When the buffer is empty, the calling thread generator is used.
+	 * @param b A started DaplugChallengeBuffer, or null to stop using a buffer.
+	 */
+	public static void setChallengeBuffer(DaplugChallengeBuffer b){
+		challengeBuffer = b;
+	}
+	
+	/**
+	 * Returns the buffer installed by setChallengeBuffer(), or null.
+	 */
+	public static DaplugChallengeBuffer getChallengeBuffer(){
+		return challengeBuffer;
+	}
+	
 	//Compute full 3DES mac
 	public static byte[] computeFull3DesMac(byte[] data_buf, byte[] key_buf){
 		
-		KeySpec keySpec;
-		SecretKey key; 
-		IvParameterSpec iv; 
-		
 		byte[] temp = null;
 		byte[] full3DesMac = new byte[8];
 		byte[] pad = {(byte)0x80,0,0,0,0,0,0,0};
 		byte[] iv_buf = {0,0,0,0,0,0,0,0};
 		
 		byte[] padded_data = DaplugUtils.byteArrayConcat(data_buf, pad);
-		byte[] _3DESKey = GPKeyTo3DESKey(key_buf);			
 
 		try{
-			
-			keySpec = new DESedeKeySpec(_3DESKey);
-			key = SecretKeyFactory.getInstance("DESede").generateSecret(keySpec); 
-		    iv = new IvParameterSpec(iv_buf); 
-			
-			Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
-			cipher.init(Cipher.ENCRYPT_MODE, key, iv);
-			temp = cipher.doFinal(padded_data);
-				
+			temp = cipher(backend, key_buf, iv_buf, padded_data, true);
 		}catch (Exception e){
 			
 			e.printStackTrace();
@@ -142,30 +219,14 @@ public class DaplugCrypto {
 		
 		byte[] sessionKey = new byte[16];
 		
-		KeySpec keySpec;
-		SecretKey key; 
-		IvParameterSpec iv; 
-		
 		byte[] temp = new byte[16];
-		byte[] pad = DaplugUtils.hexStringToByteArray("00000000000000000000");
-		byte[] iv_buf = DaplugUtils.hexStringToByteArray("0000000000000000");
+		byte[] iv_buf = new byte[8];
 		
 		System.arraycopy(keyConstant, 0, temp, 0, 2);
 		System.arraycopy(counter, 0, temp, 2, 2);
-		System.arraycopy(pad, 0, temp, 4, 10);
-		
-		byte[] _3DESKey = GPKeyTo3DESKey(masterKey);
 		
 		try{
-			
-			keySpec = new DESedeKeySpec(_3DESKey);
-			key = SecretKeyFactory.getInstance("DESede").generateSecret(keySpec); 
-		    iv = new IvParameterSpec(iv_buf); 
-			
-			Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
-			cipher.init(Cipher.ENCRYPT_MODE, key, iv);
-			sessionKey = cipher.doFinal(temp);
-				
+			sessionKey = cipher(backend, masterKey, iv_buf, temp, true);
 		}catch (Exception e){
 			
 			e.printStackTrace();
@@ -188,15 +249,8 @@ public class DaplugCrypto {
 		byte[] retailMac = new byte[8];
 		byte[] icv = new byte[8];
 		
-		KeySpec keySpec;
-		SecretKey key; 
-		IvParameterSpec iv; 
-		
 		//icv
-		if(mac == C_MAC){ //if c-mac case => zero IV 
-			icv = DaplugUtils.hexStringToByteArray("0000000000000000");
-		}
-		if(mac == R_MAC){ //r-mac case
+		if(mac == R_MAC){ //r-mac case, c-mac case => zero IV
 			System.arraycopy(previousMac, 0, icv, 0, previousMac.length);
 		}
 		
@@ -236,12 +290,7 @@ public class DaplugCrypto {
 		System.arraycopy(temp, 0, work1, 0, len-8);	
 
 		try{
-		    key = new SecretKeySpec(key1, 0, key1.length, "DES");
-		    iv = new IvParameterSpec(icv); 
-			
-			Cipher cipher = Cipher.getInstance("DES/CBC/NoPadding");
-			cipher.init(Cipher.ENCRYPT_MODE, key, iv);
-			work4 = cipher.doFinal(work1);
+			work4 = cipher(backend, key1, icv, work1, true);
 		}catch (Exception e){			
 			e.printStackTrace();
 		}
@@ -258,15 +307,8 @@ public class DaplugCrypto {
 		//*/
 		
 		//*Triple DES-ECB on the last result
-		byte[] _3DESKey = GPKeyTo3DESKey(m_key);
 		try{
-			keySpec = new DESedeKeySpec(_3DESKey);
-			key = SecretKeyFactory.getInstance("DESede").generateSecret(keySpec); 
-			
-			Cipher cipher = Cipher.getInstance("DESede/ECB/NoPadding");
-			cipher.init(Cipher.ENCRYPT_MODE, key);
-			retailMac = cipher.doFinal(work3);
-				
+			retailMac = cipher(backend, m_key, null, work3, true);
 		}catch (Exception e){			
 			e.printStackTrace();
 		}
@@ -277,20 +319,10 @@ public class DaplugCrypto {
 	//Compute key check value
 	public static byte[] computeKCV(byte[] key){
 		
-		byte[] temp = new byte[8], buf, kcv = new byte[3];
-		KeySpec keySpec;
-		SecretKey k;
+		byte[] temp = new byte[8], buf = new byte[8], kcv = new byte[3];
 		
-		buf = DaplugUtils.hexStringToByteArray("0000000000000000");
-		byte[] _3DESKey = GPKeyTo3DESKey(key);
 		try{
-			keySpec = new DESedeKeySpec(_3DESKey);
-			k = SecretKeyFactory.getInstance("DESede").generateSecret(keySpec); 
-			
-			Cipher cipher = Cipher.getInstance("DESede/ECB/NoPadding");
-			cipher.init(Cipher.ENCRYPT_MODE, k);
-			temp = cipher.doFinal(buf);
-				
+			temp = cipher(backend, key, null, buf, true);
 		}catch (Exception e){			
 			e.printStackTrace();
 		}
@@ -306,20 +338,8 @@ public class DaplugCrypto {
 		
 		byte[] divkey = new byte[16];
 		
-		KeySpec keySpec;
-		SecretKey k;
-		IvParameterSpec iv; 
-		
-		byte[] _3DESKey = GPKeyTo3DESKey(key);
 		try{
-			keySpec = new DESedeKeySpec(_3DESKey);
-			k = SecretKeyFactory.getInstance("DESede").generateSecret(keySpec);
-		    iv = new IvParameterSpec(DaplugUtils.hexStringToByteArray("0000000000000000")); 
-			
-			Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
-			cipher.init(Cipher.ENCRYPT_MODE, k, iv);
-			divkey = cipher.doFinal(diversifier);
-				
+			divkey = cipher(backend, key, new byte[8], diversifier, true);
 		}catch (Exception e){			
 			e.printStackTrace();
 		}
@@ -355,25 +375,8 @@ public class DaplugCrypto {
 			System.arraycopy(temp, 0, padded_data, 0, data.length);
 		}
 		
-		KeySpec keySpec;
-		SecretKey k;
-		IvParameterSpec iv; 
-		
-		byte[] _3DESKey = GPKeyTo3DESKey(key);
 		try{
-			keySpec = new DESedeKeySpec(_3DESKey);
-			k = SecretKeyFactory.getInstance("DESede").generateSecret(keySpec);
-		    iv = new IvParameterSpec(DaplugUtils.hexStringToByteArray("0000000000000000")); 
-			
-			Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
-			if(encrypt != DECRYPT){
-				cipher.init(Cipher.ENCRYPT_MODE, k, iv);
-			}
-			if(encrypt == DECRYPT){
-				cipher.init(Cipher.DECRYPT_MODE, k, iv);
-			}			
-			result = cipher.doFinal(padded_data);
-				
+			result = cipher(backend, key, new byte[8], padded_data, encrypt != DECRYPT);
 		}catch (Exception e){			
 			e.printStackTrace();
 		}
@@ -385,9 +388,6 @@ public class DaplugCrypto {
 	public static byte[] tripleDES_CBC_GP(byte[] data, byte[] key, byte[] iv, int enc) throws Exception{
 		
 		byte[] newData = null;
-		KeySpec keySpec;
-		SecretKey k;
-		IvParameterSpec icv; 
 		
 		if(key.length != 16){
 			throw new Exception("tripleDES_CBC_GP() - Invalid GP key : " + DaplugUtils.byteArrayToHexString(key));
@@ -398,28 +398,15 @@ public class DaplugCrypto {
 		}
 		
 		if(iv == null){
-			iv = DaplugUtils.hexStringToByteArray("0000000000000000");
+			iv = new byte[8];
 		}
 		
 		if(iv.length != 8){
 			throw new Exception("tripleDES_CBC_GP() - Invalid IV : " + DaplugUtils.byteArrayToHexString(iv));			
 		}
 		
-		byte[] _3DESKey = GPKeyTo3DESKey(key);
-		
 		try{
-			keySpec = new DESedeKeySpec(_3DESKey);
-			k = SecretKeyFactory.getInstance("DESede").generateSecret(keySpec); 
-		    icv = new IvParameterSpec(iv); 
-
-			Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
-			if(enc != DECRYPT){
-				cipher.init(Cipher.ENCRYPT_MODE, k, icv);
-			}
-			if(enc == DECRYPT){
-				cipher.init(Cipher.DECRYPT_MODE, k, icv);
-			}						
-			newData = cipher.doFinal(data);				
+			newData = cipher(backend, key, iv, data, enc != DECRYPT);
 		}catch (Exception e){			
 			e.printStackTrace();
 		}
@@ -431,8 +418,6 @@ public class DaplugCrypto {
 	public static byte[] tripleDES_ECB_GP(byte[] data, byte[] key, int enc) throws Exception{
 		
 		byte[] newData = null;
-		KeySpec keySpec;
-		SecretKey k;
 		
 		if(key.length != 16){
 			throw new Exception("tripleDES_ECB_GP() - Invalid GP key : " + DaplugUtils.byteArrayToHexString(key));
@@ -442,19 +427,8 @@ public class DaplugCrypto {
 			throw new Exception("tripleDES_ECB_GP() - Invalid data length !");			
 		}
 		
-		byte[] _3DESKey = GPKeyTo3DESKey(key);
-		
 		try{
-			keySpec = new DESedeKeySpec(_3DESKey);
-			k = SecretKeyFactory.getInstance("DESede").generateSecret(keySpec); 
-			Cipher cipher = Cipher.getInstance("DESede/ECB/NoPadding");
-			if(enc != DECRYPT){
-				cipher.init(Cipher.ENCRYPT_MODE, k);
-			}
-			if(enc == DECRYPT){
-				cipher.init(Cipher.DECRYPT_MODE, k);
-			}						
-			newData = cipher.doFinal(data);				
+			newData = cipher(backend, key, null, data, enc != DECRYPT);
 		}catch (Exception e){			
 			e.printStackTrace();
 		}
@@ -463,6 +437,138 @@ public class DaplugCrypto {
 		
 	}
 	
+	/**
+	 * Zeroes and drops the cached DaplugDES key schedules of the given keys, on every thread. 
+	 * A schedule of the first 8 bytes of a key (used by the retail MAC) is dropped too.
+	 * Keys still in use by another thread must not be given.
+	 * @param keys Key values (null values are ignored).
+	 */
+	public static void clearKeyCache(byte[]... keys){
+		
+		synchronized(liveEngines){
+			Iterator<DaplugDES> it = liveEngines.iterator();
+			while(it.hasNext()){
+				DaplugDES des = it.next();
+				for(byte[] key : keys){
+					if(key != null && (des.hasKey(key) || (key.length > 8 && des.hasKey(Arrays.copyOf(key, 8))))){
+						des.clear();
+						it.remove();
+						break;
+					}
+				}
+			}
+		}
+	}
+	
+	//=== private methods ===
+	
+	//DES (8-bytes key) or Triple DES (16-bytes GP key) operation, in ECB mode if iv is null or in CBC mode otherwise
+	private static byte[] cipher(int b, byte[] key, byte[] iv, byte[] data, boolean encrypt) throws Exception{
+		
+		if(b == BACKEND_DAPLUG_DES){
+			DaplugDES des = engine(key);
+			byte[] out = new byte[data.length];
+			if(iv == null){
+				if(data.length % DaplugDES.BLOCK_LEN != 0){
+					throw new Exception("cipher() - Invalid data length : " + data.length);
+				}
+				des.ecbBlocks(encrypt, data, 0, out, 0, data.length / DaplugDES.BLOCK_LEN);
+			}else{
+				des.cbc(encrypt, iv.clone(), data, 0, data.length, out, 0);
+			}
+			return out;
+		}
+		
+		SecretKey k;
+		String transformation;
+		if(key.length == 8){
+			k = new SecretKeySpec(key, 0, key.length, "DES");
+			transformation = "DES";
+		}else{
+			KeySpec keySpec = new DESedeKeySpec(GPKeyTo3DESKey(key));
+			k = SecretKeyFactory.getInstance("DESede").generateSecret(keySpec);
+			transformation = "DESede";
+		}
+		
+		int opmode = encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+		Cipher cipher;
+		if(iv == null){
+			cipher = Cipher.getInstance(transformation + "/ECB/NoPadding");
+			cipher.init(opmode, k);
+		}else{
+			cipher = Cipher.getInstance(transformation + "/CBC/NoPadding");
+			cipher.init(opmode, k, new IvParameterSpec(iv));
+		}
+		
+		return cipher.doFinal(data);
+	}
+	
+	//Get a DaplugDES object for the given key from the per-thread key schedules cache
+	private static DaplugDES engine(byte[] key){
+		
+		DaplugDES[] cache = engines.get();
+		
+		for(int i = 0; i < cache.length && cache[i] != null; i++){
+			if(cache[i].hasKey(key)){
+				return cache[i];
+			}
+		}
+		
+		DaplugDES des = new DaplugDES(key);
+		DaplugDES evicted = cache[cache.length - 1];
+		System.arraycopy(cache, 0, cache, 1, cache.length - 1);
+		cache[0] = des;
+		
+		synchronized(liveEngines){
+			if(evicted != null){
+				liveEngines.remove(evicted);
+				evicted.clear();
+			}
+			liveEngines.add(des);
+		}
+		
+		return des;
+	}
+	
+	//Select the startup backend
+	private static int initBackend(){
+		
+		String prop = null;
+		try{
+			prop = System.getProperty(BACKEND_PROPERTY);
+		}catch(SecurityException e){
+			//not allowed to read the property : auto
+		}
+		
+		if("jce".equalsIgnoreCase(prop)){
+			return BACKEND_JCE;
+		}
+		if("daplug".equalsIgnoreCase(prop)){
+			return BACKEND_DAPLUG_DES;
+		}
+		
+		return selectFastestBackend();
+	}
+	
+	//Time spent (ns) by a backend on single block 3DES-ECB operations with a fixed key ; -1 if the backend is not usable
+	private static long benchmark(int b){
+		
+		byte[] key = new byte[16];
+		byte[] block = new byte[8];
+		long start = 0;
+		
+		try{
+			for(int i = 0; i < BENCH_WARMUP + BENCH_ROUNDS; i++){
+				if(i == BENCH_WARMUP){
+					start = System.nanoTime();
+				}
+				block = cipher(b, key, null, block, true);
+			}
+		}catch(Exception e){
+			return -1;
+		}
+		
+		return System.nanoTime() - start;
+	}
+	
 }
-
-
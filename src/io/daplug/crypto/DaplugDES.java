@@ -0,0 +1,516 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.crypto;
+
+/**
+ * A pure Java, table driven DES/Triple DES engine.
+ * Key schedules are computed once when the object is constructed and kept as int arrays.
+ * The S-boxes and the P permutation are merged into eight 64-entries lookup tables, so a DES round costs eight table lookups.
+ * For Triple DES, the initial and final permutations are applied only once around the 48 rounds.
+ * A DaplugDES object is immutable and can be shared between threads.
+ */
+public final class DaplugDES {
+
+	public static final int BLOCK_LEN = 8; //DES block length
+
+	private static final short[] BYTEBIT = {0200, 0100, 040, 020, 010, 04, 02, 01};
+
+	private static final int[] BIGBYTE = {
+		0x800000, 0x400000, 0x200000, 0x100000, 0x080000, 0x040000, 0x020000, 0x010000,
+		0x008000, 0x004000, 0x002000, 0x001000, 0x000800, 0x000400, 0x000200, 0x000100,
+		0x000080, 0x000040, 0x000020, 0x000010, 0x000008, 0x000004, 0x000002, 0x000001
+	};
+
+	//Permuted choice 1 (key bits indexes)
+	private static final byte[] PC1 = {
+		56, 48, 40, 32, 24, 16,  8,  0, 57, 49, 41, 33, 25, 17,
+		 9,  1, 58, 50, 42, 34, 26, 18, 10,  2, 59, 51, 43, 35,
+		62, 54, 46, 38, 30, 22, 14,  6, 61, 53, 45, 37, 29, 21,
+		13,  5, 60, 52, 44, 36, 28, 20, 12,  4, 27, 19, 11,  3
+	};
+
+	//Cumulated left rotations of the key halves
+	private static final byte[] TOTROT = {1, 2, 4, 6, 8, 10, 12, 14, 15, 17, 19, 21, 23, 25, 27, 28};
+
+	//Permuted choice 2
+	private static final byte[] PC2 = {
+		13, 16, 10, 23,  0,  4,  2, 27, 14,  5, 20,  9,
+		22, 18, 11,  3, 25,  7, 15,  6, 26, 19, 12,  1,
+		40, 51, 30, 36, 46, 54, 29, 39, 50, 44, 32, 47,
+		43, 48, 38, 55, 33, 52, 45, 41, 49, 35, 28, 31
+	};
+
+	//Standard DES S-boxes (row by row)
+	private static final byte[][] SBOX = {
+		{14,  4, 13,  1,  2, 15, 11,  8,  3, 10,  6, 12,  5,  9,  0,  7,
+		  0, 15,  7,  4, 14,  2, 13,  1, 10,  6, 12, 11,  9,  5,  3,  8,
+		  4,  1, 14,  8, 13,  6,  2, 11, 15, 12,  9,  7,  3, 10,  5,  0,
+		 15, 12,  8,  2,  4,  9,  1,  7,  5, 11,  3, 14, 10,  0,  6, 13},
+		{15,  1,  8, 14,  6, 11,  3,  4,  9,  7,  2, 13, 12,  0,  5, 10,
+		  3, 13,  4,  7, 15,  2,  8, 14, 12,  0,  1, 10,  6,  9, 11,  5,
+		  0, 14,  7, 11, 10,  4, 13,  1,  5,  8, 12,  6,  9,  3,  2, 15,
+		 13,  8, 10,  1,  3, 15,  4,  2, 11,  6,  7, 12,  0,  5, 14,  9},
+		{10,  0,  9, 14,  6,  3, 15,  5,  1, 13, 12,  7, 11,  4,  2,  8,
+		 13,  7,  0,  9,  3,  4,  6, 10,  2,  8,  5, 14, 12, 11, 15,  1,
+		 13,  6,  4,  9,  8, 15,  3,  0, 11,  1,  2, 12,  5, 10, 14,  7,
+		  1, 10, 13,  0,  6,  9,  8,  7,  4, 15, 14,  3, 11,  5,  2, 12},
+		{ 7, 13, 14,  3,  0,  6,  9, 10,  1,  2,  8,  5, 11, 12,  4, 15,
+		 13,  8, 11,  5,  6, 15,  0,  3,  4,  7,  2, 12,  1, 10, 14,  9,
+		 10,  6,  9,  0, 12, 11,  7, 13, 15,  1,  3, 14,  5,  2,  8,  4,
+		  3, 15,  0,  6, 10,  1, 13,  8,  9,  4,  5, 11, 12,  7,  2, 14},
+		{ 2, 12,  4,  1,  7, 10, 11,  6,  8,  5,  3, 15, 13,  0, 14,  9,
+		 14, 11,  2, 12,  4,  7, 13,  1,  5,  0, 15, 10,  3,  9,  8,  6,
+		  4,  2,  1, 11, 10, 13,  7,  8, 15,  9, 12,  5,  6,  3,  0, 14,
+		 11,  8, 12,  7,  1, 14,  2, 13,  6, 15,  0,  9, 10,  4,  5,  3},
+		{12,  1, 10, 15,  9,  2,  6,  8,  0, 13,  3,  4, 14,  7,  5, 11,
+		 10, 15,  4,  2,  7, 12,  9,  5,  6,  1, 13, 14,  0, 11,  3,  8,
+		  9, 14, 15,  5,  2,  8, 12,  3,  7,  0,  4, 10,  1, 13, 11,  6,
+		  4,  3,  2, 12,  9,  5, 15, 10, 11, 14,  1,  7,  6,  0,  8, 13},
+		{ 4, 11,  2, 14, 15,  0,  8, 13,  3, 12,  9,  7,  5, 10,  6,  1,
+		 13,  0, 11,  7,  4,  9,  1, 10, 14,  3,  5, 12,  2, 15,  8,  6,
+		  1,  4, 11, 13, 12,  3,  7, 14, 10, 15,  6,  8,  0,  5,  9,  2,
+		  6, 11, 13,  8,  1,  4, 10,  7,  9,  5,  0, 15, 14,  2,  3, 12},
+		{13,  2,  8,  4,  6, 15, 11,  1, 10,  9,  3, 14,  5,  0, 12,  7,
+		  1, 15, 13,  8, 10,  3,  7,  4, 12,  5,  6, 11,  0, 14,  9,  2,
+		  7, 11,  4,  1,  9, 12, 14,  2,  0,  6, 10, 13, 15,  3,  5,  8,
+		  2,  1, 14,  7,  4, 10,  8, 13, 15, 12,  9,  0,  3,  5,  6, 11}
+	};
+
+	//P permutation (1-indexed, MSB first)
+	private static final byte[] P = {
+		16,  7, 20, 21, 29, 12, 28, 17,  1, 15, 23, 26,  5, 18, 31, 10,
+		 2,  8, 24, 14, 32, 27,  3,  9, 19, 13, 30,  6, 22, 11,  4, 25
+	};
+
+	//Combined S-box + P permutation tables, built once from SBOX and P
+	private static final int[] SP1 = new int[64], SP2 = new int[64], SP3 = new int[64], SP4 = new int[64],
+							   SP5 = new int[64], SP6 = new int[64], SP7 = new int[64], SP8 = new int[64];
+
+	static {
+		int[][] sp = {SP1, SP2, SP3, SP4, SP5, SP6, SP7, SP8};
+		for(int n = 0; n < 8; n++){
+			for(int x = 0; x < 64; x++){
+				int row = ((x >>> 4) & 0x02) | (x & 0x01);
+				int col = (x >>> 1) & 0x0F;
+				int s = SBOX[n][row * 16 + col] << (28 - 4 * n);
+				int p = 0;
+				for(int i = 0; i < 32; i++){
+					if((s & (1 << (32 - P[i]))) != 0){
+						p |= 1 << (31 - i);
+					}
+				}
+				//Working halves are kept rotated left by one bit
+				sp[n][x] = (p << 1) | (p >>> 31);
+			}
+		}
+	}
+
+	private final int[] encK1, decK1, encK2, decK2, encK3, decK3;
+	private final boolean triple;
+	private final byte[] key;
+	private volatile boolean cleared = false;
+
+	/**
+	 * Constructs a new DaplugDES object.
+	 * @param key An 8-bytes DES key, a 16-bytes (GP) or a 24-bytes Triple DES key.
+	 * @throws IllegalArgumentException if the key length is not valid.
+	 */
+	public DaplugDES(byte[] key){
+
+		if(key == null || (key.length != 8 && key.length != 16 && key.length != 24)){
+			throw new IllegalArgumentException("DaplugDES() - Invalid key length !");
+		}
+
+		this.key = key.clone();
+		this.triple = key.length != 8;
+		this.encK1 = workingKey(true, key, 0);
+		this.decK1 = workingKey(false, key, 0);
+		if(this.triple){
+			this.encK2 = workingKey(true, key, 8);
+			this.decK2 = workingKey(false, key, 8);
+			if(key.length == 24){
+				this.encK3 = workingKey(true, key, 16);
+				this.decK3 = workingKey(false, key, 16);
+			}else{ //GP key : K3 = K1
+				this.encK3 = this.encK1;
+				this.decK3 = this.decK1;
+			}
+		}else{
+			this.encK2 = this.decK2 = this.encK3 = this.decK3 = null;
+		}
+	}
+
+	/**
+	 * Indicates if this object holds the given key value.
+	 * @param key A key value.
+	 * @return true if the key values are equal ; false otherwise.
+	 */
+	public boolean hasKey(byte[] key){
+		return !this.cleared && java.util.Arrays.equals(this.key, key);
+	}
+
+	/**
+	 * Zeroes the key and its schedules. The object must not be used anymore.
+	 */
+	public void clear(){
+		this.cleared = true;
+		java.util.Arrays.fill(this.key, (byte) 0);
+		java.util.Arrays.fill(this.encK1, 0);
+		java.util.Arrays.fill(this.decK1, 0);
+		if(this.triple){
+			java.util.Arrays.fill(this.encK2, 0);
+			java.util.Arrays.fill(this.decK2, 0);
+			java.util.Arrays.fill(this.encK3, 0);
+			java.util.Arrays.fill(this.decK3, 0);
+		}
+	}
+
+	/**
+	 * Encrypts one 8-bytes block.
+	 * @param in Input buffer.
+	 * @param inOff Input offset.
+	 * @param out Output buffer (can be the input buffer).
+	 * @param outOff Output offset.
+	 */
+	public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff){
+		if(this.triple){
+			crypt(this.encK1, this.decK2, this.encK3, in, inOff, out, outOff);
+		}else{
+			crypt(this.encK1, null, null, in, inOff, out, outOff);
+		}
+	}
+
+	/**
+	 * Decrypts one 8-bytes block.
+	 * @param in Input buffer.
+	 * @param inOff Input offset.
+	 * @param out Output buffer (can be the input buffer).
+	 * @param outOff Output offset.
+	 */
+	public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff){
+		if(this.triple){
+			crypt(this.decK3, this.encK2, this.decK1, in, inOff, out, outOff);
+		}else{
+			crypt(this.decK1, null, null, in, inOff, out, outOff);
+		}
+	}
+
+	/**
+	 * Encrypts or decrypts len bytes in ECB mode. len must be a multiple of 8.
+	 * @param encrypt true for encryption, false for decryption.
+	 * @param in Input buffer.
+	 * @param inOff Input offset.
+	 * @param len Data length.
+	 * @param out Output buffer.
+	 * @param outOff Output offset.
+	 */
+	public void ecb(boolean encrypt, byte[] in, int inOff, int len, byte[] out, int outOff){
+		checkLength(len);
+		for(int i = 0; i < len; i += BLOCK_LEN){
+			if(encrypt){
+				encryptBlock(in, inOff + i, out, outOff + i);
+			}else{
+				decryptBlock(in, inOff + i, out, outOff + i);
+			}
+		}
+	}
+
+	/**
+	 * Encrypts or decrypts a batch of independent blocks in ECB mode.
+	 * Blocks are processed two at a time with interleaved rounds, so the table lookups of both blocks overlap in the CPU pipeline.
+	 * @param encrypt true for encryption, false for decryption.
+	 * @param in Input buffer.
+	 * @param inOff Input offset.
+	 * @param out Output buffer (can be the input buffer).
+	 * @param outOff Output offset.
+	 * @param blocks Number of 8-bytes blocks.
+	 */
+	public void ecbBlocks(boolean encrypt, byte[] in, int inOff, byte[] out, int outOff, int blocks){
+
+		int[] k1, k2, k3;
+		if(encrypt){
+			k1 = this.encK1;
+			k2 = this.decK2;
+			k3 = this.encK3;
+		}else{
+			k1 = this.triple ? this.decK3 : this.decK1;
+			k2 = this.encK2;
+			k3 = this.decK1;
+		}
+
+		int[] st = new int[4];
+		int i = 0;
+		for(; i + 1 < blocks; i += 2){
+			int a = inOff + i * BLOCK_LEN, b = a + BLOCK_LEN;
+			initialPermutation(in, a, st, 0);
+			initialPermutation(in, b, st, 2);
+			rounds2(k1, st);
+			if(k2 != null){
+				rounds2(k2, st);
+				rounds2(k3, st);
+			}
+			a = outOff + i * BLOCK_LEN;
+			b = a + BLOCK_LEN;
+			//rounds2() leaves the halves swapped for the next stage : right is in st[0], left in st[1]
+			finalPermutation(st[1], st[0], out, a);
+			finalPermutation(st[3], st[2], out, b);
+		}
+		if(i < blocks){
+			if(encrypt){
+				encryptBlock(in, inOff + i * BLOCK_LEN, out, outOff + i * BLOCK_LEN);
+			}else{
+				decryptBlock(in, inOff + i * BLOCK_LEN, out, outOff + i * BLOCK_LEN);
+			}
+		}
+	}
+
+	/**
+	 * Encrypts or decrypts len bytes in CBC mode. len must be a multiple of 8.
+	 * The chaining value is updated in place, so consecutive calls continue the same CBC chain.
+	 * @param encrypt true for encryption, false for decryption.
+	 * @param chain 8-bytes chaining value : the IV on the first call, updated with the last ciphertext block.
+	 * @param in Input buffer.
+	 * @param inOff Input offset.
+	 * @param len Data length.
+	 * @param out Output buffer.
+	 * @param outOff Output offset.
+	 */
+	public void cbc(boolean encrypt, byte[] chain, byte[] in, int inOff, int len, byte[] out, int outOff){
+
+		checkLength(len);
+		byte[] saved = new byte[BLOCK_LEN];
+
+		for(int i = 0; i < len; i += BLOCK_LEN){
+			if(encrypt){
+				for(int j = 0; j < BLOCK_LEN; j++){
+					chain[j] ^= in[inOff + i + j];
+				}
+				encryptBlock(chain, 0, chain, 0);
+				System.arraycopy(chain, 0, out, outOff + i, BLOCK_LEN);
+			}else{
+				System.arraycopy(in, inOff + i, saved, 0, BLOCK_LEN);
+				decryptBlock(in, inOff + i, out, outOff + i);
+				for(int j = 0; j < BLOCK_LEN; j++){
+					out[outOff + i + j] ^= chain[j];
+				}
+				System.arraycopy(saved, 0, chain, 0, BLOCK_LEN);
+			}
+		}
+	}
+
+	//=== private methods ===
+
+	private static void checkLength(int len){
+		if(len % BLOCK_LEN != 0){
+			throw new IllegalArgumentException("DaplugDES - Invalid data length : " + len);
+		}
+	}
+
+	//Compute a DES key schedule as 32 ints (two per round, four 6-bits groups per int)
+	private static int[] workingKey(boolean encrypting, byte[] key, int off){
+
+		int[] newKey = new int[32];
+		workingKey(encrypting, key, off, newKey, new boolean[56], new boolean[56]);
+
+		return newKey;
+	}
+
+	//Same as above, in caller provided arrays : newKey (32 ints), pc1m and pcr (56 booleans each, scratch)
+	static void workingKey(boolean encrypting, byte[] key, int off, int[] newKey, boolean[] pc1m, boolean[] pcr){
+
+		for(int j = 0; j < 56; j++){
+			int l = PC1[j];
+			pc1m[j] = (key[off + (l >>> 3)] & BYTEBIT[l & 07]) != 0;
+		}
+
+		for(int i = 0; i < 16; i++){
+			int m = encrypting ? i << 1 : (15 - i) << 1;
+			int n = m + 1;
+			newKey[m] = newKey[n] = 0;
+
+			for(int j = 0; j < 28; j++){
+				int l = j + TOTROT[i];
+				pcr[j] = l < 28 ? pc1m[l] : pc1m[l - 28];
+			}
+			for(int j = 28; j < 56; j++){
+				int l = j + TOTROT[i];
+				pcr[j] = l < 56 ? pc1m[l] : pc1m[l - 28];
+			}
+			for(int j = 0; j < 24; j++){
+				if(pcr[PC2[j]]){
+					newKey[m] |= BIGBYTE[j];
+				}
+				if(pcr[PC2[j + 24]]){
+					newKey[n] |= BIGBYTE[j];
+				}
+			}
+		}
+
+		//Reorder the 6-bits groups to match the SP tables layout
+		for(int i = 0; i != 32; i += 2){
+			int i1 = newKey[i];
+			int i2 = newKey[i + 1];
+			newKey[i] = ((i1 & 0x00fc0000) << 6) | ((i1 & 0x00000fc0) << 10) | ((i2 & 0x00fc0000) >>> 10) | ((i2 & 0x00000fc0) >>> 6);
+			newKey[i + 1] = ((i1 & 0x0003f000) << 12) | ((i1 & 0x0000003f) << 16) | ((i2 & 0x0003f000) >>> 4) | (i2 & 0x0000003f);
+		}
+	}
+
+	//One DES (k2 == null) or one Triple DES (EDE/DED) block operation
+	static void crypt(int[] k1, int[] k2, int[] k3, byte[] in, int inOff, byte[] out, int outOff){
+
+		int[] st = new int[2];
+		initialPermutation(in, inOff, st, 0);
+
+		long lr = rounds(k1, st[0], st[1]);
+		if(k2 != null){
+			//The final permutation of a stage and the initial permutation of the next one cancel out : only swap the halves
+			lr = rounds(k2, (int) lr, (int) (lr >>> 32));
+			lr = rounds(k3, (int) lr, (int) (lr >>> 32));
+		}
+
+		finalPermutation((int) (lr >>> 32), (int) lr, out, outOff);
+	}
+
+	//Load a block and apply the initial permutation. The halves are stored rotated left by one bit in st[pos] (left) and st[pos + 1] (right).
+	private static void initialPermutation(byte[] in, int inOff, int[] st, int pos){
+
+		int left = ((in[inOff] & 0xff) << 24) | ((in[inOff + 1] & 0xff) << 16) | ((in[inOff + 2] & 0xff) << 8) | (in[inOff + 3] & 0xff);
+		int right = ((in[inOff + 4] & 0xff) << 24) | ((in[inOff + 5] & 0xff) << 16) | ((in[inOff + 6] & 0xff) << 8) | (in[inOff + 7] & 0xff);
+		int work;
+
+		work = ((left >>> 4) ^ right) & 0x0f0f0f0f;
+		right ^= work;
+		left ^= (work << 4);
+		work = ((left >>> 16) ^ right) & 0x0000ffff;
+		right ^= work;
+		left ^= (work << 16);
+		work = ((right >>> 2) ^ left) & 0x33333333;
+		left ^= work;
+		right ^= (work << 2);
+		work = ((right >>> 8) ^ left) & 0x00ff00ff;
+		left ^= work;
+		right ^= (work << 8);
+		right = (right << 1) | (right >>> 31);
+		work = (left ^ right) & 0xaaaaaaaa;
+		left ^= work;
+		right ^= work;
+		left = (left << 1) | (left >>> 31);
+
+		st[pos] = left;
+		st[pos + 1] = right;
+	}
+
+	//Apply the final permutation to the halves left by the last round and store the block (right half first)
+	private static void finalPermutation(int left, int right, byte[] out, int outOff){
+
+		int work;
+
+		right = (right << 31) | (right >>> 1);
+		work = (left ^ right) & 0xaaaaaaaa;
+		left ^= work;
+		right ^= work;
+		left = (left << 31) | (left >>> 1);
+		work = ((left >>> 8) ^ right) & 0x00ff00ff;
+		right ^= work;
+		left ^= (work << 8);
+		work = ((left >>> 2) ^ right) & 0x33333333;
+		right ^= work;
+		left ^= (work << 2);
+		work = ((right >>> 16) ^ left) & 0x0000ffff;
+		left ^= work;
+		right ^= (work << 16);
+		work = ((right >>> 4) ^ left) & 0x0f0f0f0f;
+		left ^= work;
+		right ^= (work << 4);
+
+		out[outOff] = (byte) (right >>> 24);
+		out[outOff + 1] = (byte) (right >>> 16);
+		out[outOff + 2] = (byte) (right >>> 8);
+		out[outOff + 3] = (byte) right;
+		out[outOff + 4] = (byte) (left >>> 24);
+		out[outOff + 5] = (byte) (left >>> 16);
+		out[outOff + 6] = (byte) (left >>> 8);
+		out[outOff + 7] = (byte) left;
+	}
+
+	//16 DES rounds on the permuted halves. Returns left in the high int and right in the low int (output order is right then left).
+	private static long rounds(int[] wKey, int left, int right){
+
+		int work, fval;
+
+		for(int round = 0; round < 8; round++){
+			work = (right << 28) | (right >>> 4);
+			work ^= wKey[round * 4];
+			fval = SP7[work & 0x3f];
+			fval |= SP5[(work >>> 8) & 0x3f];
+			fval |= SP3[(work >>> 16) & 0x3f];
+			fval |= SP1[(work >>> 24) & 0x3f];
+			work = right ^ wKey[round * 4 + 1];
+			fval |= SP8[work & 0x3f];
+			fval |= SP6[(work >>> 8) & 0x3f];
+			fval |= SP4[(work >>> 16) & 0x3f];
+			fval |= SP2[(work >>> 24) & 0x3f];
+			left ^= fval;
+			work = (left << 28) | (left >>> 4);
+			work ^= wKey[round * 4 + 2];
+			fval = SP7[work & 0x3f];
+			fval |= SP5[(work >>> 8) & 0x3f];
+			fval |= SP3[(work >>> 16) & 0x3f];
+			fval |= SP1[(work >>> 24) & 0x3f];
+			work = left ^ wKey[round * 4 + 3];
+			fval |= SP8[work & 0x3f];
+			fval |= SP6[(work >>> 8) & 0x3f];
+			fval |= SP4[(work >>> 16) & 0x3f];
+			fval |= SP2[(work >>> 24) & 0x3f];
+			right ^= fval;
+		}
+
+		return ((long) left << 32) | (right & 0xffffffffL);
+	}
+
+	//16 DES rounds on two blocks at once, st = {left0, right0, left1, right1}. The halves are swapped on return, ready for the next stage.
+	private static void rounds2(int[] wKey, int[] st){
+
+		int l0 = st[0], r0 = st[1], l1 = st[2], r1 = st[3];
+		int w0, w1, f0, f1;
+
+		for(int k = 0; k < 32; k += 4){
+			int ka = wKey[k], kb = wKey[k + 1], kc = wKey[k + 2], kd = wKey[k + 3];
+			w0 = ((r0 << 28) | (r0 >>> 4)) ^ ka;
+			w1 = ((r1 << 28) | (r1 >>> 4)) ^ ka;
+			f0 = SP7[w0 & 0x3f] | SP5[(w0 >>> 8) & 0x3f] | SP3[(w0 >>> 16) & 0x3f] | SP1[(w0 >>> 24) & 0x3f];
+			f1 = SP7[w1 & 0x3f] | SP5[(w1 >>> 8) & 0x3f] | SP3[(w1 >>> 16) & 0x3f] | SP1[(w1 >>> 24) & 0x3f];
+			w0 = r0 ^ kb;
+			w1 = r1 ^ kb;
+			l0 ^= f0 | SP8[w0 & 0x3f] | SP6[(w0 >>> 8) & 0x3f] | SP4[(w0 >>> 16) & 0x3f] | SP2[(w0 >>> 24) & 0x3f];
+			l1 ^= f1 | SP8[w1 & 0x3f] | SP6[(w1 >>> 8) & 0x3f] | SP4[(w1 >>> 16) & 0x3f] | SP2[(w1 >>> 24) & 0x3f];
+			w0 = ((l0 << 28) | (l0 >>> 4)) ^ kc;
+			w1 = ((l1 << 28) | (l1 >>> 4)) ^ kc;
+			f0 = SP7[w0 & 0x3f] | SP5[(w0 >>> 8) & 0x3f] | SP3[(w0 >>> 16) & 0x3f] | SP1[(w0 >>> 24) & 0x3f];
+			f1 = SP7[w1 & 0x3f] | SP5[(w1 >>> 8) & 0x3f] | SP3[(w1 >>> 16) & 0x3f] | SP1[(w1 >>> 24) & 0x3f];
+			w0 = l0 ^ kd;
+			w1 = l1 ^ kd;
+			r0 ^= f0 | SP8[w0 & 0x3f] | SP6[(w0 >>> 8) & 0x3f] | SP4[(w0 >>> 16) & 0x3f] | SP2[(w0 >>> 24) & 0x3f];
+			r1 ^= f1 | SP8[w1 & 0x3f] | SP6[(w1 >>> 8) & 0x3f] | SP4[(w1 >>> 16) & 0x3f] | SP2[(w1 >>> 24) & 0x3f];
+		}
+
+		st[0] = r0;
+		st[1] = l0;
+		st[2] = r1;
+		st[3] = l1;
+	}
+}
@@ -0,0 +1,149 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.crypto;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of unwrapped data encryption keys (DEK), so that opening the same object again does not cost a dongle round trip.
+ * Entries are kept at most ttl milliseconds after they were added ; when the cache is full, the least recently used entry is removed.
+ * Removed keys are overwritten with zeros. The cache is thread-safe.
+ */
+public final class DaplugDekCache {
+	
+	public static final int DEFAULT_MAX_ENTRIES = 256;
+	public static final long DEFAULT_TTL = 5 * 60 * 1000; //Milliseconds
+	
+	private static final class Entry {
+		
+		final byte[] dek;
+		final long expires; //System.nanoTime() value
+		
+		Entry(byte[] dek, long expires){
+			this.dek = dek;
+			this.expires = expires;
+		}
+	}
+	
+	private final int maxEntries;
+	private final long ttlNanos;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long hits = 0, misses = 0;
+	
+	/**
+	 * Constructs a new DaplugDekCache object with DEFAULT_MAX_ENTRIES entries and a DEFAULT_TTL time to live.
+	 */
+	public DaplugDekCache(){
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+	}
+	
+	/**
+	 * Constructs a new DaplugDekCache object.
+	 * @param maxEntries Maximum number of keys kept.
+	 * @param ttl Time to live of an entry, in milliseconds.
+	 */
+	public DaplugDekCache(int maxEntries, long ttl){
+		if(maxEntries < 1 || ttl < 0){
+			throw new IllegalArgumentException("DaplugDekCache() - Invalid size or time to live !");
+		}
+		this.maxEntries = maxEntries;
+		this.ttlNanos = ttl * 1000000L;
+	}
+	
+	/**
+	 * Returns a cached key.
+	 * @param id Identifier of the wrapped key (for example its wrapped value and wrapping key).
+	 * @return A copy of the key, or null if it is not cached or has expired.
+	 */
+	public synchronized byte[] get(String id){
+		Entry e = this.entries.get(id);
+		if(e != null && e.expires - System.nanoTime() <= 0){
+			this.entries.remove(id);
+			Arrays.fill(e.dek, (byte) 0);
+			e = null;
+		}
+		if(e == null){
+			this.misses++;
+			return null;
+		}
+		this.hits++;
+		return e.dek.clone();
+	}
+	
+	/**
+	 * Adds a key to the cache, removing expired entries and, if needed, the least recently used one.
+	 * @param id Identifier of the wrapped key.
+	 * @param dek The unwrapped key (copied).
+	 */
+	public synchronized void put(String id, byte[] dek){
+		
+		long now = System.nanoTime();
+		removeExpired(now);
+		
+		Entry old = this.entries.put(id, new Entry(dek.clone(), now + this.ttlNanos));
+		if(old != null){
+			Arrays.fill(old.dek, (byte) 0);
+		}
+		
+		Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+		while(this.entries.size() > this.maxEntries && it.hasNext()){
+			Arrays.fill(it.next().getValue().dek, (byte) 0);
+			it.remove();
+		}
+	}
+	
+	/**
+	 * Removes all the keys.
+	 */
+	public synchronized void clear(){
+		for(Entry e : this.entries.values()){
+			Arrays.fill(e.dek, (byte) 0);
+		}
+		this.entries.clear();
+	}
+	
+	/**
+	 * @return The number of cached keys (expired ones included until they are removed).
+	 */
+	public synchronized int size(){
+		return this.entries.size();
+	}
+	
+	public synchronized long getHits(){
+		return this.hits;
+	}
+	
+	public synchronized long getMisses(){
+		return this.misses;
+	}
+	
+	//=== private methods ===
+	
+	private void removeExpired(long now){
+		Iterator<Entry> it = this.entries.values().iterator();
+		while(it.hasNext()){
+			Entry e = it.next();
+			if(e.expires - now <= 0){
+				Arrays.fill(e.dek, (byte) 0);
+				it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,262 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.crypto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+import io.daplug.keyset.DaplugKeyset;
+import io.daplug.session.DaplugSession;
+import io.daplug.utils.DaplugUtils;
+import io.daplug.utils.DaplugWorkers;
+
+/**
+ * Host side mirror of the dongle encryption function (DaplugSession.encrypt() and DaplugSession.decrypt()), for the owner of an ENC-DEC keyset.
+ * The same parameters give the same result as the dongle : key id 1, 2 or 3 selects the keyset key, ENC_1_DIV/ENC_2_DIV diversify it 
+ * (as DaplugCrypto.computeDiversifiedKey() does, by div1 then by div2), ENC_ECB/ENC_CBC select the block cipher mode.
+ * 
+ * Bulk data is processed in parallel on the shared DaplugWorkers pool. Data produced by several dongle calls can be given at once :
+ * if each call used the same IV, chunkLen is the data length of one call ; if the calls were chained (the last encrypted block used as the next IV), 
+ * the whole data is a single CBC chain (chunkLen = 0).
+ */
+public final class DaplugHostCrypt {
+	
+	public static final int DEFAULT_SLICE_BLOCKS = 2048; //Minimum number of blocks processed by one task
+	
+	private final DaplugKeyset keyset;
+	private int sliceBlocks;
+	
+	//Last derived key, reused while the same parameters are used
+	private DaplugDES lastKey;
+	private int lastKeyId;
+	private byte[] lastDiv1, lastDiv2;
+	
+	/**
+	 * Constructs a new DaplugHostCrypt object.
+	 * @param keyset The ENC-DEC keyset loaded in the dongle.
+	 */
+	public DaplugHostCrypt(DaplugKeyset keyset){
+		this.keyset = keyset;
+		this.sliceBlocks = DEFAULT_SLICE_BLOCKS;
+	}
+	
+	/**
+	 * Sets the minimum number of blocks processed by one parallel task.
+	 * @param blocks Number of blocks. Use Integer.MAX_VALUE to process everything on the calling thread.
+	 */
+	public void setSliceBlocks(int blocks){
+		if(blocks < 1){
+			throw new IllegalArgumentException("setSliceBlocks() - Invalid value : " + blocks);
+		}
+		this.sliceBlocks = blocks;
+	}
+	
+	/**
+	 * Encrypts data as the dongle does. Parameters are the ones of DaplugSession.encrypt(), without length limitation.
+	 * @param keyId The index of the keyset key to use (1, 2 or 3).
+	 * @param mode ENC_ECB or ENC_CBC, and the use of diversifiers (ENC_1_DIV, ENC_2_DIV).
+	 * @param iv Initialization vector (CBC only). If not specified, a zero IV is used.
+	 * @param div1 First diversifier (optional).
+	 * @param div2 Second diversifier (optional).
+	 * @param clearData Data to encrypt. Length must be a multiple of 8.
+	 * @return Encrypted data.
+	 * @throws Exception if a parameter is not valid.
+	 */
+	public byte[] encrypt(int keyId, int mode, byte[] iv, byte[] div1, byte[] div2, byte[] clearData) throws Exception{
+		return crypt(true, keyId, mode, iv, div1, div2, clearData, 0);
+	}
+	
+	/**
+	 * Decrypts data encrypted by the dongle. Parameters are the ones of DaplugSession.decrypt(), without length limitation.
+	 * @param keyId The index of the keyset key to use (1, 2 or 3).
+	 * @param mode ENC_ECB or ENC_CBC, and the use of diversifiers (ENC_1_DIV, ENC_2_DIV).
+	 * @param iv Initialization vector (CBC only). If not specified, a zero IV is used.
+	 * @param div1 First diversifier (optional).
+	 * @param div2 Second diversifier (optional).
+	 * @param encryptedData Data to decrypt. Length must be a multiple of 8.
+	 * @return Decrypted data.
+	 * @throws Exception if a parameter is not valid.
+	 */
+	public byte[] decrypt(int keyId, int mode, byte[] iv, byte[] div1, byte[] div2, byte[] encryptedData) throws Exception{
+		return crypt(false, keyId, mode, iv, div1, div2, encryptedData, 0);
+	}
+	
+	/**
+	 * Encrypts data as a sequence of dongle encrypt() calls of chunkLen bytes each, all using the same IV.
+	 * @param chunkLen Data length of one call (multiple of 8), or 0 for a single CBC chain.
+	 * @see #encrypt(int, int, byte[], byte[], byte[], byte[])
+	 */
+	public byte[] encrypt(int keyId, int mode, byte[] iv, byte[] div1, byte[] div2, byte[] clearData, int chunkLen) throws Exception{
+		return crypt(true, keyId, mode, iv, div1, div2, clearData, chunkLen);
+	}
+	
+	/**
+	 * Decrypts data produced by a sequence of dongle encrypt() calls of chunkLen bytes each, all using the same IV.
+	 * @param chunkLen Data length of one call (multiple of 8), or 0 for a single CBC chain.
+	 * @see #decrypt(int, int, byte[], byte[], byte[], byte[])
+	 */
+	public byte[] decrypt(int keyId, int mode, byte[] iv, byte[] div1, byte[] div2, byte[] encryptedData, int chunkLen) throws Exception{
+		return crypt(false, keyId, mode, iv, div1, div2, encryptedData, chunkLen);
+	}
+	
+	//=== private methods ===
+	
+	private byte[] crypt(boolean encrypt, int keyId, int mode, byte[] iv, byte[] div1, byte[] div2, byte[] inData, int chunkLen) throws Exception{
+		
+		String functionName = encrypt ? "encrypt()" : "decrypt()";
+		
+		if(keyId < 1 || keyId > 3){
+			throw new Exception(functionName + " - Invalid key id : " + keyId);
+		}
+		if(iv == null){
+			iv = new byte[DaplugDES.BLOCK_LEN];
+		}else if(iv.length != DaplugDES.BLOCK_LEN){
+			throw new Exception(functionName + " - Invalid IV : " + DaplugUtils.byteArrayToHexString(iv));
+		}
+		if(inData.length % DaplugDES.BLOCK_LEN != 0){
+			throw new Exception(functionName + " - Invalid data length !");
+		}
+		if(chunkLen < 0 || chunkLen % DaplugDES.BLOCK_LEN != 0){
+			throw new Exception(functionName + " - Invalid chunk length : " + chunkLen);
+		}
+		
+		//Check diversifiers validity
+		if((mode & DaplugSession.ENC_1_DIV) == 0 && (mode & DaplugSession.ENC_2_DIV) == 0){
+			div1 = null;
+		}else if(div1 == null || div1.length != 16){
+			throw new Exception(functionName + " - Invalid diversifier div1 : " + DaplugUtils.byteArrayToHexString(div1));
+		}
+		if((mode & DaplugSession.ENC_2_DIV) == 0){
+			div2 = null;
+		}else if(div2 == null || div2.length != 16){
+			throw new Exception(functionName + " - Invalid diversifier div2 : " + DaplugUtils.byteArrayToHexString(div2));
+		}
+		
+		DaplugDES des = key(keyId, div1, div2);
+		boolean cbc = (mode & DaplugSession.ENC_CBC) != 0;
+		byte[] outData = new byte[inData.length];
+		
+		//Split the work : CBC encryption is sequential inside a chunk, everything else can be sliced
+		int blocks = inData.length / DaplugDES.BLOCK_LEN;
+		int chunkBlocks = chunkLen == 0 ? blocks : chunkLen / DaplugDES.BLOCK_LEN;
+		List<Slice> slices = new ArrayList<Slice>();
+		for(int c = 0; c < blocks; c += chunkBlocks){
+			int end = Math.min(blocks, c + chunkBlocks);
+			if(cbc && encrypt){
+				slices.add(new Slice(des, true, true, c, end, c, iv, inData, outData));
+			}else{
+				for(int s = c; s < end; s += this.sliceBlocks){
+					slices.add(new Slice(des, encrypt, cbc, s, Math.min(end, s + this.sliceBlocks), c, iv, inData, outData));
+				}
+			}
+		}
+		
+		if(slices.size() == 1){
+			slices.get(0).compute();
+		}else if(!slices.isEmpty()){
+			DaplugWorkers.getPool().invoke(new Batch(slices));
+		}
+		
+		return outData;
+	}
+	
+	//Get the (diversified) key to use
+	private synchronized DaplugDES key(int keyId, byte[] div1, byte[] div2) throws Exception{
+		
+		if(this.lastKey != null && this.lastKeyId == keyId 
+				&& Arrays.equals(this.lastDiv1, div1) && Arrays.equals(this.lastDiv2, div2)){
+			return this.lastKey;
+		}
+		
+		byte[] key = this.keyset.getKey(keyId - 1);
+		if(div1 != null){
+			key = DaplugCrypto.computeDiversifiedKey(key, div1);
+		}
+		if(div2 != null){
+			key = DaplugCrypto.computeDiversifiedKey(key, div2);
+		}
+		
+		this.lastKey = new DaplugDES(key);
+		this.lastKeyId = keyId;
+		this.lastDiv1 = div1 == null ? null : div1.clone();
+		this.lastDiv2 = div2 == null ? null : div2.clone();
+		
+		return this.lastKey;
+	}
+	
+	//Runs all the slices in parallel
+	private static final class Batch extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final List<Slice> slices;
+		
+		Batch(List<Slice> slices){
+			this.slices = slices;
+		}
+		
+		@Override
+		protected void compute(){
+			invokeAll(this.slices);
+		}
+	}
+	
+	//Blocks [from, to[ ; chunkStart is the first block of the chunk, where the IV applies
+	private static final class Slice extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final DaplugDES des;
+		private final boolean encrypt, cbc;
+		private final int from, to, chunkStart;
+		private final byte[] iv, in, out;
+		
+		Slice(DaplugDES des, boolean encrypt, boolean cbc, int from, int to, int chunkStart, byte[] iv, byte[] in, byte[] out){
+			this.des = des;
+			this.encrypt = encrypt;
+			this.cbc = cbc;
+			this.from = from;
+			this.to = to;
+			this.chunkStart = chunkStart;
+			this.iv = iv;
+			this.in = in;
+			this.out = out;
+		}
+		
+		@Override
+		protected void compute(){
+			
+			int off = this.from * DaplugDES.BLOCK_LEN;
+			
+			if(!this.cbc){
+				this.des.ecbBlocks(this.encrypt, this.in, off, this.out, off, this.to - this.from);
+				return;
+			}
+			
+			//In decryption, a slice starting inside a chunk is chained to the previous ciphertext block
+			byte[] chain = new byte[DaplugDES.BLOCK_LEN];
+			if(this.from == this.chunkStart){
+				System.arraycopy(this.iv, 0, chain, 0, DaplugDES.BLOCK_LEN);
+			}else{
+				System.arraycopy(this.in, off - DaplugDES.BLOCK_LEN, chain, 0, DaplugDES.BLOCK_LEN);
+			}
+			this.des.cbc(this.encrypt, chain, this.in, off, (this.to - this.from) * DaplugDES.BLOCK_LEN, this.out, off);
+		}
+	}
+}
@@ -0,0 +1,368 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.crypto;
+
+import io.daplug.keyset.DaplugKeyset;
+import io.daplug.session.DaplugSession;
+import io.daplug.utils.DaplugUtils;
+
+/**
+ * Host side HMAC-SHA1, HOTP and TOTP, giving the same results as DaplugSession.hmac(), hotp() and totp() for the same keyset.
+ * The HMAC key is made of the first (access &amp; 0xFF) bytes of ENC | MAC | DEK keys. When OTP_1_DIV/OTP_2_DIV are used, 
+ * each key is diversified as DaplugCrypto.computeDiversifiedKey() does, by div1 then by div2.
+ * 
+ * The inner and outer padded key digest states are computed once by the constructor, so an OTP costs two SHA-1 compressions
+ * and no allocation. An instance is not thread-safe : use copy() to get one instance per thread sharing the same key states.
+ */
+public final class DaplugHostHmac {
+	
+	public static final int HMAC_LEN = 20;
+	public static final int MAX_KEY_LEN = 48;
+	
+	private static final int BLOCK_LEN = 64;
+	private static final int[] DIGITS_POWER = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000};
+	
+	private final int[] innerState; //SHA-1 state after (key ^ ipad)
+	private final int[] outerState; //SHA-1 state after (key ^ opad)
+	private final int digits; //OTP length, 0 if no OTP option
+	
+	//Scratch buffers
+	private final int[] state = new int[5];
+	private final int[] w = new int[80];
+	private final byte[] block = new byte[BLOCK_LEN];
+	
+	/**
+	 * Constructs a new DaplugHostHmac object. Parameters are the ones given to the dongle.
+	 * @param keyset The HMAC-SHA1, HOTP or TOTP keyset loaded in the dongle.
+	 * @param options Digits (OTP_6_DIGIT, OTP_7_DIGIT, OTP_8_DIGIT) and use of diversifiers (OTP_1_DIV, OTP_2_DIV).
+	 * @param div1 First diversifier (optional).
+	 * @param div2 Second diversifier (optional).
+	 * @throws Exception if a parameter is not valid.
+	 */
+	public DaplugHostHmac(DaplugKeyset keyset, int options, byte[] div1, byte[] div2) throws Exception{
+		
+		if((options & DaplugSession.OTP_1_DIV) != 0 || (options & DaplugSession.OTP_2_DIV) != 0){
+			if(div1 == null || div1.length != 16){
+				throw new Exception("DaplugHostHmac() - Invalid diversifier div1 : " + DaplugUtils.byteArrayToHexString(div1));
+			}
+		}else{
+			div1 = null;
+		}
+		if((options & DaplugSession.OTP_2_DIV) != 0){
+			if(div2 == null || div2.length != 16){
+				throw new Exception("DaplugHostHmac() - Invalid diversifier div2 : " + DaplugUtils.byteArrayToHexString(div2));
+			}
+		}else{
+			div2 = null;
+		}
+		
+		if((options & DaplugSession.OTP_8_DIGIT) != 0){
+			this.digits = 8;
+		}else if((options & DaplugSession.OTP_7_DIGIT) != 0){
+			this.digits = 7;
+		}else if((options & DaplugSession.OTP_6_DIGIT) != 0){
+			this.digits = 6;
+		}else{
+			this.digits = 0;
+		}
+		
+		int keyLen = keyset.getAccess() & 0xFF;
+		if(keyLen == 0 || keyLen > MAX_KEY_LEN){
+			throw new Exception("DaplugHostHmac() - Invalid key length : " + keyLen);
+		}
+		
+		byte[] key = new byte[MAX_KEY_LEN];
+		for(int i = 0; i < 3; i++){
+			byte[] k = keyset.getKey(i);
+			if(div1 != null){
+				k = DaplugCrypto.computeDiversifiedKey(k, div1);
+			}
+			if(div2 != null){
+				k = DaplugCrypto.computeDiversifiedKey(k, div2);
+			}
+			System.arraycopy(k, 0, key, i * DaplugKeyset.GP_KEY_LEN, DaplugKeyset.GP_KEY_LEN);
+		}
+		
+		//Precompute pad states
+		this.innerState = new int[5];
+		this.outerState = new int[5];
+		for(int i = 0; i < BLOCK_LEN; i++){
+			this.block[i] = (byte) ((i < keyLen ? key[i] : 0) ^ 0x36);
+		}
+		init(this.innerState);
+		compress(this.innerState, this.block, 0, this.w);
+		for(int i = 0; i < BLOCK_LEN; i++){
+			this.block[i] = (byte) ((i < keyLen ? key[i] : 0) ^ 0x5C);
+		}
+		init(this.outerState);
+		compress(this.outerState, this.block, 0, this.w);
+	}
+	
+	private DaplugHostHmac(DaplugHostHmac other){
+		this.innerState = other.innerState;
+		this.outerState = other.outerState;
+		this.digits = other.digits;
+	}
+	
+	/**
+	 * Returns a new instance sharing the precomputed key states, to be used by another thread.
+	 */
+	public DaplugHostHmac copy(){
+		return new DaplugHostHmac(this);
+	}
+	
+	/**
+	 * Computes the HMAC-SHA1 signature of data, as DaplugSession.hmac() does.
+	 * @param data Data to sign.
+	 * @return The 20 bytes signature.
+	 */
+	public byte[] hmac(byte[] data){
+		byte[] mac = new byte[HMAC_LEN];
+		hmac(data, 0, data.length, mac, 0);
+		return mac;
+	}
+	
+	/**
+	 * Computes the HMAC-SHA1 signature of data, as DaplugSession.hmac() does.
+	 * @param data Data to sign.
+	 * @param off Offset of data.
+	 * @param len Length of data.
+	 * @param mac Output buffer for the 20 bytes signature.
+	 * @param macOff Offset in the output buffer.
+	 */
+	public void hmac(byte[] data, int off, int len, byte[] mac, int macOff){
+		
+		System.arraycopy(this.innerState, 0, this.state, 0, 5);
+		
+		int end = off + len;
+		while(end - off >= BLOCK_LEN){
+			compress(this.state, data, off, this.w);
+			off = off + BLOCK_LEN;
+		}
+		int rem = end - off;
+		System.arraycopy(data, off, this.block, 0, rem);
+		finish(rem, BLOCK_LEN + len);
+		
+		outer();
+		for(int i = 0; i < 5; i++){
+			putInt(this.state[i], mac, macOff + i * 4);
+		}
+	}
+	
+	/**
+	 * Computes the HOTP value (RFC 4226) for a counter, as an int.
+	 * @param counter The counter value.
+	 * @return The OTP value, on the number of digits given by the constructor options.
+	 * @throws Exception if no digits option was given.
+	 */
+	public int hotpValue(long counter) throws Exception{
+		
+		if(this.digits == 0){
+			throw new Exception("hotpValue() - No digits option !");
+		}
+		
+		//Inner hash : 8 bytes counter, fits in one block
+		System.arraycopy(this.innerState, 0, this.state, 0, 5);
+		putInt((int) (counter >>> 32), this.block, 0);
+		putInt((int) counter, this.block, 4);
+		finish(8, BLOCK_LEN + 8);
+		
+		outer();
+		
+		//Dynamic truncation
+		int offset = this.state[4] & 0x0F;
+		int word = offset >>> 2, shift = (offset & 3) << 3;
+		int binary = shift == 0 ? this.state[word] : (this.state[word] << shift) | (this.state[word + 1] >>> (32 - shift));
+		
+		return (binary & 0x7FFFFFFF) % DIGITS_POWER[this.digits];
+	}
+	
+	/**
+	 * Returns the HOTP for a counter, as ASCII digits, as DaplugSession.hotp() does.
+	 * @param counter The counter value.
+	 * @return The OTP.
+	 * @throws Exception if no digits option was given.
+	 */
+	public byte[] hotp(long counter) throws Exception{
+		byte[] otp = new byte[this.digits];
+		writeDigits(hotpValue(counter), otp, 0);
+		return otp;
+	}
+	
+	/**
+	 * Returns the HOTP for a counter, as ASCII digits.
+	 * @param counter The counter value as an 8 bytes array (the HOTP_VALIDATION input data).
+	 * @return The OTP.
+	 * @throws Exception if a parameter is not valid.
+	 */
+	public byte[] hotp(byte[] counter) throws Exception{
+		if(counter == null || counter.length != 8){
+			throw new Exception("hotp() - Invalid counter : " + DaplugUtils.byteArrayToHexString(counter));
+		}
+		long c = 0;
+		for(int i = 0; i < 8; i++){
+			c = (c << 8) | (counter[i] & 0xFF);
+		}
+		return hotp(c);
+	}
+	
+	/**
+	 * Checks an OTP against the HOTP of a counter without allocation.
+	 * @param counter The counter value.
+	 * @param otp The OTP as ASCII digits.
+	 * @return true if the OTP matches.
+	 * @throws Exception if no digits option was given.
+	 */
+	public boolean verifyHotp(long counter, byte[] otp) throws Exception{
+		
+		int value = hotpValue(counter);
+		if(otp == null || otp.length != this.digits){
+			return false;
+		}
+		
+		int diff = 0;
+		for(int i = this.digits - 1; i >= 0; i--){
+			diff |= otp[i] ^ ('0' + value % 10);
+			value = value / 10;
+		}
+		return diff == 0;
+	}
+	
+	/**
+	 * Returns the TOTP for a time value, as ASCII digits, as DaplugSession.totp() does.
+	 * @param time Time value in seconds.
+	 * @param step Time step (0 for DaplugSession.HOTP_TIME_STEP).
+	 * @return The OTP.
+	 * @throws Exception if no digits option was given.
+	 */
+	public byte[] totp(long time, int step) throws Exception{
+		return hotp(time / (step == 0 ? DaplugSession.HOTP_TIME_STEP : step));
+	}
+	
+	/**
+	 * Checks an OTP against the TOTP of a time value, accepting window steps before and after.
+	 * @param time Time value in seconds.
+	 * @param step Time step (0 for DaplugSession.HOTP_TIME_STEP).
+	 * @param window Number of accepted steps of clock drift.
+	 * @param otp The OTP as ASCII digits.
+	 * @return true if the OTP matches.
+	 * @throws Exception if no digits option was given.
+	 */
+	public boolean verifyTotp(long time, int step, int window, byte[] otp) throws Exception{
+		long t = time / (step == 0 ? DaplugSession.HOTP_TIME_STEP : step);
+		boolean ok = false;
+		for(long c = t - window; c <= t + window; c++){
+			ok |= verifyHotp(c, otp);
+		}
+		return ok;
+	}
+	
+	/**
+	 * Returns the OTP length given by the constructor options.
+	 */
+	public int getDigits(){
+		return this.digits;
+	}
+	
+	//=== private methods ===
+	
+	private void writeDigits(int value, byte[] out, int off){
+		for(int i = this.digits - 1; i >= 0; i--){
+			out[off + i] = (byte) ('0' + value % 10);
+			value = value / 10;
+		}
+	}
+	
+	//Pads the rem bytes already in block and compresses ; totalLen is the hashed length, including the pad block
+	private void finish(int rem, long totalLen){
+		this.block[rem++] = (byte) 0x80;
+		if(rem > BLOCK_LEN - 8){
+			while(rem < BLOCK_LEN){
+				this.block[rem++] = 0;
+			}
+			compress(this.state, this.block, 0, this.w);
+			rem = 0;
+		}
+		while(rem < BLOCK_LEN - 8){
+			this.block[rem++] = 0;
+		}
+		long bits = totalLen << 3;
+		putInt((int) (bits >>> 32), this.block, BLOCK_LEN - 8);
+		putInt((int) bits, this.block, BLOCK_LEN - 4);
+		compress(this.state, this.block, 0, this.w);
+	}
+	
+	//Outer hash of the inner digest held in state : 20 bytes, fits in one block
+	private void outer(){
+		for(int i = 0; i < 5; i++){
+			putInt(this.state[i], this.block, i * 4);
+		}
+		System.arraycopy(this.outerState, 0, this.state, 0, 5);
+		finish(HMAC_LEN, BLOCK_LEN + HMAC_LEN);
+	}
+	
+	private static void init(int[] h){
+		h[0] = 0x67452301;
+		h[1] = 0xEFCDAB89;
+		h[2] = 0x98BADCFE;
+		h[3] = 0x10325476;
+		h[4] = 0xC3D2E1F0;
+	}
+	
+	private static void putInt(int v, byte[] out, int off){
+		out[off] = (byte) (v >>> 24);
+		out[off + 1] = (byte) (v >>> 16);
+		out[off + 2] = (byte) (v >>> 8);
+		out[off + 3] = (byte) v;
+	}
+	
+	//SHA-1 compression function (FIPS 180-4)
+	private static void compress(int[] h, byte[] in, int off, int[] w){
+		
+		for(int i = 0; i < 16; i++, off += 4){
+			w[i] = (in[off] << 24) | ((in[off + 1] & 0xFF) << 16) | ((in[off + 2] & 0xFF) << 8) | (in[off + 3] & 0xFF);
+		}
+		for(int i = 16; i < 80; i++){
+			w[i] = Integer.rotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+		}
+		
+		int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], t;
+		
+		for(int i = 0; i < 20; i++){
+			t = Integer.rotateLeft(a, 5) + ((b & c) | (~b & d)) + e + w[i] + 0x5A827999;
+			e = d; d = c; c = Integer.rotateLeft(b, 30); b = a; a = t;
+		}
+		for(int i = 20; i < 40; i++){
+			t = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + w[i] + 0x6ED9EBA1;
+			e = d; d = c; c = Integer.rotateLeft(b, 30); b = a; a = t;
+		}
+		for(int i = 40; i < 60; i++){
+			t = Integer.rotateLeft(a, 5) + ((b & c) | (b & d) | (c & d)) + e + w[i] + 0x8F1BBCDC;
+			e = d; d = c; c = Integer.rotateLeft(b, 30); b = a; a = t;
+		}
+		for(int i = 60; i < 80; i++){
+			t = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + w[i] + 0xCA62C1D6;
+			e = d; d = c; c = Integer.rotateLeft(b, 30); b = a; a = t;
+		}
+		
+		h[0] += a;
+		h[1] += b;
+		h[2] += c;
+		h[3] += d;
+		h[4] += e;
+	}
+}
@@ -0,0 +1,185 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.crypto;
+
+import java.nio.ByteBuffer;
+
+import io.daplug.utils.DaplugUtils;
+
+/**
+ * Incremental computation of the MACs provided by DaplugCrypto.
+ * Data is fed with update() calls and the MAC is returned by doFinal(). Only the CBC chaining value and one partial block are kept between calls,
+ * so large buffers or memory-mapped files can be processed in constant memory.
+ * Padding is the GP one (0x80 followed by zero bytes up to a multiple of 8).
+ * 
+ * RETAIL : same result as DaplugCrypto.computeRetailMac(). For a C-MAC, use a null ICV and feed the previous C-MAC before the data. For a R-MAC, use the previous R-MAC as ICV.
+ * FULL_3DES : same result as DaplugCrypto.computeFull3DesMac() (for data whose length is a multiple of 8).
+ */
+public final class DaplugMac {
+	
+	//MAC algorithms
+	public static final int RETAIL = 0, /** Single DES-CBC with the first key half, Triple DES on the last block */
+							FULL_3DES = 1; /** Triple DES-CBC on all blocks */
+	
+	public static final int MAC_LEN = 8;
+	
+	private static final int SCRATCH_LEN = 64 * DaplugDES.BLOCK_LEN;
+	
+	private final int algorithm;
+	private final DaplugDES chainEngine; //CBC engine : first key half (RETAIL) or full key (FULL_3DES)
+	private final DaplugDES finalEngine; //Full key engine used on the last block
+	private final byte[] icv;
+	
+	private final byte[] chain = new byte[DaplugDES.BLOCK_LEN];
+	private final byte[] pending = new byte[DaplugDES.BLOCK_LEN];
+	private final byte[] scratch = new byte[SCRATCH_LEN];
+	private int pendingLen;
+	
+	/**
+	 * Constructs a new DaplugMac object.
+	 * @param algorithm RETAIL or FULL_3DES.
+	 * @param key 16-bytes GP key.
+	 * @param icv 8-bytes initial chaining value. If not specified (null), a zero ICV is used.
+	 * @throws Exception if a parameter is not valid.
+	 */
+	public DaplugMac(int algorithm, byte[] key, byte[] icv) throws Exception{
+		
+		if(algorithm != RETAIL && algorithm != FULL_3DES){
+			throw new Exception("DaplugMac() - Invalid algorithm : " + algorithm);
+		}
+		if(key == null || key.length != 16){
+			throw new Exception("DaplugMac() - Invalid GP key : " + DaplugUtils.byteArrayToHexString(key));
+		}
+		if(icv != null && icv.length != DaplugDES.BLOCK_LEN){
+			throw new Exception("DaplugMac() - Invalid ICV : " + DaplugUtils.byteArrayToHexString(icv));
+		}
+		
+		this.algorithm = algorithm;
+		this.finalEngine = new DaplugDES(key);
+		if(algorithm == RETAIL){
+			byte[] key1 = new byte[8];
+			System.arraycopy(key, 0, key1, 0, 8);
+			this.chainEngine = new DaplugDES(key1);
+		}else{
+			this.chainEngine = this.finalEngine;
+		}
+		this.icv = icv == null ? new byte[DaplugDES.BLOCK_LEN] : icv.clone();
+		
+		reset();
+	}
+	
+	/**
+	 * Restarts a new MAC computation with the same key and ICV.
+	 */
+	public void reset(){
+		System.arraycopy(this.icv, 0, this.chain, 0, DaplugDES.BLOCK_LEN);
+		this.pendingLen = 0;
+	}
+	
+	/**
+	 * Processes the remaining bytes of the given buffer. The buffer position is moved to its limit.
+	 * @param data Data to process.
+	 */
+	public void update(ByteBuffer data){
+		
+		while(data.hasRemaining()){
+			int n = Math.min(data.remaining(), SCRATCH_LEN);
+			data.get(this.scratch, 0, n);
+			update(this.scratch, 0, n);
+		}
+	}
+	
+	/**
+	 * Processes len bytes of the given array.
+	 * @param data Data to process.
+	 * @param off Data offset.
+	 * @param len Data length.
+	 */
+	public void update(byte[] data, int off, int len){
+		
+		//Complete the pending block
+		if(this.pendingLen > 0){
+			int n = Math.min(len, DaplugDES.BLOCK_LEN - this.pendingLen);
+			System.arraycopy(data, off, this.pending, this.pendingLen, n);
+			this.pendingLen += n;
+			off += n;
+			len -= n;
+			if(this.pendingLen < DaplugDES.BLOCK_LEN){
+				return;
+			}
+			chainBlock(this.pending, 0);
+			this.pendingLen = 0;
+		}
+		
+		//Padding always adds at least one byte, so every full block can be chained right away
+		while(len >= DaplugDES.BLOCK_LEN){
+			chainBlock(data, off);
+			off += DaplugDES.BLOCK_LEN;
+			len -= DaplugDES.BLOCK_LEN;
+		}
+		
+		System.arraycopy(data, off, this.pending, 0, len);
+		this.pendingLen = len;
+	}
+	
+	/**
+	 * Processes the given array.
+	 * @param data Data to process.
+	 */
+	public void update(byte[] data){
+		update(data, 0, data.length);
+	}
+	
+	/**
+	 * Pads the processed data, returns the 8-bytes MAC and resets this object for a new computation.
+	 * @return The MAC value.
+	 */
+	public byte[] doFinal(){
+		
+		byte[] mac = new byte[MAC_LEN];
+		
+		this.pending[this.pendingLen] = (byte) 0x80;
+		for(int i = this.pendingLen + 1; i < DaplugDES.BLOCK_LEN; i++){
+			this.pending[i] = 0x00;
+		}
+		for(int i = 0; i < DaplugDES.BLOCK_LEN; i++){
+			mac[i] = (byte) (this.chain[i] ^ this.pending[i]);
+		}
+		this.finalEngine.encryptBlock(mac, 0, mac, 0);
+		
+		reset();
+		
+		return mac;
+	}
+	
+	/**
+	 * Returns the MAC algorithm.
+	 * @return RETAIL or FULL_3DES.
+	 */
+	public int getAlgorithm(){
+		return this.algorithm;
+	}
+	
+	//=== private methods ===
+	
+	private void chainBlock(byte[] data, int off){
+		for(int i = 0; i < DaplugDES.BLOCK_LEN; i++){
+			this.chain[i] ^= data[off + i];
+		}
+		this.chainEngine.encryptBlock(this.chain, 0, this.chain, 0);
+	}
+}
@@ -0,0 +1,78 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.crypto;
+
+/**
+ * A message signature produced by a Merkle batched signer : the HMAC of the tree root, 
+ * plus the inclusion proof of the message (its leaf index, the number of leaves and the sibling hashes from the leaf up to the root).
+ * @see DaplugMerkleTree
+ */
+public final class DaplugMerkleSignature {
+	
+	private final byte[] rootMac;
+	private final int index;
+	private final int count;
+	private final byte[][] proof;
+	
+	/**
+	 * Constructs a new DaplugMerkleSignature object.
+	 * @param rootMac HMAC-SHA1 of the signed root data.
+	 * @param index Leaf index of the message.
+	 * @param count Number of leaves in the tree.
+	 * @param proof Sibling hashes, from the leaf level up.
+	 */
+	public DaplugMerkleSignature(byte[] rootMac, int index, int count, byte[][] proof){
+		if(index < 0 || index >= count){
+			throw new IllegalArgumentException("DaplugMerkleSignature() - Invalid leaf index : " + index);
+		}
+		this.rootMac = rootMac.clone();
+		this.index = index;
+		this.count = count;
+		this.proof = new byte[proof.length][];
+		for(int i = 0; i < proof.length; i++){
+			this.proof[i] = proof[i].clone();
+		}
+	}
+	
+	public byte[] getRootMac(){
+		return this.rootMac.clone();
+	}
+	
+	public int getIndex(){
+		return this.index;
+	}
+	
+	public int getCount(){
+		return this.count;
+	}
+	
+	public byte[][] getProof(){
+		byte[][] p = new byte[this.proof.length][];
+		for(int i = 0; i < p.length; i++){
+			p[i] = this.proof[i].clone();
+		}
+		return p;
+	}
+	
+	byte[][] proof(){
+		return this.proof;
+	}
+	
+	byte[] rootMac(){
+		return this.rootMac;
+	}
+}
@@ -0,0 +1,190 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.crypto;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SHA-256 Merkle tree over a batch of messages, so that one HMAC of the root signs all of them.
+ * Leaves are SHA-256(0x00 || message) and nodes SHA-256(0x01 || left || right) ; the prefixes keep a leaf from being taken for a node. 
+ * The last node of a level with an odd number of nodes goes up unchanged.
+ * The signed data is the root followed by the number of leaves (4 bytes, big endian).
+ */
+public final class DaplugMerkleTree {
+	
+	public static final int HASH_LEN = 32;
+	
+	private static final byte LEAF_PREFIX = 0x00,
+							  NODE_PREFIX = 0x01;
+	
+	private final List<byte[][]> levels = new ArrayList<byte[][]>(); //Leaves first, root last
+	
+	/**
+	 * Builds the tree of the given messages.
+	 * @param messages The messages (at least one).
+	 */
+	public DaplugMerkleTree(List<byte[]> messages){
+		
+		if(messages.isEmpty()){
+			throw new IllegalArgumentException("DaplugMerkleTree() - No message !");
+		}
+		
+		MessageDigest md = sha256();
+		byte[][] level = new byte[messages.size()][];
+		for(int i = 0; i < level.length; i++){
+			level[i] = leafHash(md, messages.get(i));
+		}
+		this.levels.add(level);
+		
+		while(level.length > 1){
+			byte[][] up = new byte[(level.length + 1) / 2][];
+			for(int i = 0; i < level.length / 2; i++){
+				up[i] = nodeHash(md, level[2 * i], level[2 * i + 1]);
+			}
+			if(level.length % 2 != 0){
+				up[up.length - 1] = level[level.length - 1];
+			}
+			this.levels.add(up);
+			level = up;
+		}
+	}
+	
+	/**
+	 * @return The number of leaves.
+	 */
+	public int getCount(){
+		return this.levels.get(0).length;
+	}
+	
+	/**
+	 * @return The root hash.
+	 */
+	public byte[] getRoot(){
+		return this.levels.get(this.levels.size() - 1)[0].clone();
+	}
+	
+	/**
+	 * @return The data to sign : the root followed by the number of leaves.
+	 */
+	public byte[] getSignedData(){
+		return signedData(this.levels.get(this.levels.size() - 1)[0], getCount());
+	}
+	
+	/**
+	 * Returns the inclusion proof of a leaf : the sibling hashes from the leaf level up. Levels where the node has no sibling are skipped.
+	 * @param index Leaf index.
+	 * @return The proof.
+	 */
+	public byte[][] getProof(int index){
+		
+		List<byte[]> proof = new ArrayList<byte[]>();
+		for(int l = 0; l < this.levels.size() - 1; l++){
+			byte[][] level = this.levels.get(l);
+			int sibling = index ^ 1;
+			if(sibling < level.length){
+				proof.add(level[sibling].clone());
+			}
+			index = index / 2;
+		}
+		return proof.toArray(new byte[proof.size()][]);
+	}
+	
+	/**
+	 * Computes the root from a message and its inclusion proof.
+	 * @param message The message.
+	 * @param index Leaf index of the message.
+	 * @param count Number of leaves.
+	 * @param proof Sibling hashes, from the leaf level up.
+	 * @return The root, or null if the proof does not have the expected length.
+	 */
+	public static byte[] computeRoot(byte[] message, int index, int count, byte[][] proof){
+		
+		if(index < 0 || index >= count){
+			return null;
+		}
+		
+		MessageDigest md = sha256();
+		byte[] h = leafHash(md, message);
+		int p = 0;
+		
+		for(int size = count; size > 1; size = (size + 1) / 2){
+			int sibling = index ^ 1;
+			if(sibling < size){
+				if(p == proof.length){
+					return null;
+				}
+				h = (index % 2 == 0) ? nodeHash(md, h, proof[p]) : nodeHash(md, proof[p], h);
+				p++;
+			}
+			index = index / 2;
+		}
+		
+		return p == proof.length ? h : null;
+	}
+	
+	/**
+	 * Verifies a signature produced with the HMAC keyset hmac was created from.
+	 * @param hmac Host side HMAC of the signing keyset (same options and diversifiers).
+	 * @param message The message.
+	 * @param signature Its signature.
+	 * @return true if the message is included in a tree whose signed root matches the signature.
+	 */
+	public static boolean verify(DaplugHostHmac hmac, byte[] message, DaplugMerkleSignature signature){
+		
+		byte[] root = computeRoot(message, signature.getIndex(), signature.getCount(), signature.proof());
+		if(root == null){
+			return false;
+		}
+		
+		byte[] mac = hmac.hmac(signedData(root, signature.getCount()));
+		return MessageDigest.isEqual(mac, signature.rootMac());
+	}
+	
+	//=== private methods ===
+	
+	private static byte[] signedData(byte[] root, int count){
+		byte[] d = new byte[HASH_LEN + 4];
+		System.arraycopy(root, 0, d, 0, HASH_LEN);
+		d[HASH_LEN] = (byte) (count >>> 24);
+		d[HASH_LEN + 1] = (byte) (count >>> 16);
+		d[HASH_LEN + 2] = (byte) (count >>> 8);
+		d[HASH_LEN + 3] = (byte) count;
+		return d;
+	}
+	
+	private static byte[] leafHash(MessageDigest md, byte[] message){
+		md.update(LEAF_PREFIX);
+		return md.digest(message);
+	}
+	
+	private static byte[] nodeHash(MessageDigest md, byte[] left, byte[] right){
+		md.update(NODE_PREFIX);
+		md.update(left);
+		return md.digest(right);
+	}
+	
+	private static MessageDigest sha256(){
+		try{
+			return MessageDigest.getInstance("SHA-256");
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException("DaplugMerkleTree - SHA-256 not available !", e);
+		}
+	}
+}
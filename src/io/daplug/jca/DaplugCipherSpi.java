@@ -0,0 +1,303 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.jca;
+
+import java.security.AlgorithmParameters;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidParameterSpecException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+
+import io.daplug.session.DaplugSession;
+import io.daplug.session.DaplugSessionPool;
+
+/**
+ * "DESede" cipher (ECB or CBC, NoPadding) computed by the dongles of the session pool set with DaplugProvider.setSessionPool().
+ * The key must be a DaplugKeyReference. update() keeps data until a full command can be sent (see DaplugSession.getMaxCryptDataLength()) ; 
+ * in CBC mode, the IV is chained between commands. Decryption is spread over all the pool sessions (see DaplugSessionPool.decrypt()).
+ * In CBC mode, encryption without IV uses a random IV, given by getIV().
+ */
+public final class DaplugCipherSpi extends CipherSpi {
+	
+	private static final int BLOCK_LEN = 8;
+	
+	private boolean cbc = false;
+	private boolean encrypt = true;
+	private DaplugKeyReference key = null;
+	private byte[] initIv = null; //IV given to init(), restored by doFinal()
+	private byte[] iv = null; //Current chaining IV
+	private int chunkLen = 0; //Data sent at once
+	
+	private byte[] pending = new byte[0];
+	private int pendingLen = 0;
+	
+	@Override
+	protected void engineSetMode(String mode) throws NoSuchAlgorithmException{
+		if("ECB".equalsIgnoreCase(mode)){
+			this.cbc = false;
+		}else if("CBC".equalsIgnoreCase(mode)){
+			this.cbc = true;
+		}else{
+			throw new NoSuchAlgorithmException("DaplugCipherSpi - Unsupported mode : " + mode);
+		}
+	}
+	
+	@Override
+	protected void engineSetPadding(String padding) throws NoSuchPaddingException{
+		if(!"NoPadding".equalsIgnoreCase(padding)){
+			throw new NoSuchPaddingException("DaplugCipherSpi - Unsupported padding : " + padding);
+		}
+	}
+	
+	@Override
+	protected int engineGetBlockSize(){
+		return BLOCK_LEN;
+	}
+	
+	@Override
+	protected int engineGetOutputSize(int inputLen){
+		return this.pendingLen + inputLen;
+	}
+	
+	@Override
+	protected byte[] engineGetIV(){
+		return this.initIv == null ? null : this.initIv.clone();
+	}
+	
+	@Override
+	protected AlgorithmParameters engineGetParameters(){
+		if(this.initIv == null){
+			return null;
+		}
+		try{
+			AlgorithmParameters p = AlgorithmParameters.getInstance("DESede");
+			p.init(new IvParameterSpec(this.initIv));
+			return p;
+		}catch(Exception e){
+			return null;
+		}
+	}
+	
+	@Override
+	protected int engineGetKeySize(Key key) throws InvalidKeyException{
+		checkKey(key);
+		return 112;
+	}
+	
+	@Override
+	protected void engineInit(int opmode, Key key, SecureRandom random) throws InvalidKeyException{
+		try{
+			engineInit(opmode, key, (AlgorithmParameterSpec) null, random);
+		}catch(InvalidAlgorithmParameterException e){
+			throw new InvalidKeyException(e.getMessage(), e);
+		}
+	}
+	
+	@Override
+	protected void engineInit(int opmode, Key key, AlgorithmParameters params, SecureRandom random) throws InvalidKeyException, InvalidAlgorithmParameterException{
+		IvParameterSpec spec = null;
+		if(params != null){
+			try{
+				spec = params.getParameterSpec(IvParameterSpec.class);
+			}catch(InvalidParameterSpecException e){
+				throw new InvalidAlgorithmParameterException("DaplugCipherSpi - IV parameters expected !", e);
+			}
+		}
+		engineInit(opmode, key, spec, random);
+	}
+	
+	@Override
+	protected void engineInit(int opmode, Key key, AlgorithmParameterSpec params, SecureRandom random) throws InvalidKeyException, InvalidAlgorithmParameterException{
+		
+		if(opmode != Cipher.ENCRYPT_MODE && opmode != Cipher.DECRYPT_MODE){
+			throw new InvalidParameterException("DaplugCipherSpi - Unsupported operation mode : " + opmode);
+		}
+		DaplugKeyReference k = checkKey(key);
+		if(params != null && !(params instanceof IvParameterSpec)){
+			throw new InvalidAlgorithmParameterException("DaplugCipherSpi - IV parameters expected !");
+		}
+		
+		byte[] newIv = params == null ? null : ((IvParameterSpec) params).getIV();
+		if(!this.cbc){
+			if(newIv != null){
+				throw new InvalidAlgorithmParameterException("DaplugCipherSpi - ECB mode does not use an IV !");
+			}
+		}else if(newIv == null){
+			if(opmode == Cipher.DECRYPT_MODE){
+				throw new InvalidAlgorithmParameterException("DaplugCipherSpi - IV required for CBC decryption !");
+			}
+			newIv = new byte[BLOCK_LEN];
+			(random == null ? new SecureRandom() : random).nextBytes(newIv);
+		}else if(newIv.length != BLOCK_LEN){
+			throw new InvalidAlgorithmParameterException("DaplugCipherSpi - Invalid IV length : " + newIv.length);
+		}
+		
+		this.encrypt = opmode == Cipher.ENCRYPT_MODE;
+		this.key = k;
+		this.initIv = newIv;
+		this.iv = newIv == null ? null : newIv.clone();
+		this.chunkLen = DaplugSession.getMaxCryptDataLength(mode());
+		this.pendingLen = 0;
+	}
+	
+	@Override
+	protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen){
+		
+		append(input, inputOffset, inputLen);
+		int n = this.pendingLen - this.pendingLen % this.chunkLen;
+		if(n == 0){
+			return null;
+		}
+		return process(n);
+	}
+	
+	@Override
+	protected int engineUpdate(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) throws ShortBufferException{
+		
+		int total = this.pendingLen + inputLen;
+		int n = total - total % this.chunkLen;
+		if(output.length - outputOffset < n){
+			throw new ShortBufferException("DaplugCipherSpi - Output buffer too short : " + n + " bytes needed");
+		}
+		
+		byte[] out = engineUpdate(input, inputOffset, inputLen);
+		if(out == null){
+			return 0;
+		}
+		System.arraycopy(out, 0, output, outputOffset, out.length);
+		return out.length;
+	}
+	
+	@Override
+	protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen) throws IllegalBlockSizeException, BadPaddingException{
+		
+		if(input != null){
+			append(input, inputOffset, inputLen);
+		}
+		
+		try{
+			if(this.pendingLen % BLOCK_LEN != 0){
+				throw new IllegalBlockSizeException("DaplugCipherSpi - Data length must be a multiple of " + BLOCK_LEN + " bytes !");
+			}
+			return this.pendingLen == 0 ? new byte[0] : process(this.pendingLen);
+		}finally{
+			this.pendingLen = 0;
+			this.iv = this.initIv == null ? null : this.initIv.clone();
+		}
+	}
+	
+	@Override
+	protected int engineDoFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) throws ShortBufferException, IllegalBlockSizeException, BadPaddingException{
+		
+		int total = this.pendingLen + (input == null ? 0 : inputLen);
+		if(output.length - outputOffset < total){
+			throw new ShortBufferException("DaplugCipherSpi - Output buffer too short : " + total + " bytes needed");
+		}
+		
+		byte[] out = engineDoFinal(input, inputOffset, inputLen);
+		System.arraycopy(out, 0, output, outputOffset, out.length);
+		return out.length;
+	}
+	
+	//=== private methods ===
+	
+	private static DaplugKeyReference checkKey(Key key) throws InvalidKeyException{
+		if(!(key instanceof DaplugKeyReference) || !DaplugKeyReference.DESEDE.equals(key.getAlgorithm())){
+			throw new InvalidKeyException("DaplugCipherSpi - A DESede DaplugKeyReference is expected !");
+		}
+		return (DaplugKeyReference) key;
+	}
+	
+	private int mode(){
+		int mode = this.cbc ? DaplugSession.ENC_CBC : DaplugSession.ENC_ECB;
+		int divs = this.key.getDiversifiers();
+		if(divs == 1){
+			mode = mode | DaplugSession.ENC_1_DIV;
+		}else if(divs == 2){
+			mode = mode | DaplugSession.ENC_2_DIV;
+		}
+		return mode;
+	}
+	
+	private void append(byte[] input, int off, int len){
+		if(this.key == null){
+			throw new IllegalStateException("DaplugCipherSpi - Cipher not initialized !");
+		}
+		if(this.pendingLen + len > this.pending.length){
+			this.pending = Arrays.copyOf(this.pending, Math.max(this.pendingLen + len, 2 * this.pending.length));
+		}
+		System.arraycopy(input, off, this.pending, this.pendingLen, len);
+		this.pendingLen = this.pendingLen + len;
+	}
+	
+	//Sends the first n pending bytes (a multiple of 8) and returns the result
+	private byte[] process(int n){
+		
+		final byte[] data = Arrays.copyOf(this.pending, n);
+		System.arraycopy(this.pending, n, this.pending, 0, this.pendingLen - n);
+		this.pendingLen = this.pendingLen - n;
+		
+		final DaplugKeyReference k = this.key;
+		final int mode = mode();
+		final byte[] chainIv = this.iv;
+		DaplugSessionPool pool = DaplugProvider.getSessionPool();
+		if(pool == null){
+			throw new IllegalStateException("DaplugCipherSpi - No session pool, see DaplugProvider.setSessionPool() !");
+		}
+		
+		byte[] out;
+		try{
+			if(this.encrypt){
+				out = pool.submit(new DaplugSessionPool.Task<byte[]>(){
+					@Override
+					public byte[] run(DaplugSession session) throws Exception{
+						return session.encryptBuffer(k.getKeyVersion(), k.getKeyId(), mode, chainIv, k.getDiv1(), k.getDiv2(), data);
+					}
+				}).get();
+			}else{
+				out = pool.decrypt(k.getKeyVersion(), k.getKeyId(), mode, chainIv, k.getDiv1(), k.getDiv2(), data);
+			}
+		}catch(ExecutionException e){
+			throw new ProviderException("DaplugCipherSpi - " + e.getCause().getMessage(), e.getCause());
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new ProviderException("DaplugCipherSpi - Interrupted !", e);
+		}catch(Exception e){
+			throw new ProviderException("DaplugCipherSpi - " + e.getMessage(), e);
+		}
+		
+		if(this.cbc){
+			this.iv = Arrays.copyOfRange(this.encrypt ? out : data, n - BLOCK_LEN, n);
+		}
+		return out;
+	}
+}
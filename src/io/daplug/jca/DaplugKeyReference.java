@@ -0,0 +1,109 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.jca;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Reference to a key held by the dongles : the key value never leaves them, so getEncoded() returns null.
+ * For "DESede" (Cipher), the key is the key keyId (1, 2 or 3) of keyset keyVersion ; for "HmacSHA1" (Mac), it is the HMAC keyset keyVersion (keyId is not used).
+ * Diversifiers are optional ; div2 requires div1.
+ */
+public final class DaplugKeyReference implements SecretKey {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public static final String DESEDE = "DESede",
+							   HMAC_SHA1 = "HmacSHA1";
+	
+	private final String algorithm;
+	private final int keyVersion;
+	private final int keyId;
+	private final byte[] div1;
+	private final byte[] div2;
+	
+	/**
+	 * Constructs a new DaplugKeyReference object.
+	 * @param algorithm DESEDE or HMAC_SHA1.
+	 * @param keyVersion Keyset version.
+	 * @param keyId The index of the keyset key (1,2 or 3) for DESEDE, ignored for HMAC_SHA1.
+	 * @param div1 First diversifier (optional, 16 bytes).
+	 * @param div2 Second diversifier (optional, 16 bytes).
+	 */
+	public DaplugKeyReference(String algorithm, int keyVersion, int keyId, byte[] div1, byte[] div2){
+		
+		if(!DESEDE.equals(algorithm) && !HMAC_SHA1.equals(algorithm)){
+			throw new IllegalArgumentException("DaplugKeyReference() - Invalid algorithm : " + algorithm);
+		}
+		if(DESEDE.equals(algorithm) && (keyId < 1 || keyId > 3)){
+			throw new IllegalArgumentException("DaplugKeyReference() - Invalid key id : " + keyId);
+		}
+		if((div1 != null && div1.length != 16) || (div2 != null && (div2.length != 16 || div1 == null))){
+			throw new IllegalArgumentException("DaplugKeyReference() - Invalid diversifiers !");
+		}
+		
+		this.algorithm = algorithm;
+		this.keyVersion = keyVersion;
+		this.keyId = keyId;
+		this.div1 = div1 == null ? null : div1.clone();
+		this.div2 = div2 == null ? null : div2.clone();
+	}
+	
+	@Override
+	public String getAlgorithm(){
+		return this.algorithm;
+	}
+	
+	/**
+	 * @return null, the key value is not known.
+	 */
+	@Override
+	public String getFormat(){
+		return null;
+	}
+	
+	/**
+	 * @return null, the key value is not known.
+	 */
+	@Override
+	public byte[] getEncoded(){
+		return null;
+	}
+	
+	public int getKeyVersion(){
+		return this.keyVersion;
+	}
+	
+	public int getKeyId(){
+		return this.keyId;
+	}
+	
+	public byte[] getDiv1(){
+		return this.div1 == null ? null : this.div1.clone();
+	}
+	
+	public byte[] getDiv2(){
+		return this.div2 == null ? null : this.div2.clone();
+	}
+	
+	/**
+	 * @return The number of diversifiers (0, 1 or 2).
+	 */
+	public int getDiversifiers(){
+		return this.div2 != null ? 2 : (this.div1 != null ? 1 : 0);
+	}
+}
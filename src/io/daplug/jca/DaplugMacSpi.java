@@ -0,0 +1,115 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.jca;
+
+import java.io.ByteArrayOutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.ProviderException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.concurrent.ExecutionException;
+
+import javax.crypto.MacSpi;
+
+import io.daplug.session.DaplugSession;
+import io.daplug.session.DaplugSessionPool;
+
+/**
+ * "HmacSHA1" computed by the dongles of the session pool set with DaplugProvider.setSessionPool(), with DaplugSession.hmac().
+ * The key must be a DaplugKeyReference. The dongle signs a message in a single command, so the message is kept until doFinal() 
+ * and cannot be longer than MAX_REAL_DATA_SIZE bytes minus 16 bytes per diversifier.
+ */
+public final class DaplugMacSpi extends MacSpi {
+	
+	private static final int MAC_LEN = 20;
+	
+	private DaplugKeyReference key = null;
+	private int maxLen = 0;
+	private final ByteArrayOutputStream message = new ByteArrayOutputStream();
+	
+	@Override
+	protected int engineGetMacLength(){
+		return MAC_LEN;
+	}
+	
+	@Override
+	protected void engineInit(Key key, AlgorithmParameterSpec params) throws InvalidKeyException, InvalidAlgorithmParameterException{
+		if(!(key instanceof DaplugKeyReference) || !DaplugKeyReference.HMAC_SHA1.equals(key.getAlgorithm())){
+			throw new InvalidKeyException("DaplugMacSpi - A HmacSHA1 DaplugKeyReference is expected !");
+		}
+		if(params != null){
+			throw new InvalidAlgorithmParameterException("DaplugMacSpi - No parameter expected !");
+		}
+		this.key = (DaplugKeyReference) key;
+		this.maxLen = DaplugSession.MAX_REAL_DATA_SIZE - 16 * this.key.getDiversifiers();
+		this.message.reset();
+	}
+	
+	@Override
+	protected void engineUpdate(byte input){
+		engineUpdate(new byte[]{input}, 0, 1);
+	}
+	
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int len){
+		if(this.message.size() + len > this.maxLen){
+			throw new ProviderException("DaplugMacSpi - Message longer than " + this.maxLen + " bytes !");
+		}
+		this.message.write(input, offset, len);
+	}
+	
+	@Override
+	protected byte[] engineDoFinal(){
+		
+		final byte[] data = this.message.toByteArray();
+		this.message.reset();
+		
+		final DaplugKeyReference k = this.key;
+		int divs = k.getDiversifiers();
+		final int options = divs == 2 ? DaplugSession.OTP_2_DIV : (divs == 1 ? DaplugSession.OTP_1_DIV : DaplugSession.OTP_0_DIV);
+		DaplugSessionPool pool = DaplugProvider.getSessionPool();
+		if(pool == null){
+			throw new IllegalStateException("DaplugMacSpi - No session pool, see DaplugProvider.setSessionPool() !");
+		}
+		
+		byte[] mac;
+		try{
+			mac = pool.submit(new DaplugSessionPool.Task<byte[]>(){
+				@Override
+				public byte[] run(DaplugSession session) throws Exception{
+					return session.hmac(k.getKeyVersion(), options, k.getDiv1(), k.getDiv2(), data);
+				}
+			}).get();
+		}catch(ExecutionException e){
+			throw new ProviderException("DaplugMacSpi - " + e.getCause().getMessage(), e.getCause());
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new ProviderException("DaplugMacSpi - Interrupted !", e);
+		}
+		
+		if(mac == null || mac.length != MAC_LEN){
+			throw new ProviderException("DaplugMacSpi - HMAC signature failed !");
+		}
+		return mac;
+	}
+	
+	@Override
+	protected void engineReset(){
+		this.message.reset();
+	}
+}
@@ -0,0 +1,94 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.jca;
+
+import java.security.Provider;
+
+import io.daplug.session.DaplugEntropyPool;
+import io.daplug.session.DaplugSessionPool;
+
+/**
+ * JCA provider giving access to Daplug dongles : 
+ * SecureRandom "Daplug", drawing from a DaplugEntropyPool, 
+ * Cipher "DESede" (ECB or CBC, NoPadding) and Mac "HmacSHA1", computed by the dongles of a DaplugSessionPool with DaplugKeyReference keys.
+ * The entropy pool and the session pool must be set with setEntropyPool() and setSessionPool() before use, for example : 
+ * <pre>
+ * DaplugProvider.setSessionPool(sessionPool);
+ * DaplugProvider.setEntropyPool(new DaplugEntropyPool(sessionPool));
+ * Security.addProvider(new DaplugProvider());
+ * SecureRandom random = SecureRandom.getInstance("Daplug", "Daplug");
+ * Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding", "Daplug");
+ * cipher.init(Cipher.ENCRYPT_MODE, new DaplugKeyReference(DaplugKeyReference.DESEDE, 0x30, 1, null, null), new IvParameterSpec(iv));
+ * </pre>
+ * Some Java runtimes only accept Cipher and Mac implementations from signed providers.
+ * Random bytes given by the SecureRandom are never printed by the session exchange log ; use sessions with SEC_LEVEL_R_ENC so that 
+ * they are not sent in clear over USB either.
+ */
+public final class DaplugProvider extends Provider {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public static final String NAME = "Daplug";
+	
+	private static volatile DaplugEntropyPool entropyPool = null;
+	private static volatile DaplugSessionPool sessionPool = null;
+	
+	/**
+	 * Constructs a new DaplugProvider object.
+	 */
+	public DaplugProvider(){
+		super(NAME, 1.0, "Daplug dongles provider (SecureRandom, DESede Cipher, HmacSHA1 Mac)");
+		put("SecureRandom.Daplug", DaplugSecureRandomSpi.class.getName());
+		put("SecureRandom.Daplug ThreadSafe", "true");
+		put("Cipher.DESede", DaplugCipherSpi.class.getName());
+		put("Cipher.DESede SupportedModes", "ECB|CBC");
+		put("Cipher.DESede SupportedPaddings", "NOPADDING");
+		put("Cipher.DESede SupportedKeyClasses", DaplugKeyReference.class.getName());
+		put("Mac.HmacSHA1", DaplugMacSpi.class.getName());
+		put("Mac.HmacSHA1 SupportedKeyClasses", DaplugKeyReference.class.getName());
+	}
+	
+	/**
+	 * Sets the entropy pool used by the SecureRandom instances of this provider.
+	 * @param pool The entropy pool, or null.
+	 */
+	public static void setEntropyPool(DaplugEntropyPool pool){
+		entropyPool = pool;
+	}
+	
+	/**
+	 * Returns the entropy pool set by setEntropyPool(), or null.
+	 */
+	public static DaplugEntropyPool getEntropyPool(){
+		return entropyPool;
+	}
+	
+	/**
+	 * Sets the sessions used by the Cipher and Mac instances of this provider. Their dongles must hold the keysets referenced by the keys.
+	 * @param pool The session pool, or null.
+	 */
+	public static void setSessionPool(DaplugSessionPool pool){
+		sessionPool = pool;
+	}
+	
+	/**
+	 * Returns the session pool set by setSessionPool(), or null.
+	 */
+	public static DaplugSessionPool getSessionPool(){
+		return sessionPool;
+	}
+}
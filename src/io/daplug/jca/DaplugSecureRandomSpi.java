@@ -0,0 +1,55 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.jca;
+
+import java.security.SecureRandomSpi;
+
+import io.daplug.session.DaplugEntropyPool;
+
+/**
+ * SecureRandom implementation drawing from the entropy pool set with DaplugProvider.setEntropyPool().
+ * Random bytes never wait for a dongle : when the pool is empty, bytes come from a host SecureRandom (see DaplugEntropyPool.nextBytes()).
+ * Seeding is ignored, dongle random bytes cannot be seeded.
+ */
+public final class DaplugSecureRandomSpi extends SecureRandomSpi {
+	
+	private static final long serialVersionUID = 1L;
+	
+	@Override
+	protected void engineSetSeed(byte[] seed){
+	}
+	
+	@Override
+	protected void engineNextBytes(byte[] bytes){
+		pool().nextBytes(bytes);
+	}
+	
+	@Override
+	protected byte[] engineGenerateSeed(int numBytes){
+		byte[] seed = new byte[numBytes];
+		pool().nextBytes(seed);
+		return seed;
+	}
+	
+	private static DaplugEntropyPool pool(){
+		DaplugEntropyPool p = DaplugProvider.getEntropyPool();
+		if(p == null){
+			throw new IllegalStateException("DaplugSecureRandomSpi - No entropy pool, see DaplugProvider.setEntropyPool() !");
+		}
+		return p;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.keyset;
+
+/**
+ * A compact store of diversified keysets, as produced by a bulk diversification.
+ * All the keys are kept in one preallocated array (48 bytes per keyset) and all the KCVs in another one (9 bytes per keyset).
+ * Version, usage and access are the ones of the master keyset.
+ * Entry i corresponds to the i-th diversifier.
+ */
+public final class DaplugDiversifiedKeysets {
+	
+	public static final int KEYS_LEN = 3 * DaplugKeyset.GP_KEY_LEN; //ENC, MAC and DEK keys
+	public static final int KCV_LEN = 3;
+	public static final int KCVS_LEN = 3 * KCV_LEN;
+	
+	private final int version, usage, access;
+	private final int size;
+	private final byte[] keys;
+	private final byte[] kcvs;
+	
+	/**
+	 * Constructs a new empty store.
+	 * @param master The master keyset (version, usage and access are copied).
+	 * @param size Number of diversified keysets.
+	 */
+	public DaplugDiversifiedKeysets(DaplugKeyset master, int size){
+		
+		this.version = master.getVersion();
+		this.usage = master.getUsage();
+		this.access = master.getAccess();
+		this.size = size;
+		this.keys = new byte[size * KEYS_LEN];
+		this.kcvs = new byte[size * KCVS_LEN];
+	}
+	
+	/**
+	 * Returns the number of diversified keysets.
+	 * @return The number of entries.
+	 */
+	public int size(){
+		return this.size;
+	}
+	
+	/**
+	 * Returns a diversified key value.
+	 * @param i Entry index.
+	 * @param index Key index in the keyset (0, 1 or 2).
+	 * @return A copy of the 16-bytes key value.
+	 */
+	public byte[] getKey(int i, int index){
+		
+		byte[] key = new byte[DaplugKeyset.GP_KEY_LEN];
+		System.arraycopy(this.keys, keyOffset(i, index), key, 0, DaplugKeyset.GP_KEY_LEN);
+		
+		return key;
+	}
+	
+	/**
+	 * Returns the KCV of a diversified key.
+	 * @param i Entry index.
+	 * @param index Key index in the keyset (0, 1 or 2).
+	 * @return A copy of the 3-bytes KCV.
+	 */
+	public byte[] getKCV(int i, int index){
+		
+		byte[] kcv = new byte[KCV_LEN];
+		System.arraycopy(this.kcvs, kcvOffset(i, index), kcv, 0, KCV_LEN);
+		
+		return kcv;
+	}
+	
+	/**
+	 * Returns a diversified keyset as a DaplugKeyset object.
+	 * @param i Entry index.
+	 * @return A new DaplugKeyset.
+	 */
+	public DaplugKeyset getKeyset(int i){
+		return new DaplugKeyset(this.version, this.usage, this.access, getKey(i, 0), getKey(i, 1), getKey(i, 2));
+	}
+	
+	/**
+	 * Returns the backing keys array. Entry i, key index k starts at offset (i * 48 + k * 16).
+	 * Intended for the bulk diversifier ; the array is not copied.
+	 * @return The keys array.
+	 */
+	public byte[] getKeysArray(){
+		return this.keys;
+	}
+	
+	/**
+	 * Returns the backing KCVs array. Entry i, key index k starts at offset (i * 9 + k * 3).
+	 * Intended for the bulk diversifier ; the array is not copied.
+	 * @return The KCVs array.
+	 */
+	public byte[] getKCVsArray(){
+		return this.kcvs;
+	}
+	
+	//=== private methods ===
+	
+	private int keyOffset(int i, int index){
+		checkIndexes(i, index);
+		return i * KEYS_LEN + index * DaplugKeyset.GP_KEY_LEN;
+	}
+	
+	private int kcvOffset(int i, int index){
+		checkIndexes(i, index);
+		return i * KCVS_LEN + index * KCV_LEN;
+	}
+	
+	private void checkIndexes(int i, int index){
+		if(i < 0 || i >= this.size){
+			throw new IndexOutOfBoundsException("Invalid entry index : " + i);
+		}
+		if(index < 0 || index > 2){
+			throw new IndexOutOfBoundsException("Invalid key index : " + index);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.keyset;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import io.daplug.utils.DaplugUtils;
+
+/**
+ * Registry of the keysets last written to each dongle, identified by its serial. 
+ * For each keyset version, it holds the usage (including the parent flag), the access and the KCVs of the three keys ; no key value is stored.
+ * DaplugSession.putKey() uses it to skip uploads which would not change anything.
+ * 
+ * The registry is persisted as a properties file : serial.version = usage:access:KCV1KCV2KCV3 (hex strings). 
+ * It is saved after each change.
+ */
+public final class DaplugKeyRegistry {
+	
+	private final File file;
+	private final Properties entries;
+	
+	/**
+	 * Constructs a new DaplugKeyRegistry object, loading the given file if it exists.
+	 * @param file The registry file, or null for a registry kept in memory only.
+	 * @throws IOException if the file cannot be read.
+	 */
+	public DaplugKeyRegistry(File file) throws IOException{
+		
+		this.file = file;
+		this.entries = new Properties();
+		
+		if(file != null && file.exists()){
+			InputStream in = new FileInputStream(file);
+			try{
+				this.entries.load(in);
+			}finally{
+				in.close();
+			}
+		}
+	}
+	
+	/**
+	 * Checks if the registry holds exactly the given keyset for the given dongle.
+	 * @param serial Dongle serial.
+	 * @param version Keyset version.
+	 * @param usage Keyset usage as written (including the parent flag).
+	 * @param access Keyset access.
+	 * @param kcvs The three 3-bytes KCVs, concatenated.
+	 * @return true if the same keyset was last written.
+	 */
+	public synchronized boolean matches(byte[] serial, int version, int usage, int access, byte[] kcvs){
+		String value = this.entries.getProperty(entryName(serial, version));
+		return value != null && value.equals(entryValue(usage, access, kcvs));
+	}
+	
+	/**
+	 * Returns the KCVs last written for a keyset.
+	 * @param serial Dongle serial.
+	 * @param version Keyset version.
+	 * @return The three KCVs concatenated, or null if the keyset is not registered.
+	 */
+	public synchronized byte[] getKCVs(byte[] serial, int version){
+		String value = this.entries.getProperty(entryName(serial, version));
+		if(value == null){
+			return null;
+		}
+		return DaplugUtils.hexStringToByteArray(value.substring(value.lastIndexOf(':') + 1));
+	}
+	
+	/**
+	 * Checks if a keyset is registered for the given dongle.
+	 * @param serial Dongle serial.
+	 * @param version Keyset version.
+	 */
+	public synchronized boolean contains(byte[] serial, int version){
+		return this.entries.containsKey(entryName(serial, version));
+	}
+	
+	/**
+	 * Registers a keyset written to a dongle.
+	 * @param serial Dongle serial.
+	 * @param version Keyset version.
+	 * @param usage Keyset usage as written (including the parent flag).
+	 * @param access Keyset access.
+	 * @param kcvs The three 3-bytes KCVs, concatenated.
+	 * @throws IOException if the registry file cannot be written.
+	 */
+	public synchronized void record(byte[] serial, int version, int usage, int access, byte[] kcvs) throws IOException{
+		this.entries.setProperty(entryName(serial, version), entryValue(usage, access, kcvs));
+		save();
+	}
+	
+	/**
+	 * Removes a keyset from the registry (deleted keyset, or content unknown).
+	 * @param serial Dongle serial.
+	 * @param version Keyset version.
+	 * @throws IOException if the registry file cannot be written.
+	 */
+	public synchronized void remove(byte[] serial, int version) throws IOException{
+		if(this.entries.remove(entryName(serial, version)) != null){
+			save();
+		}
+	}
+	
+	/**
+	 * Removes all the keysets of a dongle from the registry.
+	 * @param serial Dongle serial.
+	 * @throws IOException if the registry file cannot be written.
+	 */
+	public synchronized void removeAll(byte[] serial) throws IOException{
+		String prefix = DaplugUtils.byteArrayToHexString(serial) + ".";
+		boolean changed = false;
+		for(Object name : this.entries.keySet().toArray()){
+			if(((String) name).startsWith(prefix)){
+				this.entries.remove(name);
+				changed = true;
+			}
+		}
+		if(changed){
+			save();
+		}
+	}
+	
+	/**
+	 * Writes the registry to its file.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public synchronized void save() throws IOException{
+		
+		if(this.file == null){
+			return;
+		}
+		
+		//Write a temporary file first, so a crash never leaves a truncated registry
+		File tmp = new File(this.file.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try{
+			this.entries.store(out, "Daplug key registry");
+		}finally{
+			out.close();
+		}
+		if(!tmp.renameTo(this.file)){
+			this.file.delete();
+			if(!tmp.renameTo(this.file)){
+				throw new IOException("save() - Cannot write key registry " + this.file.getPath() + " !");
+			}
+		}
+	}
+	
+	//=== private methods ===
+	
+	private static String entryName(byte[] serial, int version){
+		return DaplugUtils.byteArrayToHexString(serial) + "." + String.format("%02X", version & 0xFF);
+	}
+	
+	private static String entryValue(int usage, int access, byte[] kcvs){
+		return String.format("%02X", usage & 0xFF) + ":" + String.format("%04X", access & 0xFFFF) + ":" + DaplugUtils.byteArrayToHexString(kcvs);
+	}
+}
@@ -0,0 +1,171 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.session;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.daplug.utils.DaplugFuture;
+import io.daplug.utils.DaplugUtils;
+
+/**
+ * Single-flight access to a session shared by several threads : when threads ask for the same result at the same time, 
+ * only the first one exchanges with the dongle and all of them get its result. A request arriving after the exchange ended starts a new one.
+ * Exchanges are serialized on the session monitor ; other threads using the session directly must synchronize on it too.
+ * 
+ * Only operations which do not change the dongle state and whose result only depends on the request can be coalesced : 
+ * hmac(), exportKey() and readData() (at an absolute path). Operations changing a counter or expected to give a new value each time 
+ * (hotp(), totp(), getRandom()) and any write must never be coalesced, and are not offered here : use the session directly.
+ */
+public class DaplugCoalescer {
+	
+	private interface Call {
+		byte[] run(DaplugSession session) throws Exception;
+	}
+	
+	private final DaplugSession session;
+	private final ConcurrentHashMap<String, DaplugFuture<byte[]>> inFlight = new ConcurrentHashMap<String, DaplugFuture<byte[]>>();
+	private final AtomicLong exchanges = new AtomicLong(),
+							 coalesced = new AtomicLong();
+	
+	/**
+	 * Constructs a new DaplugCoalescer object.
+	 * @param session An opened DaplugSession.
+	 */
+	public DaplugCoalescer(DaplugSession session){
+		this.session = session;
+	}
+	
+	/**
+	 * Signs data with DaplugSession.hmac(), sharing the exchange with identical concurrent requests.
+	 * @see DaplugSession#hmac(int, int, byte[], byte[], byte[])
+	 * @throws Exception if the signature failed.
+	 */
+	public byte[] hmac(final int keysetVersion, final int options, final byte[] div1, final byte[] div2, final byte[] inData) throws Exception{
+		String key = "H/" + String.format("%02X%02X", keysetVersion & 0xFF, options & 0xFF) + "/" + hex(div1) + "/" + hex(div2) + "/" + hex(inData);
+		return call(key, "hmac()", new Call(){
+			@Override
+			public byte[] run(DaplugSession s) throws Exception{
+				return s.hmac(keysetVersion, options, div1, div2, inData);
+			}
+		});
+	}
+	
+	/**
+	 * Exports the transient keyset with DaplugSession.exportKey(), sharing the exchange with identical concurrent requests.
+	 * @see DaplugSession#exportKey(int, int)
+	 * @throws Exception if the export failed.
+	 */
+	public byte[] exportKey(final int keyVersion, final int index) throws Exception{
+		String key = "X/" + String.format("%02X%02X", keyVersion & 0xFF, index & 0xFF);
+		return call(key, "exportKey()", new Call(){
+			@Override
+			public byte[] run(DaplugSession s) throws Exception{
+				return s.exportKey(keyVersion, index);
+			}
+		});
+	}
+	
+	/**
+	 * Selects a file and reads data with DaplugSession.readData(), sharing the exchanges with identical concurrent requests.
+	 * @param path Absolute path of the EF, for example {0x3F00, 0x2214, 0x0036}.
+	 * @param offset Read offset.
+	 * @param length Read length.
+	 * @return The data read.
+	 * @throws Exception if the file cannot be selected or read.
+	 */
+	public byte[] readData(final int[] path, final int offset, final int length) throws Exception{
+		
+		StringBuilder sb = new StringBuilder("R/");
+		for(int id : path){
+			sb.append(String.format("%04X:", id & 0xFFFF));
+		}
+		sb.append(String.format("/%04X/%04X", offset, length));
+		
+		final int[] p = path.clone();
+		return call(sb.toString(), "readData()", new Call(){
+			@Override
+			public byte[] run(DaplugSession s) throws Exception{
+				s.selectPath(p);
+				int[] selected = s.getSelectedPath();
+				if(!Arrays.equals(selected, p)){
+					throw new Exception("DaplugCoalescer.readData() - Cannot select file !");
+				}
+				return s.readData(offset, length);
+			}
+		});
+	}
+	
+	/**
+	 * Returns the number of dongle exchanges made (one per coalesced group).
+	 */
+	public long getExchanges(){
+		return this.exchanges.get();
+	}
+	
+	/**
+	 * Returns the number of requests served by another request exchange.
+	 */
+	public long getCoalesced(){
+		return this.coalesced.get();
+	}
+	
+	//=== private methods ===
+	
+	private byte[] call(String key, String functionName, Call c) throws Exception{
+		
+		DaplugFuture<byte[]> f = new DaplugFuture<byte[]>();
+		DaplugFuture<byte[]> running = this.inFlight.putIfAbsent(key, f);
+		
+		if(running != null){
+			//Identical request in flight : wait for its result
+			this.coalesced.incrementAndGet();
+			try{
+				return running.get().clone();
+			}catch(ExecutionException e){
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+		
+		try{
+			byte[] result;
+			synchronized(this.session){
+				this.exchanges.incrementAndGet();
+				result = c.run(this.session);
+			}
+			if(result == null){
+				throw new Exception("DaplugCoalescer." + functionName + " - Operation failed !");
+			}
+			f.set(result);
+			return result.clone();
+		}catch(Exception e){
+			f.setException(e);
+			throw e;
+		}finally{
+			if(!f.isDone()){
+				f.setException(new Exception("DaplugCoalescer." + functionName + " - Operation aborted !"));
+			}
+			this.inFlight.remove(key, f);
+		}
+	}
+	
+	private static String hex(byte[] b){
+		return b == null ? "" : DaplugUtils.byteArrayToHexString(b);
+	}
+}
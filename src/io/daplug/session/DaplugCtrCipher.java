@@ -0,0 +1,183 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.session;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+
+import io.daplug.utils.DaplugFuture;
+
+/**
+ * CTR mode on top of the dongle ECB encryption : counter blocks are encrypted by the dongles of a DaplugSessionPool, 
+ * and the resulting keystream is XORed with the data on the host. Encryption and decryption are the same operation.
+ * The counter is an 8 bytes big endian value, incremented for each block ; a counter value must never be used twice with the same key.
+ * Keystream segments (one full ECB command each) are requested ahead of use, so that all the dongles of the pool work at the same time.
+ * A DaplugCtrCipher is not thread-safe. Once a keystream segment cannot be generated, the cipher is out of sync and every later update() fails.
+ */
+public class DaplugCtrCipher {
+	
+	public static final int DEFAULT_SEGMENTS_PER_SESSION = 2; //Keystream segments requested ahead, per pool session
+	
+	private final DaplugSessionPool pool;
+	private final int keyVersion;
+	private final int keyId;
+	private final int mode;
+	private final byte[] div1;
+	private final byte[] div2;
+	private final int segmentLen;
+	private final int prefetch;
+	
+	private long counter; //Next counter block to request
+	private final ArrayDeque<DaplugFuture<byte[]>> segments = new ArrayDeque<DaplugFuture<byte[]>>();
+	private byte[] keystream = null;
+	private int keystreamPos = 0;
+	private Exception failure = null; //Keystream failure, the cipher cannot be used anymore
+	
+	/**
+	 * Constructs a new DaplugCtrCipher object, with DEFAULT_SEGMENTS_PER_SESSION segments requested ahead per session.
+	 * @see #DaplugCtrCipher(DaplugSessionPool, int, int, int, byte[], byte[], byte[], int)
+	 */
+	public DaplugCtrCipher(DaplugSessionPool pool, int keyVersion, int keyId, int mode, byte[] div1, byte[] div2, byte[] counter) throws Exception{
+		this(pool, keyVersion, keyId, mode, div1, div2, counter, DEFAULT_SEGMENTS_PER_SESSION * pool.size());
+	}
+	
+	/**
+	 * Constructs a new DaplugCtrCipher object.
+	 * @param pool Sessions on dongles holding the keyset.
+	 * @param keyVersion Encryption DaplugKeyset version.
+	 * @param keyId The index of the keyset key to use (1,2 or 3).
+	 * @param mode ENC_ECB, possibly with ENC_1_DIV or ENC_2_DIV.
+	 * @param div1 First diversifier (optional).
+	 * @param div2 Second diversifier (optional).
+	 * @param counter Initial counter block (8 bytes).
+	 * @param prefetch Number of keystream segments requested ahead.
+	 * @throws Exception if the mode is not ECB or the counter block is invalid.
+	 */
+	public DaplugCtrCipher(DaplugSessionPool pool, int keyVersion, int keyId, int mode, byte[] div1, byte[] div2, byte[] counter, int prefetch) throws Exception{
+		
+		if((mode & DaplugSession.ENC_ECB) == 0 || (mode & DaplugSession.ENC_CBC) != 0){
+			throw new Exception("DaplugCtrCipher() - Counter blocks must be encrypted in ECB mode !");
+		}
+		if(counter == null || counter.length != 8){
+			throw new Exception("DaplugCtrCipher() - Invalid counter block !");
+		}
+		if(prefetch < 1){
+			throw new Exception("DaplugCtrCipher() - Invalid prefetch : " + prefetch);
+		}
+		
+		this.pool = pool;
+		this.keyVersion = keyVersion;
+		this.keyId = keyId;
+		this.mode = mode;
+		this.div1 = div1;
+		this.div2 = div2;
+		this.segmentLen = DaplugSession.getMaxCryptDataLength(mode);
+		this.prefetch = prefetch;
+		
+		long c = 0;
+		for(int i = 0; i < 8; i++){
+			c = (c << 8) | (counter[i] & 0xFF);
+		}
+		this.counter = c;
+	}
+	
+	/**
+	 * Encrypts or decrypts data. Successive calls continue the keystream.
+	 * @param in Input data.
+	 * @param inOff Input offset.
+	 * @param len Number of bytes to process.
+	 * @param out Output array (may be the input array).
+	 * @param outOff Output offset.
+	 * @throws Exception if the keystream could not be generated, now or by a previous call.
+	 */
+	public void update(byte[] in, int inOff, int len, byte[] out, int outOff) throws Exception{
+		
+		if(this.failure != null){
+			throw new Exception("update() - Keystream lost by a previous failure : " + this.failure.getMessage());
+		}
+		
+		while(len > 0){
+			if(this.keystream == null || this.keystreamPos == this.keystream.length){
+				nextSegment();
+			}
+			int n = Math.min(len, this.keystream.length - this.keystreamPos);
+			for(int i = 0; i < n; i++){
+				out[outOff + i] = (byte) (in[inOff + i] ^ this.keystream[this.keystreamPos + i]);
+			}
+			this.keystreamPos = this.keystreamPos + n;
+			inOff = inOff + n;
+			outOff = outOff + n;
+			len = len - n;
+		}
+	}
+	
+	/**
+	 * Encrypts or decrypts data. Successive calls continue the keystream.
+	 * @param data Input data.
+	 * @return The result.
+	 * @throws Exception if the keystream could not be generated, now or by a previous call.
+	 */
+	public byte[] update(byte[] data) throws Exception{
+		byte[] out = new byte[data.length];
+		update(data, 0, data.length, out, 0);
+		return out;
+	}
+	
+	//=== private methods ===
+	
+	private void nextSegment() throws Exception{
+		
+		while(this.segments.size() < this.prefetch){
+			this.segments.add(requestSegment());
+		}
+		
+		//The counter range of a failed segment is consumed : the following keystream would be out of sync
+		try{
+			this.keystream = this.segments.poll().get();
+		}catch(ExecutionException e){
+			this.keystream = null;
+			this.failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			throw this.failure;
+		}catch(Exception e){
+			this.keystream = null;
+			this.failure = e;
+			throw e;
+		}
+		this.keystreamPos = 0;
+		
+		this.segments.add(requestSegment());
+	}
+	
+	private DaplugFuture<byte[]> requestSegment(){
+		
+		final byte[] blocks = new byte[this.segmentLen];
+		for(int off = 0; off < blocks.length; off = off + 8){
+			long c = this.counter++;
+			for(int i = 7; i >= 0; i--){
+				blocks[off + i] = (byte) c;
+				c = c >>> 8;
+			}
+		}
+		
+		return this.pool.submit(new DaplugSessionPool.Task<byte[]>(){
+			@Override
+			public byte[] run(DaplugSession session) throws Exception{
+				return session.encryptBuffer(keyVersion, keyId, mode, null, div1, div2, blocks);
+			}
+		});
+	}
+}
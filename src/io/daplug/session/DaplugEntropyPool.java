@@ -0,0 +1,266 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.session;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of dongle generated random bytes. The pool is refilled in the background by the sessions of a DaplugSessionPool, 
+ * with full size getRandom() chunks (MAX_REAL_DATA_SIZE bytes), into a lock-free ring buffer of chunks.
+ * Consumers never wait for the dongles : take() returns what is available, and nextBytes() completes the missing part with a host SecureRandom.
+ * Each byte is given only once. A chunk partly used by a thread is kept for its next calls.
+ * Random chunks are never printed by the session exchange log. They are sent in clear by the dongle unless the pool sessions use 
+ * a secure channel with SEC_LEVEL_R_ENC.
+ */
+public final class DaplugEntropyPool {
+	
+	public static final int CHUNK_LEN = DaplugSession.MAX_REAL_DATA_SIZE;
+	public static final int DEFAULT_CHUNKS = 64;
+	
+	private static final class Remainder {
+		byte[] chunk = null;
+		int pos = 0;
+	}
+	
+	private final DaplugSessionPool pool;
+	private final int mask;
+	
+	//Bounded multi-producer multi-consumer ring : a slot sequence tells if the slot is ready to be written or read
+	private final AtomicReferenceArray<byte[]> slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLong writePos = new AtomicLong(), 
+							 readPos = new AtomicLong();
+	
+	private final AtomicInteger inFlight = new AtomicInteger(); //getRandom() tasks submitted and not done
+	private final AtomicLong dongleBytes = new AtomicLong(),
+							 fallbackBytes = new AtomicLong(),
+							 errors = new AtomicLong();
+	private volatile boolean closed = false;
+	
+	private final ThreadLocal<Remainder> remainders = new ThreadLocal<Remainder>(){
+		@Override
+		protected Remainder initialValue(){
+			return new Remainder();
+		}
+	};
+	private final SecureRandom fallback = new SecureRandom();
+	
+	private final DaplugSessionPool.Task<Void> fill = new DaplugSessionPool.Task<Void>(){
+		@Override
+		public Void run(DaplugSession session) throws Exception{
+			boolean filled = false;
+			try{
+				byte[] chunk = session.getRandomSecret(CHUNK_LEN);
+				if(chunk != null && chunk.length == CHUNK_LEN){
+					filled = offer(chunk);
+				}else{
+					errors.incrementAndGet();
+				}
+			}catch(Exception e){
+				errors.incrementAndGet();
+			}finally{
+				inFlight.decrementAndGet();
+			}
+			//After a failure, wait for the next consumer before trying again
+			if(filled){
+				refill();
+			}
+			return null;
+		}
+	};
+	
+	/**
+	 * Constructs a new DaplugEntropyPool object with DEFAULT_CHUNKS chunks and starts filling it.
+	 * @param pool Sessions used to generate random bytes.
+	 */
+	public DaplugEntropyPool(DaplugSessionPool pool){
+		this(pool, DEFAULT_CHUNKS);
+	}
+	
+	/**
+	 * Constructs a new DaplugEntropyPool object and starts filling it.
+	 * @param pool Sessions used to generate random bytes.
+	 * @param chunks Capacity, in chunks of CHUNK_LEN bytes (rounded up to a power of two).
+	 */
+	public DaplugEntropyPool(DaplugSessionPool pool, int chunks){
+		
+		if(chunks < 1 || chunks > (1 << 20)){
+			throw new IllegalArgumentException("DaplugEntropyPool() - Invalid capacity : " + chunks);
+		}
+		int capacity = Integer.highestOneBit(chunks);
+		if(capacity < chunks){
+			capacity = capacity << 1;
+		}
+		
+		this.pool = pool;
+		this.mask = capacity - 1;
+		this.slots = new AtomicReferenceArray<byte[]>(capacity);
+		this.sequences = new AtomicLongArray(capacity);
+		for(int i = 0; i < capacity; i++){
+			this.sequences.set(i, i);
+		}
+		
+		refill();
+	}
+	
+	/**
+	 * Copies available dongle random bytes, without waiting.
+	 * @param out Output array.
+	 * @param off Output offset.
+	 * @param len Number of bytes wanted.
+	 * @return The number of bytes copied, less than len if the pool is (partly) empty.
+	 */
+	public int take(byte[] out, int off, int len){
+		
+		Remainder r = this.remainders.get();
+		int done = 0;
+		
+		while(done < len){
+			if(r.chunk == null){
+				r.chunk = poll();
+				r.pos = 0;
+				if(r.chunk == null){
+					break;
+				}
+			}
+			int n = Math.min(len - done, r.chunk.length - r.pos);
+			System.arraycopy(r.chunk, r.pos, out, off + done, n);
+			Arrays.fill(r.chunk, r.pos, r.pos + n, (byte) 0);
+			r.pos = r.pos + n;
+			done = done + n;
+			if(r.pos == r.chunk.length){
+				r.chunk = null;
+			}
+		}
+		
+		this.dongleBytes.addAndGet(done);
+		refill();
+		return done;
+	}
+	
+	/**
+	 * Fills out with random bytes, without waiting : dongle bytes when available, host SecureRandom bytes for the missing part.
+	 * @param out Output array.
+	 */
+	public void nextBytes(byte[] out){
+		int n = take(out, 0, out.length);
+		if(n < out.length){
+			byte[] rest = new byte[out.length - n];
+			this.fallback.nextBytes(rest);
+			System.arraycopy(rest, 0, out, n, rest.length);
+			Arrays.fill(rest, (byte) 0);
+			this.fallbackBytes.addAndGet(rest.length);
+		}
+	}
+	
+	/**
+	 * Returns the number of dongle random bytes ready in the ring (partly used chunks excluded).
+	 */
+	public int available(){
+		long n = this.writePos.get() - this.readPos.get();
+		return (int) Math.max(0, Math.min(n, this.mask + 1)) * CHUNK_LEN;
+	}
+	
+	/**
+	 * Returns the number of dongle random bytes given so far.
+	 */
+	public long getDongleBytes(){
+		return this.dongleBytes.get();
+	}
+	
+	/**
+	 * Returns the number of bytes nextBytes() had to take from the host SecureRandom.
+	 */
+	public long getFallbackBytes(){
+		return this.fallbackBytes.get();
+	}
+	
+	/**
+	 * Returns the number of failed getRandom() calls.
+	 */
+	public long getErrors(){
+		return this.errors.get();
+	}
+	
+	/**
+	 * Stops refilling the pool. Remaining bytes can still be taken. The session pool is not closed.
+	 */
+	public void close(){
+		this.closed = true;
+	}
+	
+	//=== private methods ===
+	
+	//Submits getRandom() tasks, at most one per session, for the free slots
+	private void refill(){
+		while(!this.closed){
+			int n = this.inFlight.get();
+			long free = (this.mask + 1) - (this.writePos.get() - this.readPos.get());
+			if(n >= this.pool.size() || n >= free){
+				return;
+			}
+			if(this.inFlight.compareAndSet(n, n + 1)){
+				this.pool.submit(this.fill);
+			}
+		}
+	}
+	
+	private boolean offer(byte[] chunk){
+		long pos = this.writePos.get();
+		while(true){
+			int i = (int) pos & this.mask;
+			long diff = this.sequences.get(i) - pos;
+			if(diff == 0){
+				if(this.writePos.compareAndSet(pos, pos + 1)){
+					this.slots.set(i, chunk);
+					this.sequences.set(i, pos + 1);
+					return true;
+				}
+				pos = this.writePos.get();
+			}else if(diff < 0){
+				return false; //Full
+			}else{
+				pos = this.writePos.get();
+			}
+		}
+	}
+	
+	private byte[] poll(){
+		long pos = this.readPos.get();
+		while(true){
+			int i = (int) pos & this.mask;
+			long diff = this.sequences.get(i) - (pos + 1);
+			if(diff == 0){
+				if(this.readPos.compareAndSet(pos, pos + 1)){
+					byte[] chunk = this.slots.getAndSet(i, null);
+					this.sequences.set(i, pos + this.mask + 1);
+					return chunk;
+				}
+				pos = this.readPos.get();
+			}else if(diff < 0){
+				return null; //Empty
+			}else{
+				pos = this.readPos.get();
+			}
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.session;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import io.daplug.crypto.DaplugDekCache;
+import io.daplug.utils.DaplugUtils;
+
+/**
+ * Envelope encryption : data is encrypted on the host with AES-GCM under a fresh data encryption key (DEK), 
+ * and only the DEK is encrypted (wrapped) by the dongle, with DaplugSession.encrypt() and a keyset key.
+ * Clear data keys are never printed by the session exchange log nor kept in its result cache. They are sent in clear to the dongle 
+ * unless the session uses a secure channel with SEC_LEVEL_C_DEC and SEC_LEVEL_R_ENC.
+ * Unwrapped keys can be kept in a DaplugDekCache, so that opening the same object again does not cost a dongle round trip.
+ * AES-GCM needs a JCE provider supporting it (the default one since Java 8).
+ * 
+ * Envelope format : version (1 byte), key version, key id, mode, wrapped key length (1 byte each), wrapped key, nonce (12 bytes), 
+ * then the AES-GCM ciphertext and its 16 bytes tag. The header is authenticated with the data.
+ * Diversifiers are not stored in the envelope.
+ */
+public class DaplugEnvelope {
+	
+	public static final int VERSION = 1;
+	public static final int DEFAULT_KEY_LEN = 16; //AES-128
+	
+	private static final int NONCE_LEN = 12,
+							 TAG_BITS = 128;
+	
+	private final DaplugSession session;
+	private final int keyVersion;
+	private final int keyId;
+	private final int mode;
+	private final byte[] div1;
+	private final byte[] div2;
+	private final int keyLen;
+	
+	private DaplugDekCache cache = null;
+	private boolean dongleRandom = false;
+	private final SecureRandom random = new SecureRandom();
+	
+	/**
+	 * Constructs a new DaplugEnvelope object using DEFAULT_KEY_LEN bytes keys.
+	 * @see #DaplugEnvelope(DaplugSession, int, int, int, byte[], byte[], int)
+	 */
+	public DaplugEnvelope(DaplugSession session, int keyVersion, int keyId, int mode, byte[] div1, byte[] div2) throws Exception{
+		this(session, keyVersion, keyId, mode, div1, div2, DEFAULT_KEY_LEN);
+	}
+	
+	/**
+	 * Constructs a new DaplugEnvelope object.
+	 * @param session An opened DaplugSession.
+	 * @param keyVersion Wrapping DaplugKeyset version.
+	 * @param keyId The index of the keyset key used to wrap the keys (1,2 or 3).
+	 * @param mode Wrapping mode (ECB or CBC with a zero IV), with or without diversifiers.
+	 * @param div1 First diversifier (optional).
+	 * @param div2 Second diversifier (optional).
+	 * @param keyLen AES key length : 16, 24 or 32 bytes.
+	 * @throws Exception if the key length is invalid.
+	 */
+	public DaplugEnvelope(DaplugSession session, int keyVersion, int keyId, int mode, byte[] div1, byte[] div2, int keyLen) throws Exception{
+		
+		if(keyLen != 16 && keyLen != 24 && keyLen != 32){
+			throw new Exception("DaplugEnvelope() - Invalid key length : " + keyLen);
+		}
+		
+		this.session = session;
+		this.keyVersion = keyVersion;
+		this.keyId = keyId;
+		this.mode = mode;
+		this.div1 = div1;
+		this.div2 = div2;
+		this.keyLen = keyLen;
+	}
+	
+	/**
+	 * Sets the cache of unwrapped keys.
+	 * @param cache The cache (may be shared by several envelopes), or null to unwrap keys each time.
+	 */
+	public synchronized void setDekCache(DaplugDekCache cache){
+		this.cache = cache;
+	}
+	
+	public synchronized DaplugDekCache getDekCache(){
+		return this.cache;
+	}
+	
+	/**
+	 * Generates the data keys with the dongle random generator (one more round trip per seal()) instead of the host one.
+	 * @param dongleRandom true to use getRandom().
+	 */
+	public synchronized void setDongleRandom(boolean dongleRandom){
+		this.dongleRandom = dongleRandom;
+	}
+	
+	/**
+	 * Encrypts data under a new data key, wrapped by the dongle.
+	 * @param data Clear data.
+	 * @param aad Additional authenticated data (optional), needed again to open the envelope.
+	 * @return The envelope.
+	 * @throws Exception if the key could not be generated or wrapped, or if AES-GCM is not available.
+	 */
+	public synchronized byte[] seal(byte[] data, byte[] aad) throws Exception{
+		
+		byte[] dek = this.dongleRandom ? this.session.getRandomSecret(this.keyLen) : new byte[this.keyLen];
+		if(!this.dongleRandom){
+			this.random.nextBytes(dek);
+		}
+		
+		try{
+			byte[] wrapped = this.session.encryptSecret(this.keyVersion, this.keyId, this.mode, null, this.div1, this.div2, dek);
+			if(wrapped == null || wrapped.length != this.keyLen){
+				throw new Exception("DaplugEnvelope.seal() - Data key wrapping failed !");
+			}
+			
+			byte[] nonce = new byte[NONCE_LEN];
+			this.random.nextBytes(nonce);
+			
+			byte[] header = new byte[5 + wrapped.length + NONCE_LEN];
+			header[0] = (byte) VERSION;
+			header[1] = (byte) this.keyVersion;
+			header[2] = (byte) this.keyId;
+			header[3] = (byte) this.mode;
+			header[4] = (byte) wrapped.length;
+			System.arraycopy(wrapped, 0, header, 5, wrapped.length);
+			System.arraycopy(nonce, 0, header, 5 + wrapped.length, NONCE_LEN);
+			
+			if(this.cache != null){
+				this.cache.put(cacheId(wrapped), dek);
+			}
+			
+			byte[] ct = gcm(Cipher.ENCRYPT_MODE, dek, nonce, header, aad, data, 0, data.length);
+			byte[] envelope = Arrays.copyOf(header, header.length + ct.length);
+			System.arraycopy(ct, 0, envelope, header.length, ct.length);
+			return envelope;
+		}finally{
+			Arrays.fill(dek, (byte) 0);
+		}
+	}
+	
+	/**
+	 * Decrypts an envelope made by seal() with the same keyset key and diversifiers.
+	 * @param envelope The envelope.
+	 * @param aad Additional authenticated data given to seal() (optional).
+	 * @return The clear data.
+	 * @throws Exception if the envelope is invalid or was modified, or if the key could not be unwrapped.
+	 */
+	public synchronized byte[] open(byte[] envelope, byte[] aad) throws Exception{
+		
+		if(envelope.length < 5 || (envelope[0] & 0xFF) != VERSION){
+			throw new Exception("DaplugEnvelope.open() - Invalid envelope !");
+		}
+		int wrappedLen = envelope[4] & 0xFF;
+		int headerLen = 5 + wrappedLen + NONCE_LEN;
+		if(envelope.length < headerLen + TAG_BITS / 8 || (envelope[1] & 0xFF) != (this.keyVersion & 0xFF) 
+				|| (envelope[2] & 0xFF) != (this.keyId & 0xFF) || (envelope[3] & 0xFF) != (this.mode & 0xFF)){
+			throw new Exception("DaplugEnvelope.open() - Invalid envelope or wrapping key !");
+		}
+		
+		byte[] wrapped = Arrays.copyOfRange(envelope, 5, 5 + wrappedLen);
+		byte[] header = Arrays.copyOf(envelope, headerLen);
+		byte[] nonce = Arrays.copyOfRange(envelope, 5 + wrappedLen, headerLen);
+		
+		String id = cacheId(wrapped);
+		byte[] dek = this.cache == null ? null : this.cache.get(id);
+		if(dek == null){
+			dek = this.session.decryptSecret(this.keyVersion, this.keyId, this.mode, null, this.div1, this.div2, wrapped);
+			if(dek == null || dek.length != wrappedLen){
+				throw new Exception("DaplugEnvelope.open() - Data key unwrapping failed !");
+			}
+			if(this.cache != null){
+				this.cache.put(id, dek);
+			}
+		}
+		
+		try{
+			return gcm(Cipher.DECRYPT_MODE, dek, nonce, header, aad, envelope, headerLen, envelope.length - headerLen);
+		}finally{
+			Arrays.fill(dek, (byte) 0);
+		}
+	}
+	
+	//=== private methods ===
+	
+	private String cacheId(byte[] wrapped){
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%02X%02X%02X", this.keyVersion & 0xFF, this.keyId & 0xFF, this.mode & 0xFF));
+		sb.append(DaplugUtils.byteArrayToHexString(this.div1 == null ? new byte[0] : this.div1));
+		sb.append('/');
+		sb.append(DaplugUtils.byteArrayToHexString(this.div2 == null ? new byte[0] : this.div2));
+		sb.append('/');
+		sb.append(DaplugUtils.byteArrayToHexString(wrapped));
+		return sb.toString();
+	}
+	
+	private static byte[] gcm(int opmode, byte[] dek, byte[] nonce, byte[] header, byte[] aad, byte[] data, int off, int len) throws Exception{
+		Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+		c.init(opmode, new SecretKeySpec(dek, "AES"), new GCMParameterSpec(TAG_BITS, nonce));
+		c.updateAAD(header);
+		if(aad != null){
+			c.updateAAD(aad);
+		}
+		return c.doFinal(data, off, len);
+	}
+}
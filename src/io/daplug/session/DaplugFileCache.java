@@ -0,0 +1,236 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.session;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import io.daplug.utils.DaplugUtils;
+
+/**
+ * Host side cache of dongle EF contents, keyed by dongle serial and file path. 
+ * Only the files added with addFile() are cached. Set on a session with DaplugSession.setFileCache() ; 
+ * readData() then reads a whole cached file once, and writeData(), updateBinary(), deleteFileOrDir() and reset() invalidate the entries concerned.
+ * 
+ * Memory is bounded : least recently used entries are evicted beyond the maximum size. The cache can be shared by several sessions.
+ */
+public final class DaplugFileCache {
+	
+	public static final int DEFAULT_MAX_BYTES = 256 * 1024;
+	
+	private final long maxBytes;
+	private final Set<String> files = new HashSet<String>(); //Cacheable paths
+	private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true); //Access order
+	private long bytes = 0;
+	private long hits = 0, misses = 0, evictions = 0;
+	
+	/**
+	 * Constructs a new DaplugFileCache object.
+	 * @param maxBytes Maximum total size of the cached contents.
+	 */
+	public DaplugFileCache(long maxBytes){
+		if(maxBytes <= 0){
+			throw new IllegalArgumentException("DaplugFileCache() - Invalid size : " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Makes the file at the given absolute path cacheable, on any dongle.
+	 * @param path Absolute file path, for example {0x3F00, 0x2214, 0x0036}.
+	 */
+	public synchronized void addFile(int[] path){
+		this.files.add(pathString(path));
+	}
+	
+	/**
+	 * Stops caching the file at the given path and drops its entries.
+	 * @param path Absolute file path.
+	 */
+	public synchronized void removeFile(int[] path){
+		String p = pathString(path);
+		this.files.remove(p);
+		removeEntries(null, p, false);
+	}
+	
+	/**
+	 * Checks if the file at the given path is cacheable.
+	 * @param path Absolute file path.
+	 */
+	public synchronized boolean isCacheable(int[] path){
+		return path != null && this.files.contains(pathString(path));
+	}
+	
+	/**
+	 * Checks if a file content of the given size can be cached.
+	 * @param size File size.
+	 */
+	public boolean fits(int size){
+		return size >= 0 && size <= this.maxBytes;
+	}
+	
+	/**
+	 * Returns the cached content of a file.
+	 * @param serial Dongle serial.
+	 * @param path Absolute file path.
+	 * @return The file content (not to be modified), or null if not cached.
+	 */
+	public synchronized byte[] get(byte[] serial, int[] path){
+		byte[] content = this.entries.get(key(serial, pathString(path)));
+		if(content == null){
+			this.misses++;
+		}else{
+			this.hits++;
+		}
+		return content;
+	}
+	
+	/**
+	 * Caches the content of a file, if it is cacheable and fits in the cache.
+	 * @param serial Dongle serial.
+	 * @param path Absolute file path.
+	 * @param content The whole file content.
+	 */
+	public synchronized void put(byte[] serial, int[] path, byte[] content){
+		
+		String p = pathString(path);
+		if(!this.files.contains(p) || content.length > this.maxBytes){
+			return;
+		}
+		
+		byte[] old = this.entries.put(key(serial, p), content.clone());
+		if(old != null){
+			this.bytes = this.bytes - old.length;
+		}
+		this.bytes = this.bytes + content.length;
+		
+		//Evict least recently used entries
+		Iterator<byte[]> it = this.entries.values().iterator();
+		while(this.bytes > this.maxBytes && it.hasNext()){
+			this.bytes = this.bytes - it.next().length;
+			it.remove();
+			this.evictions++;
+		}
+	}
+	
+	/**
+	 * Drops the cached content of a file, or of all the files under a directory.
+	 * @param serial Dongle serial.
+	 * @param path Absolute file or directory path.
+	 */
+	public synchronized void invalidate(byte[] serial, int[] path){
+		removeEntries(DaplugUtils.byteArrayToHexString(serial), pathString(path), true);
+	}
+	
+	/**
+	 * Drops the cached contents of all the files of a dongle.
+	 * @param serial Dongle serial.
+	 */
+	public synchronized void invalidateAll(byte[] serial){
+		removeEntries(DaplugUtils.byteArrayToHexString(serial), "", true);
+	}
+	
+	/**
+	 * Drops all the cached contents. Metrics are kept.
+	 */
+	public synchronized void clear(){
+		this.entries.clear();
+		this.bytes = 0;
+	}
+	
+	/**
+	 * Returns the number of get() calls which found the file content.
+	 */
+	public synchronized long getHits(){
+		return this.hits;
+	}
+	
+	/**
+	 * Returns the number of get() calls which did not find the file content.
+	 */
+	public synchronized long getMisses(){
+		return this.misses;
+	}
+	
+	/**
+	 * Returns the number of entries evicted to keep the cache under its maximum size.
+	 */
+	public synchronized long getEvictions(){
+		return this.evictions;
+	}
+	
+	/**
+	 * Returns hits / (hits + misses), or 0 if the cache was never used.
+	 */
+	public synchronized double getHitRate(){
+		long total = this.hits + this.misses;
+		return total == 0 ? 0 : (double) this.hits / total;
+	}
+	
+	/**
+	 * Returns the total size of the cached contents.
+	 */
+	public synchronized long getBytes(){
+		return this.bytes;
+	}
+	
+	/**
+	 * Returns the number of cached contents.
+	 */
+	public synchronized int getEntries(){
+		return this.entries.size();
+	}
+	
+	//=== private methods ===
+	
+	//Removes the entries of serial (any if null) for path, and paths under it if prefix is true
+	private void removeEntries(String serial, String path, boolean prefix){
+		
+		Iterator<Map.Entry<String, byte[]>> it = this.entries.entrySet().iterator();
+		while(it.hasNext()){
+			Map.Entry<String, byte[]> e = it.next();
+			String k = e.getKey();
+			int sep = k.indexOf('/');
+			if(serial != null && !k.substring(0, sep).equals(serial)){
+				continue;
+			}
+			String p = k.substring(sep + 1);
+			if(p.equals(path) || (prefix && (path.isEmpty() || p.startsWith(path + ":")))){
+				this.bytes = this.bytes - e.getValue().length;
+				it.remove();
+			}
+		}
+	}
+	
+	private static String key(byte[] serial, String path){
+		return DaplugUtils.byteArrayToHexString(serial) + "/" + path;
+	}
+	
+	private static String pathString(int[] path){
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < path.length; i++){
+			if(i > 0){
+				sb.append(':');
+			}
+			sb.append(String.format("%04X", path[i]));
+		}
+		return sb.toString();
+	}
+}
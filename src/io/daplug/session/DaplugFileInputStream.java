@@ -0,0 +1,206 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * An InputStream reading a dongle elementary file (EF). 
+ * Data is read ahead in MAX_REAL_DATA_SIZE bytes chunks into a reusable buffer, and the stream ends at the file size.
+ * The file is selected again (if needed) before each read, so the session can be used for other commands in between.
+ * Like DaplugSession, a DaplugFileInputStream is not thread-safe.
+ */
+public class DaplugFileInputStream extends InputStream {
+	
+	private final DaplugSession session;
+	private final int[] path;
+	private final int size;
+	
+	private final byte[] buffer = new byte[DaplugSession.MAX_REAL_DATA_SIZE];
+	private int bufPos = 0, bufLen = 0;
+	private int filePos = 0; //File offset of the next chunk to read
+	private boolean closed = false;
+	
+	/**
+	 * Constructs a new DaplugFileInputStream object. The file size is the one given by the file FCP.
+	 * @param session An opened DaplugSession.
+	 * @param path Absolute path of the EF, for example {0x3F00, 0x2214, 0x0036}.
+	 * @throws IOException if the file cannot be selected or its size is not known.
+	 */
+	public DaplugFileInputStream(DaplugSession session, int[] path) throws IOException{
+		this(session, path, -1);
+	}
+	
+	/**
+	 * Constructs a new DaplugFileInputStream object reading the first size bytes of a file.
+	 * @param session An opened DaplugSession.
+	 * @param path Absolute path of the EF, for example {0x3F00, 0x2214, 0x0036}.
+	 * @param size Number of bytes to read, or -1 to read up to the file size given by the file FCP.
+	 * @throws IOException if the file cannot be selected or its size is not known.
+	 */
+	public DaplugFileInputStream(DaplugSession session, int[] path, int size) throws IOException{
+		
+		this.session = session;
+		this.path = path.clone();
+		
+		select();
+		
+		if(size < 0){
+			size = session.getSelectedFileSize();
+			if(size < 0){
+				throw new IOException("DaplugFileInputStream() - File size not known !");
+			}
+		}
+		this.size = size;
+	}
+	
+	/**
+	 * Returns the number of bytes of the file read by this stream.
+	 */
+	public int size(){
+		return this.size;
+	}
+	
+	@Override
+	public int read() throws IOException{
+		
+		if(this.bufPos == this.bufLen && !fill()){
+			return -1;
+		}
+		
+		return this.buffer[this.bufPos++] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException{
+		
+		if(off < 0 || len < 0 || len > b.length - off){
+			throw new IndexOutOfBoundsException();
+		}
+		if(len == 0){
+			return 0;
+		}
+		
+		int done = 0;
+		while(done < len){
+			
+			//Buffered bytes first
+			if(this.bufPos < this.bufLen){
+				int n = Math.min(len - done, this.bufLen - this.bufPos);
+				System.arraycopy(this.buffer, this.bufPos, b, off + done, n);
+				this.bufPos = this.bufPos + n;
+				done = done + n;
+				continue;
+			}
+			
+			int remaining = this.size - this.filePos;
+			if(remaining == 0){
+				break;
+			}
+			
+			//Large reads go directly to the caller buffer
+			int direct = Math.min(len - done, remaining);
+			direct = direct - direct % DaplugSession.MAX_REAL_DATA_SIZE;
+			if(direct > 0){
+				readFile(b, off + done, direct);
+				done = done + direct;
+			}else if(!fill()){
+				break;
+			}
+		}
+		
+		return done == 0 ? -1 : done;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException{
+		
+		if(n <= 0){
+			return 0;
+		}
+		
+		long skipped = Math.min(n, this.bufLen - this.bufPos);
+		this.bufPos = this.bufPos + (int) skipped;
+		
+		long more = Math.min(n - skipped, this.size - this.filePos);
+		this.filePos = this.filePos + (int) more;
+		
+		return skipped + more;
+	}
+	
+	@Override
+	public int available() throws IOException{
+		ensureOpen();
+		return this.bufLen - this.bufPos;
+	}
+	
+	@Override
+	public void close(){
+		this.closed = true;
+		this.bufPos = this.bufLen = 0;
+	}
+	
+	//=== private methods ===
+	
+	//Reads the next chunk into the buffer
+	private boolean fill() throws IOException{
+		
+		int n = Math.min(this.buffer.length, this.size - this.filePos);
+		if(n <= 0){
+			ensureOpen();
+			return false;
+		}
+		
+		readFile(this.buffer, 0, n);
+		this.bufPos = 0;
+		this.bufLen = n;
+		
+		return true;
+	}
+	
+	private void readFile(byte[] dest, int off, int len) throws IOException{
+		
+		select();
+		try{
+			this.session.readBinary(this.filePos, dest, off, len);
+		}catch(Exception e){
+			throw new IOException(e.getMessage(), e);
+		}
+		this.filePos = this.filePos + len;
+	}
+	
+	private void select() throws IOException{
+		
+		ensureOpen();
+		try{
+			this.session.selectPath(this.path);
+		}catch(Exception e){
+			throw new IOException(e.getMessage(), e);
+		}
+		if(!Arrays.equals(this.session.getSelectedPath(), this.path)){
+			throw new IOException("DaplugFileInputStream - Cannot select file !");
+		}
+	}
+	
+	private void ensureOpen() throws IOException{
+		if(this.closed){
+			throw new IOException("DaplugFileInputStream - Stream closed !");
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.session;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A write-back buffer over a dongle elementary file (EF).
+ * Writes are kept in memory as dirty byte ranges ; overlapping and adjacent ranges are merged. 
+ * flush() and close() write each range with as few UPDATE BINARY commands as possible (MAX_REAL_DATA_SIZE bytes each).
+ * Like DaplugSession, a DaplugFileWriter is not thread-safe.
+ */
+public class DaplugFileWriter implements Closeable, Flushable {
+	
+	private final DaplugSession session;
+	private final int[] path;
+	private final int size;
+	
+	private final byte[] image; //Written bytes, meaningful in dirty ranges only
+	private final TreeMap<Integer, Integer> dirty = new TreeMap<Integer, Integer>(); //Dirty ranges : start -> end (excluded)
+	private boolean closed = false;
+	
+	/**
+	 * Constructs a new DaplugFileWriter object. The file size is the one given by the file FCP.
+	 * @param session An opened DaplugSession.
+	 * @param path Absolute path of the EF, for example {0x3F00, 0x2214, 0x0036}.
+	 * @throws IOException if the file cannot be selected or its size is not known.
+	 */
+	public DaplugFileWriter(DaplugSession session, int[] path) throws IOException{
+		this(session, path, -1);
+	}
+	
+	/**
+	 * Constructs a new DaplugFileWriter object.
+	 * @param session An opened DaplugSession.
+	 * @param path Absolute path of the EF, for example {0x3F00, 0x2214, 0x0036}.
+	 * @param size File size, or -1 to use the size given by the file FCP.
+	 * @throws IOException if the file cannot be selected or its size is not known.
+	 */
+	public DaplugFileWriter(DaplugSession session, int[] path, int size) throws IOException{
+		
+		this.session = session;
+		this.path = path.clone();
+		
+		if(size < 0){
+			select();
+			size = session.getSelectedFileSize();
+			if(size < 0){
+				throw new IOException("DaplugFileWriter() - File size not known !");
+			}
+		}
+		if(size > DaplugSession.MAX_FS_FILE_SIZE){
+			throw new IOException("DaplugFileWriter() - Invalid file size : " + size);
+		}
+		this.size = size;
+		this.image = new byte[size];
+	}
+	
+	/**
+	 * Writes data at the given file offset. Nothing is sent to the dongle before flush() or close().
+	 * @param offset File offset.
+	 * @param data Data to write.
+	 * @throws IOException if the data does not fit in the file or the writer is closed.
+	 */
+	public void write(int offset, byte[] data) throws IOException{
+		write(offset, data, 0, data.length);
+	}
+	
+	/**
+	 * Writes len bytes of data at the given file offset. Nothing is sent to the dongle before flush() or close().
+	 * @param offset File offset.
+	 * @param data Source buffer.
+	 * @param off Offset in the source buffer.
+	 * @param len Number of bytes to write.
+	 * @throws IOException if the data does not fit in the file or the writer is closed.
+	 */
+	public void write(int offset, byte[] data, int off, int len) throws IOException{
+		
+		ensureOpen();
+		if(offset < 0 || len < 0 || offset + len > this.size){
+			throw new IOException("write() - Invalid offset/length : " + offset + "/" + len);
+		}
+		if(len == 0){
+			return;
+		}
+		
+		System.arraycopy(data, off, this.image, offset, len);
+		
+		int start = offset, end = offset + len;
+		
+		//Merge with a previous range overlapping or adjacent
+		Map.Entry<Integer, Integer> prev = this.dirty.floorEntry(start);
+		if(prev != null && prev.getValue() >= start){
+			start = prev.getKey();
+			end = Math.max(end, prev.getValue());
+		}
+		
+		//Merge with the following ranges overlapping or adjacent
+		Iterator<Map.Entry<Integer, Integer>> it = this.dirty.tailMap(start, true).entrySet().iterator();
+		while(it.hasNext()){
+			Map.Entry<Integer, Integer> e = it.next();
+			if(e.getKey() > end){
+				break;
+			}
+			end = Math.max(end, e.getValue());
+			it.remove();
+		}
+		
+		this.dirty.put(start, end);
+	}
+	
+	/**
+	 * Returns the number of dirty bytes not written to the dongle yet.
+	 */
+	public int getDirtyLength(){
+		int len = 0;
+		for(Map.Entry<Integer, Integer> e : this.dirty.entrySet()){
+			len = len + e.getValue() - e.getKey();
+		}
+		return len;
+	}
+	
+	/**
+	 * Returns the number of UPDATE BINARY commands the next flush() will send.
+	 */
+	public int getPendingCommands(){
+		int n = 0;
+		for(Map.Entry<Integer, Integer> e : this.dirty.entrySet()){
+			n = n + (e.getValue() - e.getKey() + DaplugSession.MAX_REAL_DATA_SIZE - 1) / DaplugSession.MAX_REAL_DATA_SIZE;
+		}
+		return n;
+	}
+	
+	/**
+	 * Writes the dirty ranges to the dongle. A range is forgotten once written ; on error, the remaining ranges are kept.
+	 * @throws IOException if the file cannot be selected or written.
+	 */
+	@Override
+	public void flush() throws IOException{
+		
+		ensureOpen();
+		if(this.dirty.isEmpty()){
+			return;
+		}
+		
+		select();
+		
+		Iterator<Map.Entry<Integer, Integer>> it = this.dirty.entrySet().iterator();
+		while(it.hasNext()){
+			Map.Entry<Integer, Integer> e = it.next();
+			int start = e.getKey(), len = e.getValue() - start;
+			try{
+				this.session.updateBinary(start, this.image, start, len);
+			}catch(Exception ex){
+				throw new IOException(ex.getMessage(), ex);
+			}
+			it.remove();
+		}
+	}
+	
+	/**
+	 * Flushes the dirty ranges and closes the writer.
+	 * @throws IOException if the dirty ranges cannot be written.
+	 */
+	@Override
+	public void close() throws IOException{
+		
+		if(this.closed){
+			return;
+		}
+		flush();
+		this.closed = true;
+		Arrays.fill(this.image, (byte) 0);
+	}
+	
+	//=== private methods ===
+	
+	private void select() throws IOException{
+		
+		try{
+			this.session.selectPath(this.path);
+		}catch(Exception e){
+			throw new IOException(e.getMessage(), e);
+		}
+		if(!Arrays.equals(this.session.getSelectedPath(), this.path)){
+			throw new IOException("DaplugFileWriter - Cannot select file !");
+		}
+	}
+	
+	private void ensureOpen() throws IOException{
+		if(this.closed){
+			throw new IOException("DaplugFileWriter - Writer closed !");
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Differences between a DaplugFsSnapshot and a dongle filesystem, as a list of operations in application order.
+ */
+public final class DaplugFsDiff {
+	
+	//Operation types
+	public static final int	CREATE = 0, /** Create a missing directory or file (and write the file content) */
+							RECREATE = 1, /** Delete and create again a file whose size changed */
+							WRITE = 2; /** Write a modified range of an existing file */
+	
+	/**
+	 * A filesystem operation.
+	 */
+	public static final class Operation {
+		
+		private final int type;
+		private final DaplugFsSnapshot.Entry entry;
+		private final int offset;
+		private final byte[] data;
+		
+		Operation(int type, DaplugFsSnapshot.Entry entry, int offset, byte[] data){
+			this.type = type;
+			this.entry = entry;
+			this.offset = offset;
+			this.data = data;
+		}
+		
+		public int getType(){
+			return this.type;
+		}
+		
+		public DaplugFsSnapshot.Entry getEntry(){
+			return this.entry;
+		}
+		
+		/**
+		 * Returns the file offset of a WRITE operation.
+		 */
+		public int getOffset(){
+			return this.offset;
+		}
+		
+		/**
+		 * Returns the data written by the operation (null for a directory).
+		 */
+		public byte[] getData(){
+			return this.data == null ? null : this.data.clone();
+		}
+		
+		@Override
+		public String toString(){
+			String path = DaplugFsSnapshot.pathString(this.entry.getPath());
+			switch(this.type){
+			case CREATE :
+				return "CREATE " + (this.entry.isDir() ? "DIR " : "FILE ") + path;
+			case RECREATE :
+				return "RECREATE FILE " + path;
+			default :
+				return "WRITE " + path + " " + this.offset + "+" + this.data.length;
+			}
+		}
+	}
+	
+	private final List<Operation> operations = new ArrayList<Operation>();
+	
+	DaplugFsDiff(){
+	}
+	
+	void add(Operation op){
+		this.operations.add(op);
+	}
+	
+	/**
+	 * Returns the operations, in application order.
+	 */
+	public List<Operation> getOperations(){
+		return Collections.unmodifiableList(this.operations);
+	}
+	
+	/**
+	 * Checks if the dongle already matches the snapshot.
+	 */
+	public boolean isEmpty(){
+		return this.operations.isEmpty();
+	}
+	
+	/**
+	 * Applies the operations to a dongle. Writes of a same file are grouped in one DaplugFileWriter.
+	 * @param session An authenticated DaplugSession, on the dongle the diff was computed for.
+	 * @throws Exception if an operation fails.
+	 */
+	public void apply(DaplugSession session) throws Exception{
+		
+		DaplugFileWriter writer = null;
+		DaplugFsSnapshot.Entry writerEntry = null;
+		
+		for(Operation op : this.operations){
+			
+			DaplugFsSnapshot.Entry e = op.entry;
+			
+			if(writer != null && writerEntry != e){
+				writer.close();
+				writer = null;
+			}
+			
+			switch(op.type){
+			case RECREATE :
+			case CREATE :
+				if(op.type == RECREATE){
+					delete(session, e);
+				}
+				create(session, e);
+				if(e.isDir() || e.isCntFile()){
+					break;
+				}
+				writer = new DaplugFileWriter(session, e.getPath(), e.content().length);
+				writerEntry = e;
+				writer.write(0, e.content());
+				break;
+			default :
+				if(writer == null){
+					writer = new DaplugFileWriter(session, e.getPath(), e.content().length);
+					writerEntry = e;
+				}
+				writer.write(op.offset, op.data);
+				break;
+			}
+		}
+		
+		if(writer != null){
+			writer.close();
+		}
+	}
+	
+	@Override
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		for(Operation op : this.operations){
+			sb.append(op.toString()).append('\n');
+		}
+		return sb.toString();
+	}
+	
+	//=== private methods ===
+	
+	//Deleted by ID from the parent directory
+	private static void delete(DaplugSession session, DaplugFsSnapshot.Entry e) throws Exception{
+		
+		String path = DaplugFsSnapshot.pathString(e.getPath());
+		if(!DaplugFsSnapshot.select(session, e.getParent())){
+			throw new Exception("apply() - Cannot select parent directory of " + path + " !");
+		}
+		if(!session.deleteFileOrDirChecked(e.getId())){
+			throw new Exception("apply() - Cannot delete " + path + " !");
+		}
+	}
+	
+	private static void create(DaplugSession session, DaplugFsSnapshot.Entry e) throws Exception{
+		
+		String path = DaplugFsSnapshot.pathString(e.getPath());
+		if(!DaplugFsSnapshot.select(session, e.getParent())){
+			throw new Exception("apply() - Cannot select parent directory of " + path + " !");
+		}
+		
+		if(e.isDir()){
+			session.createDir(e.getId(), e.getAccess());
+		}else{
+			session.createFile(e.getId(), e.content().length, e.getAccess(), e.isEncFile(), e.isCntFile());
+		}
+		
+		if(!DaplugFsSnapshot.select(session, e.getPath())){
+			throw new Exception("apply() - Cannot create " + path + " !");
+		}
+		int size = session.getSelectedFileSize();
+		if(!e.isDir() && size >= 0 && size != e.content().length){
+			throw new Exception("apply() - Cannot create " + path + " with size " + e.content().length + " !");
+		}
+	}
+}
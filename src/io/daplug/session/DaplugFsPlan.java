@@ -0,0 +1,475 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A declarative plan of filesystem operations (directory/file creation, writes, deletion) on absolute paths, 
+ * compiled into an optimized command sequence before being executed on a dongle.
+ * 
+ * The compiler orders the work by directory (parents first, depth first), merges overlapping and adjacent writes of a file 
+ * into full-size UPDATE BINARY commands, and inserts only the SELECT commands the session selection cache will send. 
+ * Deletions are kept in place : operations are only reordered between two deletions.
+ * The compiled plan reports the number of APDUs and bytes it will send, assuming SELECT responses give the file type (FCP).
+ */
+public final class DaplugFsPlan {
+	
+	//Step types
+	public static final int	SELECT = 0,
+							CREATE_DIR = 1,
+							CREATE_FILE = 2,
+							WRITE = 3,
+							DELETE = 4;
+	
+	private static final int	SELECT_LC = 2,
+								CREATE_DIR_LC = 0x10,
+								CREATE_FILE_LC = 0x1C,
+								DELETE_LC = 2;
+	
+	/**
+	 * A compiled plan step.
+	 */
+	public static final class Step {
+		
+		private final int type;
+		private final int[] path;
+		private final int offset, size;
+		private final int[] access;
+		private final boolean encFile, cntFile;
+		private final byte[] data;
+		private final int[] lcs; //Data length of each APDU sent by the step
+		
+		Step(int type, int[] path, int offset, int size, int[] access, boolean encFile, boolean cntFile, byte[] data, int[] lcs){
+			this.type = type;
+			this.path = path;
+			this.offset = offset;
+			this.size = size;
+			this.access = access;
+			this.encFile = encFile;
+			this.cntFile = cntFile;
+			this.data = data;
+			this.lcs = lcs;
+		}
+		
+		public int getType(){
+			return this.type;
+		}
+		
+		public int[] getPath(){
+			return this.path.clone();
+		}
+		
+		/**
+		 * Returns the number of APDUs sent by this step.
+		 */
+		public int getApduCount(){
+			return this.lcs.length;
+		}
+		
+		@Override
+		public String toString(){
+			String p = DaplugFsSnapshot.pathString(this.path);
+			switch(this.type){
+			case SELECT :
+				return "SELECT " + p + " (" + this.lcs.length + " APDU)";
+			case CREATE_DIR :
+				return "CREATE DIR " + p;
+			case CREATE_FILE :
+				return "CREATE FILE " + p + " size " + this.size;
+			case WRITE :
+				return "WRITE " + p + " " + this.offset + "+" + this.data.length + " (" + this.lcs.length + " APDU)";
+			default :
+				return "DELETE " + p;
+			}
+		}
+	}
+	
+	/**
+	 * A compiled plan : the steps to send, and their cost.
+	 */
+	public static final class Compiled {
+		
+		private final List<Step> steps;
+		
+		Compiled(List<Step> steps){
+			this.steps = steps;
+		}
+		
+		public List<Step> getSteps(){
+			return Collections.unmodifiableList(this.steps);
+		}
+		
+		/**
+		 * Returns the number of APDUs the plan will send.
+		 */
+		public int getApduCount(){
+			int n = 0;
+			for(Step s : this.steps){
+				n = n + s.lcs.length;
+			}
+			return n;
+		}
+		
+		/**
+		 * Returns the number of command bytes the plan will send, for a secure channel security level.
+		 * @param securityLevel Combination of DaplugSession.SEC_LEVEL_* values (0 when no secure channel is used).
+		 */
+		public long getApduBytes(int securityLevel){
+			long bytes = 0;
+			for(Step s : this.steps){
+				for(int lc : s.lcs){
+					if((securityLevel & DaplugSession.SEC_LEVEL_C_DEC) != 0 && lc > 0){
+						lc = lc + 8 - lc % 8; //Padding
+					}
+					if((securityLevel & DaplugSession.SEC_LEVEL_C_MAC) != 0){
+						lc = lc + DaplugSession.MAC_LEN;
+					}
+					bytes = bytes + 5 + lc;
+				}
+			}
+			return bytes;
+		}
+		
+		/**
+		 * Executes the plan.
+		 * @param session An authenticated DaplugSession.
+		 * @throws Exception if a step fails.
+		 */
+		public void execute(DaplugSession session) throws Exception{
+			
+			for(Step s : this.steps){
+				int id = s.path[s.path.length - 1];
+				switch(s.type){
+				case SELECT :
+					if(!DaplugFsSnapshot.select(session, s.path)){
+						throw new Exception("execute() - Cannot select " + DaplugFsSnapshot.pathString(s.path) + " !");
+					}
+					break;
+				case CREATE_DIR :
+					if(!session.createDirChecked(id, s.access)){
+						throw new Exception("execute() - Cannot create " + DaplugFsSnapshot.pathString(s.path) + " !");
+					}
+					break;
+				case CREATE_FILE :
+					if(!session.createFileChecked(id, s.size, s.access, s.encFile, s.cntFile)){
+						throw new Exception("execute() - Cannot create " + DaplugFsSnapshot.pathString(s.path) + " !");
+					}
+					break;
+				case WRITE :
+					session.updateBinary(s.offset, s.data, 0, s.data.length);
+					break;
+				default :
+					if(!session.deleteFileOrDirChecked(id)){
+						throw new Exception("execute() - Cannot delete " + DaplugFsSnapshot.pathString(s.path) + " !");
+					}
+					break;
+				}
+			}
+		}
+		
+		@Override
+		public String toString(){
+			StringBuilder sb = new StringBuilder();
+			for(Step s : this.steps){
+				sb.append(s.toString()).append('\n');
+			}
+			sb.append(getApduCount()).append(" APDU, ").append(getApduBytes(0)).append(" bytes\n");
+			return sb.toString();
+		}
+	}
+	
+	//Declared operation
+	private static final class Op {
+		
+		final int type;
+		final int[] path;
+		final int offset, size;
+		final int[] access;
+		final boolean encFile, cntFile;
+		final byte[] data;
+		
+		Op(int type, int[] path, int offset, int size, int[] access, boolean encFile, boolean cntFile, byte[] data){
+			this.type = type;
+			this.path = path;
+			this.offset = offset;
+			this.size = size;
+			this.access = access;
+			this.encFile = encFile;
+			this.cntFile = cntFile;
+			this.data = data;
+		}
+	}
+	
+	//Work item of a segment : a creation (done from the parent directory) or the merged writes of a file
+	private static final class Item {
+		
+		final int[] path, dir;
+		final Op creation;
+		final TreeMap<Integer, byte[]> ranges;
+		
+		Item(int[] path, Op creation, TreeMap<Integer, byte[]> ranges){
+			this.path = path;
+			this.dir = Arrays.copyOf(path, path.length - 1);
+			this.creation = creation;
+			this.ranges = ranges;
+		}
+	}
+	
+	private final List<Op> ops = new ArrayList<Op>();
+	
+	/**
+	 * Constructs a new empty DaplugFsPlan object.
+	 */
+	public DaplugFsPlan(){
+	}
+	
+	/**
+	 * Adds a directory creation.
+	 * @param path Absolute path of the new directory.
+	 * @param access Access conditions, as given to DaplugSession.createDir().
+	 * @throws Exception if a parameter is not valid.
+	 */
+	public void createDir(int[] path, int[] access) throws Exception{
+		checkPath(path);
+		checkAccess(access);
+		this.ops.add(new Op(CREATE_DIR, path.clone(), 0, 0, access.clone(), false, false, null));
+	}
+	
+	/**
+	 * Adds a file creation.
+	 * @param path Absolute path of the new file.
+	 * @param size File size.
+	 * @param access Access conditions, as given to DaplugSession.createFile().
+	 * @param isEncFile Encrypted file.
+	 * @param isCntFile Counter file (size is then 8).
+	 * @throws Exception if a parameter is not valid.
+	 */
+	public void createFile(int[] path, int size, int[] access, boolean isEncFile, boolean isCntFile) throws Exception{
+		checkPath(path);
+		checkAccess(access);
+		if(size < 0 || size > DaplugSession.MAX_FS_FILE_SIZE){
+			throw new Exception("createFile() - Invalid size : " + size);
+		}
+		this.ops.add(new Op(CREATE_FILE, path.clone(), 0, isCntFile ? 8 : size, access.clone(), isEncFile, isCntFile, null));
+	}
+	
+	/**
+	 * Adds a write into a file.
+	 * @param path Absolute file path.
+	 * @param offset File offset.
+	 * @param data Data to write.
+	 * @throws Exception if a parameter is not valid.
+	 */
+	public void write(int[] path, int offset, byte[] data) throws Exception{
+		checkPath(path);
+		if(offset < 0 || data == null || offset + data.length > DaplugSession.MAX_FS_FILE_SIZE){
+			throw new Exception("write() - Invalid offset/length !");
+		}
+		this.ops.add(new Op(WRITE, path.clone(), offset, 0, null, false, false, data.clone()));
+	}
+	
+	/**
+	 * Adds a file or directory deletion.
+	 * @param path Absolute path of the file or directory.
+	 * @throws Exception if a parameter is not valid.
+	 */
+	public void delete(int[] path) throws Exception{
+		checkPath(path);
+		this.ops.add(new Op(DELETE, path.clone(), 0, 0, null, false, false, null));
+	}
+	
+	/**
+	 * Compiles the plan.
+	 * @return The compiled plan, ready to be executed.
+	 */
+	public Compiled compile(){
+		
+		List<Step> steps = new ArrayList<Step>();
+		Selection sel = new Selection();
+		
+		int start = 0;
+		for(int i = 0; i <= this.ops.size(); i++){
+			if(i == this.ops.size() || this.ops.get(i).type == DELETE){
+				compileSegment(this.ops.subList(start, i), steps, sel);
+				if(i < this.ops.size()){
+					//Deleted by ID from the parent directory, the target itself is not selected
+					int[] path = this.ops.get(i).path;
+					sel.select(Arrays.copyOf(path, path.length - 1), true, steps);
+					steps.add(new Step(DELETE, path, 0, 0, null, false, false, null, new int[]{DELETE_LC}));
+					sel.invalidate();
+				}
+				start = i + 1;
+			}
+		}
+		
+		return new Compiled(steps);
+	}
+	
+	//=== private methods ===
+	
+	//Compiles operations with no deletion : creations by directory, then merged writes
+	private static void compileSegment(List<Op> segment, List<Step> steps, Selection sel){
+		
+		//Work items : creations, and files to write (merged ranges)
+		List<Op> creations = new ArrayList<Op>();
+		Map<String, int[]> writtenPaths = new LinkedHashMap<String, int[]>();
+		Map<String, TreeMap<Integer, byte[]>> writes = new LinkedHashMap<String, TreeMap<Integer, byte[]>>();
+		
+		for(Op op : segment){
+			String key = DaplugFsSnapshot.pathString(op.path);
+			if(op.type == WRITE){
+				TreeMap<Integer, byte[]> ranges = writes.get(key);
+				if(ranges == null){
+					ranges = new TreeMap<Integer, byte[]>();
+					writes.put(key, ranges);
+					writtenPaths.put(key, op.path);
+				}
+				merge(ranges, op.offset, op.data);
+			}else{
+				creations.add(op);
+			}
+		}
+		
+		//Sort by directory
+		List<Item> items = new ArrayList<Item>();
+		for(Op op : creations){
+			items.add(new Item(op.path, op, null));
+		}
+		for(Map.Entry<String, TreeMap<Integer, byte[]>> e : writes.entrySet()){
+			items.add(new Item(writtenPaths.get(e.getKey()), null, e.getValue()));
+		}
+		Collections.sort(items, new Comparator<Item>(){
+			@Override
+			public int compare(Item a, Item b){
+				int c = comparePaths(a.dir, b.dir);
+				if(c != 0){
+					return c;
+				}
+				//In a directory : creations first
+				return (a.creation != null ? 0 : 1) - (b.creation != null ? 0 : 1);
+			}
+		});
+		
+		for(Item item : items){
+			if(item.creation != null){
+				Op op = item.creation;
+				sel.select(item.dir, true, steps);
+				steps.add(new Step(op.type, op.path, 0, op.size, op.access, op.encFile, op.cntFile, null, 
+						new int[]{op.type == CREATE_DIR ? CREATE_DIR_LC : CREATE_FILE_LC}));
+				sel.invalidate();
+			}else{
+				int[] path = item.path;
+				sel.select(path, false, steps);
+				for(Map.Entry<Integer, byte[]> r : item.ranges.entrySet()){
+					int len = r.getValue().length;
+					int[] lcs = new int[(len + DaplugSession.MAX_REAL_DATA_SIZE - 1) / DaplugSession.MAX_REAL_DATA_SIZE];
+					for(int i = 0; i < lcs.length; i++){
+						lcs[i] = Math.min(DaplugSession.MAX_REAL_DATA_SIZE, len - i * DaplugSession.MAX_REAL_DATA_SIZE);
+					}
+					steps.add(new Step(WRITE, path, r.getKey(), 0, null, false, false, r.getValue(), lcs));
+				}
+			}
+		}
+	}
+	
+	//Adds a write to merged ranges (offset -> data), later data replacing earlier data
+	private static void merge(TreeMap<Integer, byte[]> ranges, int offset, byte[] data){
+		
+		int start = offset, end = offset + data.length;
+		Map.Entry<Integer, byte[]> prev = ranges.floorEntry(start);
+		if(prev != null && prev.getKey() + prev.getValue().length >= start){
+			start = prev.getKey();
+		}
+		for(Map.Entry<Integer, byte[]> e : ranges.subMap(start, true, end, true).entrySet()){
+			end = Math.max(end, e.getKey() + e.getValue().length);
+		}
+		
+		byte[] merged = new byte[end - start];
+		for(Map.Entry<Integer, byte[]> e : ranges.subMap(start, true, end, true).entrySet()){
+			System.arraycopy(e.getValue(), 0, merged, e.getKey() - start, e.getValue().length);
+		}
+		System.arraycopy(data, 0, merged, offset - start, data.length);
+		
+		ranges.subMap(start, true, end, true).clear();
+		ranges.put(start, merged);
+	}
+	
+	//Parents first, then depth first
+	private static int comparePaths(int[] a, int[] b){
+		for(int i = 0; i < Math.min(a.length, b.length); i++){
+			if(a[i] != b[i]){
+				return a[i] < b[i] ? -1 : 1;
+			}
+		}
+		return a.length - b.length;
+	}
+	
+	private static void checkPath(int[] path) throws Exception{
+		if(path == null || path.length < 2 || path[0] != DaplugSession.FS_MASTER_FILE){
+			throw new Exception("DaplugFsPlan - Invalid path : " + (path == null ? null : Arrays.toString(path)));
+		}
+	}
+	
+	private static void checkAccess(int[] access) throws Exception{
+		if(access == null || access.length != 3){
+			throw new Exception("DaplugFsPlan - Invalid access value !");
+		}
+	}
+	
+	//Selection state, as tracked by the session
+	private static final class Selection {
+		
+		private int[] path = null;
+		private boolean isDir = false;
+		
+		void invalidate(){
+			this.path = null;
+		}
+		
+		//Adds a SELECT step counting the commands DaplugSession.selectPath() will send
+		void select(int[] target, boolean dir, List<Step> steps){
+			
+			int from = 0;
+			if(this.path != null){
+				if(Arrays.equals(this.path, target)){
+					return;
+				}
+				if(target.length > this.path.length && Arrays.equals(Arrays.copyOf(target, this.path.length), this.path)){
+					from = this.path.length;
+				}else if(!this.isDir && target.length == this.path.length 
+						&& Arrays.equals(Arrays.copyOf(target, target.length - 1), Arrays.copyOf(this.path, this.path.length - 1))){
+					from = target.length - 1;
+				}
+			}
+			
+			int[] lcs = new int[target.length - from];
+			Arrays.fill(lcs, SELECT_LC);
+			steps.add(new Step(SELECT, target, 0, 0, null, false, false, null, lcs));
+			
+			this.path = target;
+			this.isDir = dir;
+		}
+	}
+}
@@ -0,0 +1,410 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.session;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import io.daplug.utils.DaplugUtils;
+
+/**
+ * Snapshot of a dongle filesystem subtree : directories and files (as created by createDir() and createFile()) with their access conditions and file contents.
+ * The dongle cannot list a directory, so the structure is declared with addDir()/addFile() ; capture() then reads the file contents from a dongle.
+ * 
+ * diff() compares a snapshot to a dongle and restore() writes only the differences. restoreAll() restores several dongles in parallel, one thread per session.
+ * Sessions must be authenticated with the rights needed to create and write the files.
+ * 
+ * Text format (one entry per line) : "DIR path access" or "FILE path access enc cnt data", 
+ * path as "3F00:2214:0036", access as three hex bytes, enc/cnt as 0 or 1, data as a hex string.
+ */
+public final class DaplugFsSnapshot {
+	
+	private static final String HEADER = "#DaplugFsSnapshot 1";
+	
+	/**
+	 * A snapshot entry : a directory or a file.
+	 */
+	public static final class Entry {
+		
+		private final int[] path;
+		private final boolean dir;
+		private final int[] access;
+		private final boolean encFile, cntFile;
+		private byte[] content;
+		
+		Entry(int[] path, boolean dir, int[] access, boolean encFile, boolean cntFile, byte[] content){
+			this.path = path.clone();
+			this.dir = dir;
+			this.access = access.clone();
+			this.encFile = encFile;
+			this.cntFile = cntFile;
+			this.content = content;
+		}
+		
+		public int[] getPath(){
+			return this.path.clone();
+		}
+		
+		public boolean isDir(){
+			return this.dir;
+		}
+		
+		public int[] getAccess(){
+			return this.access.clone();
+		}
+		
+		public boolean isEncFile(){
+			return this.encFile;
+		}
+		
+		public boolean isCntFile(){
+			return this.cntFile;
+		}
+		
+		/**
+		 * Returns the file content (null for a directory).
+		 */
+		public byte[] getContent(){
+			return this.content == null ? null : this.content.clone();
+		}
+		
+		int getId(){
+			return this.path[this.path.length - 1];
+		}
+		
+		int[] getParent(){
+			return Arrays.copyOf(this.path, this.path.length - 1);
+		}
+		
+		byte[] content(){
+			return this.content;
+		}
+	}
+	
+	private final List<Entry> entries = new ArrayList<Entry>();
+	
+	/**
+	 * Constructs a new empty DaplugFsSnapshot object.
+	 */
+	public DaplugFsSnapshot(){
+	}
+	
+	/**
+	 * Adds a directory.
+	 * @param path Absolute directory path, for example {0x3F00, 0x2214}.
+	 * @param access Access conditions, as given to createDir().
+	 * @throws Exception if a parameter is not valid.
+	 */
+	public void addDir(int[] path, int[] access) throws Exception{
+		checkEntry(path, access);
+		this.entries.add(new Entry(path, true, access, false, false, null));
+	}
+	
+	/**
+	 * Adds a file.
+	 * @param path Absolute file path, for example {0x3F00, 0x2214, 0x0036}.
+	 * @param access Access conditions, as given to createFile().
+	 * @param isEncFile Encrypted file.
+	 * @param isCntFile Counter file (its content is neither compared nor restored).
+	 * @param content File content ; its length is the file size.
+	 * @throws Exception if a parameter is not valid.
+	 */
+	public void addFile(int[] path, int[] access, boolean isEncFile, boolean isCntFile, byte[] content) throws Exception{
+		checkEntry(path, access);
+		if(content == null || content.length > DaplugSession.MAX_FS_FILE_SIZE){
+			throw new Exception("addFile() - Invalid content !");
+		}
+		this.entries.add(new Entry(path, false, access, isEncFile, isCntFile, content.clone()));
+	}
+	
+	/**
+	 * Returns the snapshot entries, parents first.
+	 */
+	public List<Entry> getEntries(){
+		return Collections.unmodifiableList(sorted());
+	}
+	
+	/**
+	 * Reads the contents of the snapshot files from a dongle.
+	 * @param session An opened DaplugSession.
+	 * @throws Exception if a file cannot be selected or read.
+	 */
+	public void capture(DaplugSession session) throws Exception{
+		
+		for(Entry e : sorted()){
+			if(e.isDir()){
+				continue;
+			}
+			if(!select(session, e.path)){
+				throw new Exception("capture() - Cannot select file " + pathString(e.path) + " !");
+			}
+			int size = session.getSelectedFileSize();
+			if(size < 0){
+				size = e.content.length;
+			}
+			byte[] content = new byte[size];
+			session.readBinary(0, content, 0, size);
+			e.content = content;
+		}
+	}
+	
+	/**
+	 * Compares the snapshot to a dongle.
+	 * @param session An opened DaplugSession.
+	 * @return The operations needed to make the dongle match the snapshot.
+	 * @throws Exception if a file cannot be read.
+	 */
+	public DaplugFsDiff diff(DaplugSession session) throws Exception{
+		
+		DaplugFsDiff diff = new DaplugFsDiff();
+		List<int[]> missingDirs = new ArrayList<int[]>();
+		
+		for(Entry e : sorted()){
+			
+			//Under a missing directory, everything is missing
+			boolean parentMissing = false;
+			for(int[] m : missingDirs){
+				parentMissing = parentMissing || startsWith(e.path, m);
+			}
+			
+			if(parentMissing || !select(session, e.path)){
+				diff.add(new DaplugFsDiff.Operation(DaplugFsDiff.CREATE, e, 0, e.content));
+				if(e.isDir()){
+					missingDirs.add(e.path);
+				}
+				continue;
+			}
+			
+			if(e.isDir() || e.isCntFile()){
+				continue;
+			}
+			
+			//Existing file : a size change needs a new file, else only the modified ranges are written
+			int size = session.getSelectedFileSize();
+			if(size >= 0 && size != e.content.length){
+				diff.add(new DaplugFsDiff.Operation(DaplugFsDiff.RECREATE, e, 0, e.content));
+				continue;
+			}
+			byte[] current = new byte[e.content.length];
+			session.readBinary(0, current, 0, current.length);
+			int i = 0;
+			while(i < current.length){
+				if(current[i] == e.content[i]){
+					i++;
+					continue;
+				}
+				int start = i;
+				while(i < current.length && current[i] != e.content[i]){
+					i++;
+				}
+				diff.add(new DaplugFsDiff.Operation(DaplugFsDiff.WRITE, e, start, Arrays.copyOfRange(e.content, start, i)));
+			}
+		}
+		
+		return diff;
+	}
+	
+	/**
+	 * Makes a dongle match the snapshot, writing only the differences.
+	 * @param session An authenticated DaplugSession.
+	 * @return The applied operations.
+	 * @throws Exception if an operation fails.
+	 */
+	public DaplugFsDiff restore(DaplugSession session) throws Exception{
+		DaplugFsDiff diff = diff(session);
+		diff.apply(session);
+		return diff;
+	}
+	
+	/**
+	 * Restores the snapshot on several dongles in parallel, one thread per session.
+	 * @param sessions Authenticated sessions, each on a different dongle.
+	 * @return The error of each session restore, null when successful.
+	 * @throws InterruptedException if interrupted while waiting for the restores.
+	 */
+	public Exception[] restoreAll(List<DaplugSession> sessions) throws InterruptedException{
+		
+		final Exception[] errors = new Exception[sessions.size()];
+		if(sessions.isEmpty()){
+			return errors;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(sessions.size());
+		try{
+			for(int i = 0; i < sessions.size(); i++){
+				final int index = i;
+				final DaplugSession session = sessions.get(i);
+				executor.execute(new Runnable(){
+					@Override
+					public void run(){
+						try{
+							restore(session);
+						}catch(Exception e){
+							errors[index] = e;
+						}
+					}
+				});
+			}
+		}finally{
+			executor.shutdown();
+		}
+		while(!executor.awaitTermination(1, TimeUnit.SECONDS)){
+			//Restores still running
+		}
+		
+		return errors;
+	}
+	
+	/**
+	 * Writes the snapshot in text format.
+	 * @param out The output stream (not closed).
+	 * @throws IOException if an error occurs when writing.
+	 */
+	public void write(OutputStream out) throws IOException{
+		
+		Writer w = new OutputStreamWriter(out, "US-ASCII");
+		w.write(HEADER + "\n");
+		for(Entry e : sorted()){
+			String access = String.format("%02X%02X%02X", e.access[0], e.access[1], e.access[2]);
+			if(e.isDir()){
+				w.write("DIR " + pathString(e.path) + " " + access + "\n");
+			}else{
+				w.write("FILE " + pathString(e.path) + " " + access + " " + (e.encFile ? 1 : 0) + " " + (e.cntFile ? 1 : 0) 
+						+ " " + DaplugUtils.byteArrayToHexString(e.content) + "\n");
+			}
+		}
+		w.flush();
+	}
+	
+	/**
+	 * Reads a snapshot in text format.
+	 * @param in The input stream (not closed).
+	 * @return The snapshot.
+	 * @throws Exception if the snapshot is not valid.
+	 */
+	public static DaplugFsSnapshot read(InputStream in) throws Exception{
+		
+		DaplugFsSnapshot snapshot = new DaplugFsSnapshot();
+		BufferedReader r = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+		
+		String line = r.readLine();
+		if(line == null || !line.equals(HEADER)){
+			throw new Exception("read() - Invalid snapshot header !");
+		}
+		while((line = r.readLine()) != null){
+			line = line.trim();
+			if(line.isEmpty() || line.startsWith("#")){
+				continue;
+			}
+			String[] f = line.split(" ");
+			if(f[0].equals("DIR") && f.length == 3){
+				snapshot.addDir(parsePath(f[1]), parseAccess(f[2]));
+			}else if(f[0].equals("FILE") && (f.length == 6 || f.length == 5)){
+				byte[] content = f.length == 6 ? DaplugUtils.hexStringToByteArray(f[5]) : new byte[0];
+				snapshot.addFile(parsePath(f[1]), parseAccess(f[2]), f[3].equals("1"), f[4].equals("1"), content);
+			}else{
+				throw new Exception("read() - Invalid snapshot line : " + line);
+			}
+		}
+		
+		return snapshot;
+	}
+	
+	//=== private methods ===
+	
+	//Entries sorted parents first
+	private List<Entry> sorted(){
+		List<Entry> list = new ArrayList<Entry>(this.entries);
+		Collections.sort(list, new Comparator<Entry>(){
+			@Override
+			public int compare(Entry a, Entry b){
+				for(int i = 0; i < Math.min(a.path.length, b.path.length); i++){
+					if(a.path[i] != b.path[i]){
+						return a.path[i] < b.path[i] ? -1 : 1;
+					}
+				}
+				return a.path.length - b.path.length;
+			}
+		});
+		return list;
+	}
+	
+	static boolean select(DaplugSession session, int[] path) throws Exception{
+		session.selectPath(path);
+		return Arrays.equals(session.getSelectedPath(), path);
+	}
+	
+	static String pathString(int[] path){
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < path.length; i++){
+			if(i > 0){
+				sb.append(':');
+			}
+			sb.append(String.format("%04X", path[i]));
+		}
+		return sb.toString();
+	}
+	
+	private static boolean startsWith(int[] path, int[] prefix){
+		return path.length > prefix.length && Arrays.equals(Arrays.copyOf(path, prefix.length), prefix);
+	}
+	
+	private void checkEntry(int[] path, int[] access) throws Exception{
+		
+		if(path == null || path.length < 2 || path[0] != DaplugSession.FS_MASTER_FILE){
+			throw new Exception("DaplugFsSnapshot - Invalid path : " + (path == null ? null : Arrays.toString(path)));
+		}
+		if(access == null || access.length != 3){
+			throw new Exception("DaplugFsSnapshot - Invalid access value !");
+		}
+		for(Entry e : this.entries){
+			if(Arrays.equals(e.path, path)){
+				throw new Exception("DaplugFsSnapshot - Duplicate path : " + pathString(path));
+			}
+		}
+	}
+	
+	private static int[] parsePath(String s) throws Exception{
+		String[] ids = s.split(":");
+		int[] path = new int[ids.length];
+		for(int i = 0; i < ids.length; i++){
+			path[i] = Integer.parseInt(ids[i], 16);
+		}
+		return path;
+	}
+	
+	private static int[] parseAccess(String s) throws Exception{
+		byte[] b = DaplugUtils.hexStringToByteArray(s);
+		if(b.length != 3){
+			throw new Exception("read() - Invalid access value : " + s);
+		}
+		return new int[]{b[0] & 0xFF, b[1] & 0xFF, b[2] & 0xFF};
+	}
+}
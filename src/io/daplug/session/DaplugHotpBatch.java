@@ -0,0 +1,93 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of DaplugSession.hotpBatch() : the successive HOTP codes generated, in order. 
+ * Generation stops at the first failure ; the codes generated before it are kept and the failure is given by getError().
+ */
+public final class DaplugHotpBatch {
+	
+	/**
+	 * Receives the batch progress, on the thread calling hotpBatch().
+	 */
+	public interface Listener {
+		
+		/**
+		 * Called after each generated code.
+		 * @param done Number of codes generated so far.
+		 * @param total Number of codes requested.
+		 */
+		void progress(int done, int total);
+	}
+	
+	private final int requested;
+	private final List<byte[]> codes;
+	private Exception error = null;
+	
+	DaplugHotpBatch(int requested){
+		this.requested = requested;
+		this.codes = new ArrayList<byte[]>(requested);
+	}
+	
+	/**
+	 * @return The generated codes, in order.
+	 */
+	public List<byte[]> getCodes(){
+		return Collections.unmodifiableList(this.codes);
+	}
+	
+	/**
+	 * @return The number of generated codes.
+	 */
+	public int getCount(){
+		return this.codes.size();
+	}
+	
+	/**
+	 * @return The number of requested codes.
+	 */
+	public int getRequested(){
+		return this.requested;
+	}
+	
+	/**
+	 * @return true if all the requested codes were generated.
+	 */
+	public boolean isComplete(){
+		return this.codes.size() == this.requested;
+	}
+	
+	/**
+	 * @return The error which stopped the generation, or null.
+	 */
+	public Exception getError(){
+		return this.error;
+	}
+	
+	void add(byte[] code){
+		this.codes.add(code);
+	}
+	
+	void fail(Exception e){
+		this.error = e;
+	}
+}
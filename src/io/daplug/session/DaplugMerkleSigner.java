@@ -0,0 +1,212 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.session;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.daplug.crypto.DaplugMerkleSignature;
+import io.daplug.crypto.DaplugMerkleTree;
+import io.daplug.utils.DaplugFuture;
+
+/**
+ * Signs messages in batches with a single dongle HMAC : messages submitted during a short window are hashed into a Merkle tree 
+ * (see DaplugMerkleTree) and only the root is signed by the dongle. Each caller gets the root signature and the inclusion proof of its message, 
+ * which DaplugMerkleTree.verify() checks on the host.
+ * A batch is sent when the window started by its first message is over, or when it holds maxBatch messages.
+ * The batches are signed by a background thread (a daemon thread) ; the session must not be used by other threads while the signer is open.
+ */
+public class DaplugMerkleSigner implements Closeable {
+	
+	public static final long DEFAULT_WINDOW = 10; //Milliseconds
+	public static final int DEFAULT_MAX_BATCH = 1024;
+	
+	private static final class Pending {
+		
+		final byte[] message;
+		final DaplugFuture<DaplugMerkleSignature> future = new DaplugFuture<DaplugMerkleSignature>();
+		
+		Pending(byte[] message){
+			this.message = message;
+		}
+	}
+	
+	private final DaplugSession session;
+	private final int keysetVersion;
+	private final int options;
+	private final byte[] div1;
+	private final byte[] div2;
+	private final long window;
+	private final int maxBatch;
+	
+	private final List<Pending> pending = new ArrayList<Pending>();
+	private long pendingSince = 0;
+	private boolean closed = false;
+	private final Thread signer;
+	
+	/**
+	 * Constructs a new DaplugMerkleSigner object with the default window and batch size.
+	 * @see #DaplugMerkleSigner(DaplugSession, int, int, byte[], byte[], long, int)
+	 */
+	public DaplugMerkleSigner(DaplugSession session, int keysetVersion, int options, byte[] div1, byte[] div2){
+		this(session, keysetVersion, options, div1, div2, DEFAULT_WINDOW, DEFAULT_MAX_BATCH);
+	}
+	
+	/**
+	 * Constructs a new DaplugMerkleSigner object and starts its background thread.
+	 * @param session An opened DaplugSession.
+	 * @param keysetVersion HMAC keyset version.
+	 * @param options Diversification options, as for DaplugSession.hmac().
+	 * @param div1 First diversifier (optional).
+	 * @param div2 Second diversifier (optional).
+	 * @param window Time to wait for more messages after the first message of a batch, in milliseconds.
+	 * @param maxBatch Maximum number of messages per batch.
+	 */
+	public DaplugMerkleSigner(DaplugSession session, int keysetVersion, int options, byte[] div1, byte[] div2, long window, int maxBatch){
+		
+		if(window < 0 || maxBatch < 1){
+			throw new IllegalArgumentException("DaplugMerkleSigner() - Invalid window or batch size !");
+		}
+		
+		this.session = session;
+		this.keysetVersion = keysetVersion;
+		this.options = options;
+		this.div1 = div1;
+		this.div2 = div2;
+		this.window = window;
+		this.maxBatch = maxBatch;
+		
+		this.signer = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				work();
+			}
+		}, "daplug-merkle-signer");
+		this.signer.setDaemon(true);
+		this.signer.start();
+	}
+	
+	/**
+	 * Queues a message for the current batch.
+	 * @param message The message.
+	 * @return The future signature of the message.
+	 */
+	public synchronized DaplugFuture<DaplugMerkleSignature> submit(byte[] message){
+		
+		Pending p = new Pending(message.clone());
+		if(this.closed){
+			p.future.setException(new IllegalStateException("DaplugMerkleSigner.submit() - Signer closed !"));
+			return p.future;
+		}
+		if(this.pending.isEmpty()){
+			this.pendingSince = System.currentTimeMillis();
+		}
+		this.pending.add(p);
+		this.notifyAll();
+		
+		return p.future;
+	}
+	
+	/**
+	 * Signs a batch of messages at once, with a single dongle HMAC.
+	 * Must not be called while the background thread may use the session (that is, before close()) unless the caller synchronizes the session use.
+	 * @param messages The messages (at least one).
+	 * @return The signature of each message, in the same order.
+	 * @throws Exception if the dongle failed to sign the root.
+	 */
+	public List<DaplugMerkleSignature> sign(List<byte[]> messages) throws Exception{
+		
+		DaplugMerkleTree tree = new DaplugMerkleTree(messages);
+		byte[] mac = this.session.hmac(this.keysetVersion, this.options, this.div1, this.div2, tree.getSignedData());
+		if(mac == null){
+			throw new Exception("DaplugMerkleSigner.sign() - Root signature failed !");
+		}
+		
+		List<DaplugMerkleSignature> signatures = new ArrayList<DaplugMerkleSignature>(messages.size());
+		for(int i = 0; i < messages.size(); i++){
+			signatures.add(new DaplugMerkleSignature(mac, i, messages.size(), tree.getProof(i)));
+		}
+		return signatures;
+	}
+	
+	/**
+	 * Signs the messages still queued, then stops the background thread.
+	 */
+	@Override
+	public void close(){
+		synchronized(this){
+			this.closed = true;
+			this.notifyAll();
+		}
+		try{
+			this.signer.join();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	//=== private methods ===
+	
+	private void work(){
+		
+		while(true){
+			List<Pending> batch;
+			synchronized(this){
+				try{
+					while(!this.closed && this.pending.isEmpty()){
+						this.wait();
+					}
+					long remaining;
+					while(!this.closed && this.pending.size() < this.maxBatch 
+							&& (remaining = this.pendingSince + this.window - System.currentTimeMillis()) > 0){
+						this.wait(remaining);
+					}
+				}catch(InterruptedException e){
+					this.closed = true;
+				}
+				if(this.pending.isEmpty()){
+					return;
+				}
+				int n = Math.min(this.maxBatch, this.pending.size());
+				batch = new ArrayList<Pending>(this.pending.subList(0, n));
+				this.pending.subList(0, n).clear();
+				this.pendingSince = System.currentTimeMillis();
+			}
+			signBatch(batch);
+		}
+	}
+	
+	private void signBatch(List<Pending> batch){
+		
+		List<byte[]> messages = new ArrayList<byte[]>(batch.size());
+		for(Pending p : batch){
+			messages.add(p.message);
+		}
+		
+		try{
+			List<DaplugMerkleSignature> signatures = sign(messages);
+			for(int i = 0; i < batch.size(); i++){
+				batch.get(i).future.set(signatures.get(i));
+			}
+		}catch(Throwable e){
+			for(Pending p : batch){
+				p.future.setException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.daplug.utils.DaplugFuture;
+
+/**
+ * Packs small independent records into as few ECB encrypt (or decrypt) commands as possible.
+ * In ECB mode each block is processed alone, so records submitted one by one can share a command : 
+ * a batch is sent when the next record does not fit in the command, when flush() is called, or when the result of one of its records 
+ * is waited for (get() on its future). Records submitted before the first get() share the command ; a get() right after each submit() 
+ * sends each record alone.
+ * Each record gets its own result through a DaplugFuture.
+ * Records longer than a command are sent alone, in several commands.
+ * A DaplugRecordEncryptor is thread-safe ; the session must not be used by other threads while a batch is sent.
+ */
+public class DaplugRecordEncryptor {
+	
+	private final DaplugSession session;
+	private final int keyVersion;
+	private final int keyId;
+	private final int mode;
+	private final byte[] div1;
+	private final byte[] div2;
+	private final boolean encrypt;
+	private final int capacity;
+	
+	private final List<byte[]> records = new ArrayList<byte[]>();
+	private final List<DaplugFuture<byte[]>> futures = new ArrayList<DaplugFuture<byte[]>>();
+	private int pendingLen = 0;
+	private int commands = 0;
+	
+	//Future of a queued record : waiting for the result sends the pending batch
+	private final class RecordFuture extends DaplugFuture<byte[]> {
+		
+		@Override
+		public byte[] get() throws InterruptedException, ExecutionException{
+			if(!isDone()){
+				flush();
+			}
+			return super.get();
+		}
+		
+		@Override
+		public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException{
+			if(!isDone()){
+				flush();
+			}
+			return super.get(timeout, unit);
+		}
+	}
+	
+	/**
+	 * Constructs a new DaplugRecordEncryptor object.
+	 * @param session An opened DaplugSession.
+	 * @param keyVersion Encryption DaplugKeyset version.
+	 * @param keyId The index of the keyset key to use (1,2 or 3).
+	 * @param mode ENC_ECB, possibly with ENC_1_DIV or ENC_2_DIV.
+	 * @param div1 First diversifier (optional).
+	 * @param div2 Second diversifier (optional).
+	 * @param encrypt true to encrypt records, false to decrypt them.
+	 * @throws Exception if the mode is not ECB.
+	 */
+	public DaplugRecordEncryptor(DaplugSession session, int keyVersion, int keyId, int mode, byte[] div1, byte[] div2, boolean encrypt) throws Exception{
+		
+		if((mode & DaplugSession.ENC_ECB) == 0 || (mode & DaplugSession.ENC_CBC) != 0){
+			throw new Exception("DaplugRecordEncryptor() - Only ECB mode records can share a command !");
+		}
+		
+		this.session = session;
+		this.keyVersion = keyVersion;
+		this.keyId = keyId;
+		this.mode = mode;
+		this.div1 = div1;
+		this.div2 = div2;
+		this.encrypt = encrypt;
+		this.capacity = DaplugSession.getMaxCryptDataLength(mode);
+	}
+	
+	/**
+	 * Queues a record. If it does not fit in the pending command, the pending records are sent first.
+	 * @param record The record (length multiple of 8 bytes).
+	 * @return The future result of this record. Waiting for it sends the pending records.
+	 * @throws Exception if the record length is not a multiple of 8 bytes.
+	 */
+	public synchronized DaplugFuture<byte[]> submit(byte[] record) throws Exception{
+		
+		if(record.length == 0 || record.length % 8 != 0){
+			throw new Exception("DaplugRecordEncryptor.submit() - Invalid record length : " + record.length);
+		}
+		
+		if(this.pendingLen + record.length > this.capacity){
+			flush();
+		}
+		
+		DaplugFuture<byte[]> f = new RecordFuture();
+		this.records.add(record.clone());
+		this.futures.add(f);
+		this.pendingLen = this.pendingLen + record.length;
+		
+		if(this.pendingLen >= this.capacity){
+			flush();
+		}
+		
+		return f;
+	}
+	
+	/**
+	 * Sends the pending records. Their futures are completed with the result, or with the error if the command failed.
+	 */
+	public synchronized void flush(){
+		
+		if(this.records.isEmpty()){
+			return;
+		}
+		
+		byte[] data = new byte[this.pendingLen];
+		int off = 0;
+		for(byte[] r : this.records){
+			System.arraycopy(r, 0, data, off, r.length);
+			off = off + r.length;
+		}
+		
+		try{
+			byte[] out;
+			if(this.encrypt){
+				out = this.session.encryptBuffer(this.keyVersion, this.keyId, this.mode, null, this.div1, this.div2, data);
+			}else{
+				out = this.session.decryptBuffer(this.keyVersion, this.keyId, this.mode, null, this.div1, this.div2, data);
+			}
+			this.commands = this.commands + (data.length + this.capacity - 1) / this.capacity;
+			off = 0;
+			for(int i = 0; i < this.records.size(); i++){
+				int len = this.records.get(i).length;
+				byte[] r = new byte[len];
+				System.arraycopy(out, off, r, 0, len);
+				off = off + len;
+				this.futures.get(i).set(r);
+			}
+		}catch(Exception e){
+			for(DaplugFuture<byte[]> f : this.futures){
+				f.setException(e);
+			}
+		}finally{
+			this.records.clear();
+			this.futures.clear();
+			this.pendingLen = 0;
+		}
+	}
+	
+	/**
+	 * @return The number of records waiting for the next command.
+	 */
+	public synchronized int getPendingRecords(){
+		return this.records.size();
+	}
+	
+	/**
+	 * @return The number of commands sent so far.
+	 */
+	public synchronized int getCommandCount(){
+		return this.commands;
+	}
+}
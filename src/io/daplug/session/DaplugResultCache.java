@@ -0,0 +1,170 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.session;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import io.daplug.utils.DaplugUtils;
+
+/**
+ * Host side cache of deterministic dongle results : ECB encrypt()/decrypt() and hmac() return the same result for the same keyset, 
+ * options, diversifiers and input. Entries are keyed by dongle serial, keyset version, operation (with its options and diversifiers) and SHA-256 of the input.
+ * Set on a session with DaplugSession.setResultCache() ; putKey(), deleteKey(), importKey() and reset() invalidate the keysets concerned.
+ * Keysets changed by another host are not detected. Decryption results (clear data) are kept in memory.
+ * 
+ * The number of entries is bounded : least recently used entries are evicted beyond the maximum. The cache can be shared by several sessions.
+ */
+public final class DaplugResultCache {
+	
+	public static final int DEFAULT_MAX_ENTRIES = 4096;
+	
+	private final int maxEntries;
+	private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true); //Access order
+	private long hits = 0, misses = 0, evictions = 0;
+	
+	/**
+	 * Constructs a new DaplugResultCache object.
+	 * @param maxEntries Maximum number of cached results.
+	 */
+	public DaplugResultCache(int maxEntries){
+		if(maxEntries <= 0){
+			throw new IllegalArgumentException("DaplugResultCache() - Invalid size : " + maxEntries);
+		}
+		this.maxEntries = maxEntries;
+	}
+	
+	/**
+	 * Returns a cached result.
+	 * @param serial Dongle serial.
+	 * @param keysetVersion Keyset version.
+	 * @param operation Operation, options and diversifiers, as a string.
+	 * @param input Operation input.
+	 * @return A copy of the result, or null if not cached.
+	 */
+	public synchronized byte[] get(byte[] serial, int keysetVersion, String operation, byte[] input){
+		byte[] result = this.entries.get(key(serial, keysetVersion, operation, input));
+		if(result == null){
+			this.misses++;
+			return null;
+		}
+		this.hits++;
+		return result.clone();
+	}
+	
+	/**
+	 * Caches a result.
+	 * @param serial Dongle serial.
+	 * @param keysetVersion Keyset version.
+	 * @param operation Operation, options and diversifiers, as a string.
+	 * @param input Operation input.
+	 * @param result Operation result.
+	 */
+	public synchronized void put(byte[] serial, int keysetVersion, String operation, byte[] input, byte[] result){
+		
+		this.entries.put(key(serial, keysetVersion, operation, input), result.clone());
+		
+		//Evict least recently used entries
+		Iterator<byte[]> it = this.entries.values().iterator();
+		while(this.entries.size() > this.maxEntries && it.hasNext()){
+			it.next();
+			it.remove();
+			this.evictions++;
+		}
+	}
+	
+	/**
+	 * Drops the cached results of a keyset.
+	 * @param serial Dongle serial.
+	 * @param keysetVersion Keyset version.
+	 */
+	public synchronized void invalidate(byte[] serial, int keysetVersion){
+		removeEntries(prefix(serial) + String.format("%02X", keysetVersion & 0xFF) + "/");
+	}
+	
+	/**
+	 * Drops the cached results of all the keysets of a dongle.
+	 * @param serial Dongle serial.
+	 */
+	public synchronized void invalidateAll(byte[] serial){
+		removeEntries(prefix(serial));
+	}
+	
+	/**
+	 * Drops all the cached results. Metrics are kept.
+	 */
+	public synchronized void clear(){
+		this.entries.clear();
+	}
+	
+	/**
+	 * Returns the number of get() calls which found the result.
+	 */
+	public synchronized long getHits(){
+		return this.hits;
+	}
+	
+	/**
+	 * Returns the number of get() calls which did not find the result.
+	 */
+	public synchronized long getMisses(){
+		return this.misses;
+	}
+	
+	/**
+	 * Returns the number of entries evicted to keep the cache under its maximum size.
+	 */
+	public synchronized long getEvictions(){
+		return this.evictions;
+	}
+	
+	/**
+	 * Returns the number of cached results.
+	 */
+	public synchronized int getEntries(){
+		return this.entries.size();
+	}
+	
+	//=== private methods ===
+	
+	private void removeEntries(String prefix){
+		Iterator<String> it = this.entries.keySet().iterator();
+		while(it.hasNext()){
+			if(it.next().startsWith(prefix)){
+				it.remove();
+			}
+		}
+	}
+	
+	private static String prefix(byte[] serial){
+		return DaplugUtils.byteArrayToHexString(serial) + "/";
+	}
+	
+	private static String key(byte[] serial, int keysetVersion, String operation, byte[] input){
+		
+		byte[] hash;
+		try{
+			hash = MessageDigest.getInstance("SHA-256").digest(input);
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException("DaplugResultCache - SHA-256 not available !", e);
+		}
+		
+		return prefix(serial) + String.format("%02X", keysetVersion & 0xFF) + "/" + operation + "/" + DaplugUtils.byteArrayToHexString(hash);
+	}
+}
@@ -21,16 +21,23 @@
 
 package io.daplug.session;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.Scanner;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import io.daplug.apdu.DaplugApduCommand;
 import io.daplug.apdu.DaplugApduResponse;
 import io.daplug.crypto.DaplugCrypto;
 import io.daplug.dongle.DaplugDongle;
 import io.daplug.dongle.DaplugEnumerator;
+import io.daplug.keyset.DaplugKeyRegistry;
 import io.daplug.keyset.DaplugKeyset;
 import io.daplug.utils.DaplugUtils;
 
@@ -84,6 +91,12 @@ public final class DaplugSession {
 								HMAC = 0,
 								HOTP = 1,
 								TOTP = 2;
+	
+	private static final int	TRANSIENT_KEYSET = 0xF0; /* RAM keyset, see exportKey() & importKey() */
+	
+	private static final int	SELECTED_UNKNOWN = 0,
+								SELECTED_DF = 1,
+								SELECTED_EF = 2;
     
     private Vector<String> donglesList; //Daplug dongles list
 	
@@ -100,6 +113,16 @@ public final class DaplugSession {
     private int securityLevel; /* Security level of the secure channel */
     private boolean session_opened; /* A flag indicating if a secure channel session is established or no. */
     
+    private DaplugKeyRegistry keyRegistry; /* Keysets last written to dongles (optional) */
+    private boolean keyRegistryCheck; /* Check the registry against the dongle before skipping a putKey */
+    private byte[] dongleSerial; /* Serial of the current dongle, read once for the key registry and the file cache */
+    private DaplugFileCache fileCache; /* EF contents cache (optional) */
+    private DaplugResultCache resultCache; /* ECB encrypt/decrypt and hmac results cache (optional) */
+    
+    private int[] selectedPath; /* Currently selected absolute path, null if not known */
+    private int selectedType; /* Type of the selected file (SELECTED_DF, SELECTED_EF or SELECTED_UNKNOWN) */
+    private int selectedSize; /* Size of the selected EF given by its FCP, -1 if not known */
+    
     /**
      * Constructs a new DaplugSession() object.
      * A DaplugSession is the main object. It contains informations about the selected Daplug dongle and the secure channel session.
@@ -121,6 +144,16 @@ public final class DaplugSession {
     	
     	this.securityLevel = 0;
     	this.session_opened = false;
+    	
+    	this.keyRegistry = null;
+    	this.keyRegistryCheck = false;
+    	this.dongleSerial = null;
+    	this.fileCache = null;
+    	this.resultCache = null;
+    	
+    	this.selectedPath = null;
+    	this.selectedType = SELECTED_UNKNOWN;
+    	this.selectedSize = -1;
     }
     
     /**
@@ -153,6 +186,8 @@ public final class DaplugSession {
     	if(id < 0 || id > this.donglesList.size() - 1) throw new Exception("getDongleById() - Invalid id : " + id);			
     	
 		this.dongle = new DaplugDongle(this.donglesList.elementAt(id));
+		this.dongleSerial = null;
+		this.invalidateSelection();
 		
     }
     
@@ -175,6 +210,27 @@ public final class DaplugSession {
      */
     public DaplugApduResponse exchange(DaplugApduCommand apdu) throws Exception{
     	
+    	return exchange(apdu, true);
+    }
+    
+    //Exchanges an Apdu command ; the command and the response are printed only if log is true (never for secret data)
+    private DaplugApduResponse exchange(DaplugApduCommand apdu, boolean log) throws Exception{
+    	
+    	DaplugApduResponse r = null;
+    	try{
+    		r = this.transmit(apdu, log);
+    	}finally{
+    		//What the dongle did, and selected, is not known
+    		if(r == null){
+    			this.invalidateSelection();
+    		}
+    	}
+    	
+    	return r;
+    }
+    
+    private DaplugApduResponse transmit(DaplugApduCommand apdu, boolean log) throws Exception{
+    	
     	//Wrap
     	DaplugApduCommand wrappedApdu = this.wrapApdu(apdu);
     	
@@ -208,8 +264,10 @@ public final class DaplugSession {
     		System.err.println(e.getMessage());
     	}   
     	
-    	System.out.println("=> " + wrappedApdu.toString());
-    	System.out.println("<= " + DaplugUtils.byteArrayToHexString(responseBytes));
+    	if(log){
+    		System.out.println("=> " + wrappedApdu.toString());
+    		System.out.println("<= " + DaplugUtils.byteArrayToHexString(responseBytes));
+    	}
     	
     	return retResponse;
     }
@@ -394,6 +452,7 @@ public final class DaplugSession {
 		System.arraycopy(r.getData(), 12+counter.length+cardChallenge.length, cardCryptogram, 0, cardCryptogram.length);
 		
 		//Compute session keys
+		this.clearSessionKeys();
 		//Session s-enc key
 		this.sEncKey = DaplugCrypto.computeSessionKey(counter, DaplugCrypto.KEY_CONSTANT_S_ENC, keys.getKey(0));
 		//Session r-enc key
@@ -517,6 +576,7 @@ public final class DaplugSession {
         	//this.dongle = null; 		
     		this.securityLevel = 0;
     		this.session_opened = false;
+    		this.clearSessionKeys();
     	}
     }
     
@@ -578,16 +638,7 @@ public final class DaplugSession {
 		element10 = String.format("%02X", keysetUsage);
 		element12 = String.format("%04X", k.getAccess());
 		
-		//=== Encrypt GP keys ===
-		
 		try{
-			//ENC key
-			element6 = DaplugUtils.byteArrayToHexString(DaplugCrypto.tripleDES_ECB_GP(k.getKey(0), this.sDekKey, DaplugCrypto.ENCRYPT));
-			//MAC key
-			element13 = DaplugUtils.byteArrayToHexString(DaplugCrypto.tripleDES_ECB_GP(k.getKey(1), this.sDekKey, DaplugCrypto.ENCRYPT));
-			//DEK key
-			element15 = DaplugUtils.byteArrayToHexString(DaplugCrypto.tripleDES_ECB_GP(k.getKey(2), this.sDekKey, DaplugCrypto.ENCRYPT));
-				
 			//=== Compute KCVs ===
 			//KCV1
 			element8 = DaplugUtils.byteArrayToHexString(DaplugCrypto.computeKCV(k.getKey(0)));
@@ -595,8 +646,34 @@ public final class DaplugSession {
 			element14 = DaplugUtils.byteArrayToHexString(DaplugCrypto.computeKCV(k.getKey(1)));
 			//KCV3
 			element16 = DaplugUtils.byteArrayToHexString(DaplugCrypto.computeKCV(k.getKey(2)));
+			
+			//=== Encrypt GP keys ===
+			//ENC key
+			element6 = DaplugUtils.byteArrayToHexString(DaplugCrypto.tripleDES_ECB_GP(k.getKey(0), this.sDekKey, DaplugCrypto.ENCRYPT));
+			//MAC key
+			element13 = DaplugUtils.byteArrayToHexString(DaplugCrypto.tripleDES_ECB_GP(k.getKey(1), this.sDekKey, DaplugCrypto.ENCRYPT));
+			//DEK key
+			element15 = DaplugUtils.byteArrayToHexString(DaplugCrypto.tripleDES_ECB_GP(k.getKey(2), this.sDekKey, DaplugCrypto.ENCRYPT));
 		}catch(Exception e){
+			//Never send a PUT KEY with missing key values
 			System.err.println(e.getMessage());
+			return;
+		}
+		
+		//=== Same keyset already written? (regular mode only, XOR mode always changes the keyset) ===
+		if(this.keyRegistry != null && mode == 0x81){
+			try{
+				byte[] serial = this.getCachedSerial();
+				byte[] kcvs = DaplugUtils.hexStringToByteArray(element8 + element14 + element16);
+				if(serial != null && this.keyRegistry.matches(serial, k.getVersion(), keysetUsage, k.getAccess(), kcvs)
+						&& (!this.keyRegistryCheck || this.checkKeyRegistry(k.getVersion()))){
+					System.out.println("putKey() - DaplugKeyset " + String.format("%02X", k.getVersion()) + " unchanged, not uploaded");
+					return;
+				}
+			}catch(Exception e){
+				//Registry check failed, upload the keyset anyway
+				System.err.println(e.getMessage());
+			}
 		}
 		
 		//Form the putkey buf
@@ -637,8 +714,19 @@ public final class DaplugSession {
     	try{
     		DaplugApduCommand a = new DaplugApduCommand(retBuf);
     		DaplugApduResponse r = this.exchange(a);
+    		this.invalidateSelection(); //The keyset file may have been created and selected
     		if(r.normalEnding()){
     			System.out.println("putKey() - DaplugKeyset " + String.format("%02X", k.getVersion()) + " successfuly created/modified");
+    			this.invalidateCachedResults(k.getVersion());
+    			if(this.keyRegistry != null && this.getCachedSerial() != null){
+    				if(mode == 0x81){
+    					this.keyRegistry.record(this.dongleSerial, k.getVersion(), keysetUsage, k.getAccess(), 
+    							DaplugUtils.hexStringToByteArray(element8 + element14 + element16));
+    				}else{
+    					//XORed content is not known
+    					this.keyRegistry.remove(this.dongleSerial, k.getVersion());
+    				}
+    			}
     		}else{
     			throw new Exception("putKey() - Cannot create/modify keyset " + String.format("%02X", k.getVersion()) + " !");
     		}
@@ -655,19 +743,70 @@ public final class DaplugSession {
      */
     public void deleteKey(int keyVersion) throws Exception{
     	
-    	String keyFileId = "10";
-    	String keyFilePath  = "3F00:C00F:C0DE:0001:10";
+    	int keyFileId = 0x1000 + (keyVersion & 0xFF);
     	
-    	keyFileId = keyFileId.concat(String.format("%02X", keyVersion));
-    	keyFilePath = keyFilePath.concat(String.format("%02X", keyVersion));
+    	this.selectPath(new int[]{FS_MASTER_FILE, 0xC00F, 0xC0DE, 0x0001, keyFileId});
+    	this.deleteFileOrDir(keyFileId);
     	
-    	this.selectPath(keyFilePath);
-    	this.deleteFileOrDir(Integer.parseInt(keyFileId,16) & 0xFFFF);
+    	if(this.keyRegistry != null && this.getCachedSerial() != null){
+    		this.keyRegistry.remove(this.dongleSerial, keyVersion);
+    	}
+    	this.invalidateCachedResults(keyVersion);
     	
     	System.out.println("deleteKey() - Key " + String.format("%02X", keyVersion) + " successfully deleted...");
     	
     }
     
+    /**
+     * Sets the registry of keysets written to dongles. When set, putKey() in regular mode does not upload a keyset already written with the same
+     * usage, access and KCVs to the current dongle, and the registry is updated by putKey() and deleteKey().
+     * @param registry The key registry, or null to always upload keysets.
+     * @param checkDongle When true, the keyset file presence on the dongle is checked before skipping an upload.
+     */
+    public void setKeyRegistry(DaplugKeyRegistry registry, boolean checkDongle){
+    	this.keyRegistry = registry;
+    	this.keyRegistryCheck = checkDongle;
+    }
+    
+    /**
+     * Returns the key registry set by setKeyRegistry(), or null.
+     */
+    public DaplugKeyRegistry getKeyRegistry(){
+    	return this.keyRegistry;
+    }
+    
+    /**
+     * Checks a registered keyset against the current dongle : the keyset file must exist. If it does not, the keyset is removed from the registry.
+     * Key values cannot be read back, so a keyset modified by another host is not detected.
+     * The current file selection is changed.
+     * @param keyVersion The keyset version.
+     * @return true if the keyset is registered and present on the dongle.
+     * @throws Exception if no key registry is set or the registry cannot be written.
+     */
+    public boolean checkKeyRegistry(int keyVersion) throws Exception{
+    	
+    	if(this.keyRegistry == null){
+    		throw new Exception("checkKeyRegistry() - No key registry !");
+    	}
+    	
+    	byte[] serial = this.getCachedSerial();
+    	if(serial == null || !this.keyRegistry.contains(serial, keyVersion)){
+    		return false;
+    	}
+    	
+    	//Select the keyset file (from the master file, whatever the known selection)
+    	this.invalidateSelection();
+    	int[] path = {FS_MASTER_FILE, 0xC00F, 0xC0DE, 0x0001, 0x1000 + (keyVersion & 0xFF)};
+    	this.selectPath(path);
+    	boolean present = Arrays.equals(this.selectedPath, path);
+    	
+    	if(!present){
+    		this.keyRegistry.remove(serial, keyVersion);
+    	}
+    	
+    	return present;
+    }
+    
     /**
      * Exports the current transient keyset (0xF0) using the specified keyset version and key index.
      * A transient keyset (0xF0) is a virtual keyset located in RAM.. wich can be exported & imported. 
@@ -727,6 +866,7 @@ public final class DaplugSession {
     		DaplugApduResponse r = this.exchange(a);
     		if(r.normalEnding()){
     			System.out.println("Key successfuly imported...");
+    			this.invalidateCachedResults(TRANSIENT_KEYSET);
     		}else{
     			throw new Exception("importKey() - Cannot import key !");
     		}
@@ -750,6 +890,12 @@ public final class DaplugSession {
      */
     public void createFile(int id, int size, int[] access, boolean isEncFile, boolean isCntFile) throws Exception{
     	
+    	createFileChecked(id, size, access, isEncFile, isCntFile);
+    }
+    
+    //Creates a file, prints the result and returns true if done
+    boolean createFileChecked(int id, int size, int[] access, boolean isEncFile, boolean isCntFile) throws Exception{
+    	
     	if(access.length != 3){
     		throw new Exception("createFile() - Invalid access value !");
     	}
@@ -788,14 +934,18 @@ public final class DaplugSession {
     	try{
     		DaplugApduCommand a = new DaplugApduCommand(DaplugUtils.hexStringToByteArray(hexStrBuf));
     		DaplugApduResponse r = this.exchange(a);
+    		this.invalidateSelection();
     		if(r.normalEnding()){
     			System.out.println("createFile() - File " + String.format("%04X", id) + " successfuly created...");
+    			return true;
     		}else{
     			throw new Exception("createFile() - Cannot create file " + String.format("%04X", id) + " !");
     		}
     	}catch(Exception e){
     		System.err.println(e.getMessage());
-    	}    	
+    	}
+    	
+    	return false;
     }
     
     /**
@@ -809,6 +959,12 @@ public final class DaplugSession {
      */
     public void createDir(int id, int[] access) throws Exception{
     	
+    	createDirChecked(id, access);
+    }
+    
+    //Creates a directory, prints the result and returns true if done
+    boolean createDirChecked(int id, int[] access) throws Exception{
+    	
     	if(access.length != 3){
     		throw new Exception("createFile() - Invalid access value !");
     	}
@@ -825,15 +981,18 @@ public final class DaplugSession {
     	try{
     		DaplugApduCommand a = new DaplugApduCommand(DaplugUtils.hexStringToByteArray(hexStrBuf));
     		DaplugApduResponse r = this.exchange(a);
+    		this.invalidateSelection();
     		if(r.normalEnding()){
     			System.out.println("createDir() - Directory " + String.format("%04X", id) + " successfuly created...");
+    			return true;
     		}else{
     			throw new Exception("createFile() - Cannot create directory " + String.format("%04X", id) + " !");
     		}
     	}catch(Exception e){
     		System.err.println(e.getMessage());
     	}
-
+    	
+    	return false;
     }
     
     /**
@@ -843,6 +1002,22 @@ public final class DaplugSession {
      */
     public void deleteFileOrDir(int id){
     	
+    	deleteFileOrDirChecked(id);
+    }
+    
+    //Deletes a file or directory, prints the result and returns true if done
+    boolean deleteFileOrDirChecked(int id){
+    	
+    	//Deleted path : the selected file itself or a child of the selected directory
+    	int[] deleted = null;
+    	if(this.selectedPath != null && this.selectedPath[this.selectedPath.length - 1] == id){
+    		deleted = this.selectedPath;
+    	}else if(this.selectedPath != null && this.selectedType == SELECTED_DF){
+    		deleted = Arrays.copyOf(this.selectedPath, this.selectedPath.length + 1);
+    		deleted[this.selectedPath.length] = id;
+    	}
+    	this.invalidateCachedFile(deleted);
+    	
     	String hexStrBuf = "";
     	hexStrBuf = hexStrBuf.concat("80E4000002");
     	hexStrBuf = hexStrBuf.concat(String.format("%04X", id));
@@ -850,8 +1025,10 @@ public final class DaplugSession {
     	try{
     		DaplugApduCommand a = new DaplugApduCommand(DaplugUtils.hexStringToByteArray(hexStrBuf));
     		DaplugApduResponse r = this.exchange(a);
+    		this.invalidateSelection();
     		if(r.normalEnding()){
     			System.out.println("deleteFileOrDir() - File/Directory " + String.format("%04X", id) + " successfuly deleted...");
+    			return true;
     		}else{
     			throw new Exception("deleteFileOrDir() - Cannot delete file/directory " + String.format("%04X", id) + " !");
     		}
@@ -859,6 +1036,7 @@ public final class DaplugSession {
     		System.err.println(e.getMessage());
     	}
     	
+    	return false;
     }
     
     /**
@@ -868,15 +1046,16 @@ public final class DaplugSession {
      */
     public void selectFile(int id){
     	
-    	String hexStrBuf = "";
-    	hexStrBuf = hexStrBuf.concat("80A4000002");
-    	hexStrBuf = hexStrBuf.concat(String.format("%04X", id));
+    	selectFileChecked(id, null);
+    }
+    
+    //Selects a file, prints the result and returns true if done ; target is the absolute path reached, null if not known
+    private boolean selectFileChecked(int id, int[] target){
     	
     	try{
-    		DaplugApduCommand a = new DaplugApduCommand(DaplugUtils.hexStringToByteArray(hexStrBuf));
-    		DaplugApduResponse r = this.exchange(a);
-    		if(r.normalEnding()){
+    		if(this.select(id, target)){
     			System.out.println("selectFile() - File " + String.format("%04X", id) + " seleted...");
+    			return true;
     		}else{
     			throw new Exception("selectFile() - Cannot select file " + String.format("%04X", id) +" !");
     		}
@@ -884,6 +1063,7 @@ public final class DaplugSession {
     		System.err.println(e.getMessage());
     	}
     	
+    	return false;
     }
     
     /**
@@ -896,15 +1076,108 @@ public final class DaplugSession {
      */
     public void selectPath(String path) throws Exception{
     	
-		Scanner s = new Scanner(path);
-    	s.useDelimiter(":");
+    	selectPath(parsePath(path));
+    }
+    
+    /**
+     * Selects the specified path, given as a sequence of files/directories IDs. For example, {0x3F00, 0x2214, 0x0036}.
+     * The session keeps track of the selected path : only the SELECT commands needed to move from the current selection to the 
+     * given absolute path (starting with the master file) are sent. A relative path is selected from the current directory, and like selectFile() it leaves the selected path unknown.
+     * @param path Path to select.
+     * @throws Exception if the path is empty.
+     */
+    public void selectPath(int[] path) throws Exception{
+    	
+    	if(path == null || path.length == 0){
+    		throw new Exception("selectPath() - Invalid path !");
+    	}
+    	
+    	int from = 0;
+    	if(path[0] == FS_MASTER_FILE && this.selectedPath != null){
+    		int[] current = this.selectedPath;
+    		if(Arrays.equals(current, path)){
+    			return; //Already selected
+    		}
+    		if(startsWith(path, current, current.length)){
+    			from = current.length; //Go down from the current directory
+    		}else if(this.selectedType == SELECTED_EF && startsWith(path, current, current.length - 1) && path.length == current.length){
+    			from = current.length - 1; //Sibling of the selected file
+    		}
+    	}
     	
-    	while(s.hasNext()){
-    		int id = s.nextInt(16);
-    		selectFile(id);    		
+    	//Only an absolute path tells where each SELECT leads
+    	boolean absolute = path[0] == FS_MASTER_FILE;
+    	for(int i = from; i < path.length; i++){
+    		if(!selectFileChecked(path[i], absolute ? Arrays.copyOf(path, i + 1) : null)){
+    			break;
+    		}
+    		//A path level followed by another one is a directory
+    		if(i < path.length - 1 && this.selectedPath != null){
+    			this.selectedType = SELECTED_DF;
+    			this.selectedSize = -1;
+    		}
     	}
     }
     
+    /**
+     * Returns the currently selected absolute path as known by the session.
+     * @return The selected path, or null if not known.
+     */
+    public int[] getSelectedPath(){
+    	return this.selectedPath == null ? null : this.selectedPath.clone();
+    }
+    
+    /**
+     * Sets the cache of EF contents. When set, readData() on a cacheable file (see DaplugFileCache.addFile()) reads the whole file once 
+     * and returns the requested part from the cache. writeData(), updateBinary(), deleteFileOrDir() and reset() invalidate the entries concerned.
+     * The file size must be given by the FCP returned by SELECT, and the file must be selected with an absolute path.
+     * @param cache The file cache, or null to disable caching.
+     */
+    public void setFileCache(DaplugFileCache cache){
+    	this.fileCache = cache;
+    }
+    
+    /**
+     * Returns the file cache set by setFileCache(), or null.
+     */
+    public DaplugFileCache getFileCache(){
+    	return this.fileCache;
+    }
+    
+    /**
+     * Sets the cache of deterministic results. When set, encrypt() and decrypt() in ECB mode and hmac() return the cached result of a previous call 
+     * with the same dongle, keyset, options, diversifiers and input. putKey(), deleteKey(), importKey() and reset() invalidate the keysets concerned.
+     * @param cache The result cache, or null to disable caching.
+     */
+    public void setResultCache(DaplugResultCache cache){
+    	this.resultCache = cache;
+    }
+    
+    /**
+     * Returns the result cache set by setResultCache(), or null.
+     */
+    public DaplugResultCache getResultCache(){
+    	return this.resultCache;
+    }
+    
+    /**
+     * Returns the size of the currently selected EF, as given by the FCP returned when it was selected.
+     * @return The file size, or -1 if not known.
+     */
+    public int getSelectedFileSize(){
+    	return this.selectedSize;
+    }
+    
+    /**
+     * Forgets the currently selected path : the next selectPath() selects every level from the master file.
+     * Must be called after SELECT, CREATE or DELETE commands sent directly through exchange().
+     */
+    public void invalidateSelection(){
+    	this.selectedPath = null;
+    	this.selectedType = SELECTED_UNKNOWN;
+    	this.selectedSize = -1;
+    }
+    
     /**
      * Reads length bytes of data from the selected file. Reading starts at the given offset.
      * @param offset Indicates where reading position starts.
@@ -915,6 +1188,12 @@ public final class DaplugSession {
      */
     public byte[] readData(int offset, int length) throws Exception{
     	
+    	//Cached file?
+    	byte[] cached = this.readCachedFile();
+    	if(cached != null && offset >= 0 && length >= 0 && offset + length <= cached.length){
+    		return Arrays.copyOfRange(cached, offset, offset + length);
+    	}
+    	
     	byte[] readData = new byte[length];
     	
     	int lastPartLen = length % MAX_REAL_DATA_SIZE;
@@ -980,6 +1259,102 @@ public final class DaplugSession {
     	return readData;
     }
     
+    /**
+     * Reads len bytes of data from the selected file into dest. Unlike readData(), the data is read directly into the caller buffer 
+     * and the command is built without hex string conversion. Reading is done in MAX_REAL_DATA_SIZE bytes chunks.
+     * @param offset Indicates where reading position starts.
+     * @param dest Destination buffer.
+     * @param off Offset in the destination buffer.
+     * @param len The length of data to read.
+     * @return The number of bytes read (len).
+     * @throws Exception if an error occurs when reading.
+     */
+    public int readBinary(int offset, byte[] dest, int off, int len) throws Exception{
+    	
+    	if(offset < 0 || len < 0 || offset + len > MAX_FS_FILE_SIZE){
+    		throw new Exception("readBinary() - Authorized data length exceeded !");
+    	}
+    	
+    	//Le is given as Lc with zero bytes as fake data (see readData())
+    	byte[] fullCmd = null;
+    	int done = 0;
+    	while(done < len){
+    		
+    		int n = Math.min(MAX_REAL_DATA_SIZE, len - done);
+    		byte[] cmd;
+    		if(n == MAX_REAL_DATA_SIZE){
+    			if(fullCmd == null){
+    				fullCmd = new byte[DaplugApduCommand.APDU_HEADER_LEN + MAX_REAL_DATA_SIZE];
+    			}
+    			cmd = fullCmd;
+    		}else{
+    			cmd = new byte[DaplugApduCommand.APDU_HEADER_LEN + n];
+    		}
+    		cmd[0] = (byte) 0x80;
+    		cmd[1] = (byte) 0xB0;
+    		cmd[2] = (byte) (offset >> 8);
+    		cmd[3] = (byte) offset;
+    		cmd[4] = (byte) n;
+    		
+    		DaplugApduResponse r = this.exchange(new DaplugApduCommand(cmd));
+    		if(!r.normalEnding()){
+    			if(r.getSW1() == 0x67){
+    				throw new Exception("readBinary() - Wrong length. The requested length seems exceed file's size !");
+    			}else{
+    				throw new Exception("readBinary() - Data read failed !");
+    			}
+    		}
+    		if(r.getDataLen() < n){
+    			throw new Exception("readBinary() - The requested length exceeds file's size !");
+    		}
+    		System.arraycopy(r.getData(), 0, dest, off + done, n);
+    		
+    		done = done + n;
+    		offset = offset + n;
+    	}
+    	
+    	return done;
+    }
+    
+    /**
+     * Writes len bytes of src into the selected file. Unlike writeData(), the command is built without hex string conversion 
+     * and errors are thrown. Writing is done in MAX_REAL_DATA_SIZE bytes chunks.
+     * @param offset Indicates where writing position starts.
+     * @param src Source buffer.
+     * @param off Offset in the source buffer.
+     * @param len The length of data to write.
+     * @throws Exception if an error occurs when writing.
+     */
+    public void updateBinary(int offset, byte[] src, int off, int len) throws Exception{
+    	
+    	if(offset < 0 || len < 0 || offset + len > MAX_FS_FILE_SIZE){
+    		throw new Exception("updateBinary() - Authorized data length exceeded !");
+    	}
+    	
+    	this.invalidateCachedFile(this.selectedPath);
+    	
+    	int done = 0;
+    	while(done < len){
+    		
+    		int n = Math.min(MAX_REAL_DATA_SIZE, len - done);
+    		byte[] cmd = new byte[DaplugApduCommand.APDU_HEADER_LEN + n];
+    		cmd[0] = (byte) 0x80;
+    		cmd[1] = (byte) 0xD6;
+    		cmd[2] = (byte) (offset >> 8);
+    		cmd[3] = (byte) offset;
+    		cmd[4] = (byte) n;
+    		System.arraycopy(src, off + done, cmd, DaplugApduCommand.APDU_HEADER_LEN, n);
+    		
+    		DaplugApduResponse r = this.exchange(new DaplugApduCommand(cmd));
+    		if(!r.normalEnding()){
+    			throw new Exception("updateBinary() - Data write failed !");
+    		}
+    		
+    		done = done + n;
+    		offset = offset + n;
+    	}
+    }
+    
     /**
      * Writes provided data into the selected file. Writing starts at the given offset.
      * @param offset Indicates where writing position starts.
@@ -989,6 +1364,8 @@ public final class DaplugSession {
      */
     public void writeData(int offset, byte[] dataToWrite) throws Exception{
     	
+    	this.invalidateCachedFile(this.selectedPath);
+    	
     	int len = dataToWrite.length;
     	int lastPartLen = len % MAX_REAL_DATA_SIZE;
     	byte[] tempDataBuf = null;
@@ -1065,7 +1442,7 @@ public final class DaplugSession {
      * @author Saada
 	 */
     public byte[] encrypt(int keyVersion, int keyId, int mode, byte[] iv, byte[] div1, byte[] div2, byte[] clearData) throws Exception{
-    	return crypt(keyVersion, keyId, mode, iv, div1, div2, clearData, ENCRYPT);
+    	return cachedCrypt(keyVersion, keyId, mode, iv, div1, div2, clearData, ENCRYPT);
     }
     
     /**
@@ -1084,7 +1461,86 @@ public final class DaplugSession {
      * @author Saada
      */
     public byte[] decrypt(int keyVersion, int keyId, int mode, byte[] iv, byte[] div1, byte[] div2, byte[] encryptedData) throws Exception{
-    	return crypt(keyVersion, keyId, mode, iv, div1, div2, encryptedData, DECRYPT);
+    	return cachedCrypt(keyVersion, keyId, mode, iv, div1, div2, encryptedData, DECRYPT);
+    }
+    
+    /**
+     * Encrypts a buffer of any length (multiple of 8 bytes) with the dongle, as encrypt() does. The data is sent in maximum size chunks ; 
+     * in CBC mode, the last encrypted block of a chunk is the IV of the next one, so the result is the same as a single encrypt() call on the whole data.
+     * @param keyVersion Encryption DaplugKeyset version.
+     * @param keyId The index of the keyset key to use for encryption (1,2 or 3).
+     * @param mode Specifies block cipher mode (ECB or CBC) and if we use diversifiers or not.
+     * @param iv initialization vector (Used only for CBC mode). If not specified, a zero-IV is used instead.
+     * @param div1 First diversifier (optional).
+     * @param div2 Second diversifier (optional).
+     * @param clearData sequence of bytes to encrypt.
+     * @return Resultant encrypted data.
+     * @throws Exception if an error occurs during encryption.
+     */
+    public byte[] encryptBuffer(int keyVersion, int keyId, int mode, byte[] iv, byte[] div1, byte[] div2, byte[] clearData) throws Exception{
+    	byte[] out = new byte[clearData.length];
+    	CryptChunker c = new CryptChunker(keyVersion, keyId, mode, iv, div1, div2, ENCRYPT);
+    	c.crypt(clearData, 0, clearData.length, out, 0);
+    	return out;
+    }
+    
+    /**
+     * Decrypts a buffer of any length (multiple of 8 bytes) with the dongle, as decrypt() does. The data is sent in maximum size chunks, with CBC chaining between chunks.
+     * @param keyVersion Encryption DaplugKeyset version.
+     * @param keyId The index of the keyset key to use for decryption (1,2 or 3).
+     * @param mode Specifies block cipher mode (ECB or CBC) and if we use diversifiers or not.
+     * @param iv initialization vector (Used only for CBC mode). If not specified, a zero-IV is used instead.
+     * @param div1 First diversifier (optional).
+     * @param div2 Second diversifier (optional).
+     * @param encryptedData sequence of bytes to decrypt.
+     * @return Resultant decrypted data.
+     * @throws Exception if an error occurs during decryption.
+     */
+    public byte[] decryptBuffer(int keyVersion, int keyId, int mode, byte[] iv, byte[] div1, byte[] div2, byte[] encryptedData) throws Exception{
+    	byte[] out = new byte[encryptedData.length];
+    	CryptChunker c = new CryptChunker(keyVersion, keyId, mode, iv, div1, div2, DECRYPT);
+    	c.crypt(encryptedData, 0, encryptedData.length, out, 0);
+    	return out;
+    }
+    
+    /**
+     * Returns the maximum data length that a single encrypt() or decrypt() command accepts for the given mode.
+     * @param mode Block cipher mode, with or without diversifiers.
+     * @return The maximum data length (224, 208 or 192 bytes for 0, 1 or 2 diversifiers).
+     */
+    public static int getMaxCryptDataLength(int mode){
+    	int divs = 0;
+    	if((mode & ENC_2_DIV) != 0){
+    		divs = 2;
+    	}else if((mode & ENC_1_DIV) != 0){
+    		divs = 1;
+    	}
+    	int max = MAX_REAL_DATA_SIZE - 10 - 16 * divs;
+    	return max - max % 8;
+    }
+    
+    /**
+     * Encrypts a stream with the dongle, as encryptBuffer() does, without holding the whole data in memory. The stream length must be a multiple of 8 bytes.
+     * @param in Clear data, read up to its end (not closed).
+     * @param out Encrypted data (not closed).
+     * @return The number of bytes encrypted.
+     * @throws Exception if an error occurs during encryption or when reading/writing the streams.
+     * @see #encryptBuffer(int, int, int, byte[], byte[], byte[], byte[])
+     */
+    public long encryptStream(int keyVersion, int keyId, int mode, byte[] iv, byte[] div1, byte[] div2, InputStream in, OutputStream out) throws Exception{
+    	return new CryptChunker(keyVersion, keyId, mode, iv, div1, div2, ENCRYPT).crypt(in, out);
+    }
+    
+    /**
+     * Decrypts a stream with the dongle, as decryptBuffer() does, without holding the whole data in memory. The stream length must be a multiple of 8 bytes.
+     * @param in Encrypted data, read up to its end (not closed).
+     * @param out Decrypted data (not closed).
+     * @return The number of bytes decrypted.
+     * @throws Exception if an error occurs during decryption or when reading/writing the streams.
+     * @see #decryptBuffer(int, int, int, byte[], byte[], byte[], byte[])
+     */
+    public long decryptStream(int keyVersion, int keyId, int mode, byte[] iv, byte[] div1, byte[] div2, InputStream in, OutputStream out) throws Exception{
+    	return new CryptChunker(keyVersion, keyId, mode, iv, div1, div2, DECRYPT).crypt(in, out);
     }
     
     /**
@@ -1095,21 +1551,25 @@ public final class DaplugSession {
 	 * @author yassir
 	 */
 	public byte[] getRandom(int length) throws Exception{
-		String s_apdu = "D0240000";
+		return random(length, true);
+	}
+	
+	//getRandom() for secret values (keys, seeds) : the random bytes are not printed
+	byte[] getRandomSecret(int length) throws Exception{
+		return random(length, false);
+	}
+	
+	private byte[] random(int length, boolean log) throws Exception{
 		if (length <= 0 || length > MAX_REAL_DATA_SIZE)
 			throw new Exception("getRandom() : Invalid random length ! Correct length is between 1 and 239 bytes");
-		String len_s = String.format("%02X", length);
-		StringBuilder sb = new StringBuilder();
-		sb.append(s_apdu).append(len_s);
 		//the length here is the returned data length (the apdu does not contain input data)
-	    //for wrap reason, we use non meaningful data with size Lc
-		int i = length;
-		while (i > 0) {
-			sb.append("00");
-			i--;
-		}
-		DaplugApduCommand apdu = new DaplugApduCommand(DaplugUtils.hexStringToByteArray(sb.toString()));
-		DaplugApduResponse result = this.exchange(apdu);
+	    //for wrap reason, we use non meaningful data with size Lc (zero bytes)
+		byte[] cmd = new byte[DaplugApduCommand.APDU_HEADER_LEN + length];
+		cmd[0] = (byte) 0xD0;
+		cmd[1] = (byte) 0x24;
+		cmd[4] = (byte) length;
+		DaplugApduCommand apdu = new DaplugApduCommand(cmd);
+		DaplugApduResponse result = this.exchange(apdu, log);
 		if (result.normalEnding() == false)
 			throw new Exception("getRandom() : Can not generate Ramdom value! ");
 		return result.getData();
@@ -1133,7 +1593,21 @@ public final class DaplugSession {
     		throw new Exception ("hmac() - Invalid option for hmac : " + options);
     	}	
     	
-    	return hmacSha1(keysetVersion, options, div1, div2, inData, HMAC);
+    	byte[] serial = this.resultCache == null ? null : this.getCachedSerial();
+    	if(serial == null){
+    		return hmacSha1(keysetVersion, options, div1, div2, inData, HMAC);
+    	}
+    	
+    	String op = String.format("H%02X", options & 0xFF) + resultCacheDivs(div1, div2);
+    	byte[] input = inData == null ? new byte[0] : inData;
+    	byte[] result = this.resultCache.get(serial, keysetVersion, op, input);
+    	if(result == null){
+    		result = hmacSha1(keysetVersion, options, div1, div2, inData, HMAC);
+    		if(result != null){
+    			this.resultCache.put(serial, keysetVersion, op, input, result);
+    		}
+    	}
+    	return result;
     }
     
     /**
@@ -1160,6 +1634,136 @@ public final class DaplugSession {
 		return hmacSha1(keysetVersion, options, div1, div2, inData, HOTP);
     }
     
+    /**
+     * Generates count successive HMAC based One Time Passwords, as count calls to hotp() would, for example to print a list of backup codes.
+     * The command is built once ; the next command is wrapped for the secure channel while the current one is exchanged with the dongle.
+     * Generation stops at the first failure : the codes generated before it are returned with the error, and the secure channel is left 
+     * in the state of the last command actually sent.
+     * @param keysetVersion HOTP/HOTP_VALIDATION keyset version.
+     * @param options Specifies the size of the resultant HOTP and if we want to use diversifiers or not.
+     * @param div1 First diversifier (optional).
+     * @param div2 Second diversifier (optional).
+     * @param inData A counter file ID if HOTP keyset is provided, or the first counter value as an 8 bytes string (incremented for each code) if HOTP_VALIDATION keyset is provided.
+     * @param count Number of codes to generate.
+     * @param listener Progress listener (optional).
+     * @return The generated codes and the error which stopped the generation, if any.
+     * @throws Exception if a parameter is invalid.
+     */
+    public DaplugHotpBatch hotpBatch(int keysetVersion, int options, byte[] div1, byte[] div2, byte[] inData, int count, DaplugHotpBatch.Listener listener) throws Exception{
+    	
+		if (((options & OTP_6_DIGIT) == 0) && ((options & OTP_7_DIGIT) == 0) && ((options & OTP_8_DIGIT) == 0)){
+			throw new Exception ("hotpBatch() - Invalid mode option for hotp : " + options);
+		}
+		if (inData == null || ((inData.length != 2) && (inData.length != 8))){
+			throw new Exception ("hotpBatch() - Invalid Data for hotp : " + DaplugUtils.byteArrayToHexString(inData));
+		}
+		if(count < 1){
+			throw new Exception ("hotpBatch() - Invalid count : " + count);
+		}
+		if(this.dongle == null){
+			throw new Exception("Session dongle not initialized !");
+		}
+		
+		//Diversifiers
+		int divs = 0;
+		if((options & OTP_1_DIV) != 0 || (options & OTP_2_DIV) != 0){
+			if(div1 == null || div1.length != 16){
+				throw new Exception("hotpBatch() - Invalid diversifier div1 : " + DaplugUtils.byteArrayToHexString(div1));
+			}
+			divs = 1;
+		}
+		if((options & OTP_2_DIV) != 0){
+			if(div2 == null || div2.length != 16){
+				throw new Exception("hotpBatch() - Invalid diversifier div2 : " + DaplugUtils.byteArrayToHexString(div2));
+			}
+			divs = 2;
+		}
+		
+		//Command : D022, keyset version, options, Lc, diversifiers, counter file ID or counter value
+		final int dataOff = DaplugApduCommand.APDU_HEADER_LEN + 16 * divs;
+		byte[] cmd = new byte[dataOff + inData.length];
+		cmd[0] = (byte) 0xD0;
+		cmd[1] = (byte) 0x22;
+		cmd[2] = (byte) keysetVersion;
+		cmd[3] = (byte) options;
+		cmd[4] = (byte) (cmd.length - DaplugApduCommand.APDU_HEADER_LEN);
+		if(divs > 0){
+			System.arraycopy(div1, 0, cmd, DaplugApduCommand.APDU_HEADER_LEN, 16);
+		}
+		if(divs > 1){
+			System.arraycopy(div2, 0, cmd, DaplugApduCommand.APDU_HEADER_LEN + 16, 16);
+		}
+		System.arraycopy(inData, 0, cmd, dataOff, inData.length);
+		
+		DaplugHotpBatch batch = new DaplugHotpBatch(count);
+		ExecutorService sender = Executors.newSingleThreadExecutor();
+		
+		try{
+			DaplugApduCommand current = new DaplugApduCommand(cmd);
+			DaplugApduCommand currentWrapped = this.wrapApdu(current);
+			Future<String[]> inFlight = sender.submit(this.sendTask(currentWrapped));
+			
+			for(int i = 0; i < count; i++){
+				
+				//Wrap the next command while the current one is exchanged
+				DaplugApduCommand next = null, nextWrapped = null;
+				byte[] cMacBefore = null;
+				if(i + 1 < count){
+					if(inData.length == 8){
+						int j = cmd.length - 1;
+						while(j >= dataOff && ++cmd[j] == 0){
+							j--;
+						}
+					}
+					next = new DaplugApduCommand(cmd);
+					cMacBefore = this.cMac.clone();
+					nextWrapped = this.wrapApdu(next);
+				}
+				
+				try{
+					String[] resp;
+					try{
+						resp = inFlight.get();
+					}catch(ExecutionException e){
+						throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					}
+					byte[] responseBytes = DaplugUtils.hexStringToByteArray(resp[0] + resp[1]);
+					System.out.println("=> " + currentWrapped.toString());
+					System.out.println("<= " + DaplugUtils.byteArrayToHexString(responseBytes));
+					
+					DaplugApduResponse r = this.unwrapApdu(current, responseBytes);
+					if(r == null || !r.normalEnding()){
+						throw new Exception("hotpBatch() - Generating hotp " + (i + 1) + " failed !");
+					}
+					batch.add(r.getData());
+					if(listener != null){
+						listener.progress(i + 1, count);
+					}
+				}catch(Exception e){
+					//The next command was wrapped but is not sent
+					if(cMacBefore != null){
+						this.cMac = cMacBefore;
+					}
+					batch.fail(e);
+					break;
+				}
+				
+				if(next != null){
+					current = next;
+					currentWrapped = nextWrapped;
+					inFlight = sender.submit(this.sendTask(currentWrapped));
+				}
+			}
+		}finally{
+			sender.shutdown();
+			if(inData.length == 2){
+				this.invalidateSelection(); //The counter file is selected by the dongle
+			}
+		}
+		
+		return batch;
+    }
+    
 	/**
 	 * Returns a Time based One Time Password. options parameter specifies the size of the resultant HOTP and if we want to use one (OTP_1_DIV) or two (OTP_2_DIV) provided diversifier(s).
 	 * If no diversifier is provided, div parameters must be equal to an empty string ("") and mode parameter must be equal to OTP_0_DIV. If TOTP keyset is provided,
@@ -1435,7 +2039,10 @@ public final class DaplugSession {
 	 * @author yassir
 	 */
 	public String reset() {
+		this.invalidateCachedFile(null);
+		this.invalidateCachedResults(TRANSIENT_KEYSET);
 		boolean result = this.daplugMake("D052010000");
+		this.invalidateSelection();
 		if (result == false)
 			return "reset(): Can not reset dongle !";
 		else
@@ -1452,6 +2059,7 @@ public final class DaplugSession {
 	public String halt() {
 
 		boolean result = this.daplugMake("D052020000");
+		this.invalidateSelection();
 		if (result == false)
 			return "halt(): Can not halt dongle !";
 		else
@@ -1460,6 +2068,254 @@ public final class DaplugSession {
 
     //=== private methods ===    
     
+    //Drops the key schedules of the session keys kept by DaplugCrypto
+    private void clearSessionKeys(){
+    	if(Arrays.equals(this.sEncKey, new byte[this.sEncKey.length])){
+    		return; //No session keys computed yet
+    	}
+    	DaplugCrypto.clearKeyCache(this.sEncKey, this.rEncKey, this.cMacKey, this.rMacKey, this.sDekKey);
+    }
+    
+    //Sends a SELECT command and updates the selected path ; target is the absolute path reached, null if not known
+    private boolean select(int id, int[] target) throws Exception{
+    	
+    	String hexStrBuf = "";
+    	hexStrBuf = hexStrBuf.concat("80A4000002");
+    	hexStrBuf = hexStrBuf.concat(String.format("%04X", id));
+    	
+    	DaplugApduCommand a = new DaplugApduCommand(DaplugUtils.hexStringToByteArray(hexStrBuf));
+    	DaplugApduResponse r;
+    	try{
+    		r = this.exchange(a);
+    	}catch(Exception e){
+    		this.invalidateSelection();
+    		throw e;
+    	}
+    	
+    	if(!r.normalEnding()){
+    		this.invalidateSelection();
+    		return false;
+    	}
+    	
+    	//New selected path
+    	int[] current = this.selectedPath;
+    	if(id == FS_MASTER_FILE){
+    		this.selectedPath = new int[]{FS_MASTER_FILE};
+    	}else if(target != null){
+    		this.selectedPath = target;
+    	}else{
+    		//A file ID alone may also select the parent, a sibling or the current directory
+    		this.selectedPath = null;
+    	}
+    	
+    	int type = fileType(r.getData(), r.getDataLen(), id);
+    	int size = fileSize(r.getData(), r.getDataLen());
+    	if(this.selectedPath == null){
+    		type = SELECTED_UNKNOWN;
+    	}else if(type == SELECTED_UNKNOWN && Arrays.equals(this.selectedPath, current)){
+    		//Same file, type and size already known
+    		type = this.selectedType;
+    		size = this.selectedSize;
+    	}
+    	this.selectedType = type;
+    	this.selectedSize = type == SELECTED_DF ? -1 : size;
+    	
+    	return true;
+    }
+    
+    //File type given by the file descriptor (tag 82) of the FCP returned by SELECT
+    private static int fileType(byte[] fcp, int len, int id){
+    	
+    	if(id == FS_MASTER_FILE){
+    		return SELECTED_DF;
+    	}
+    	
+    	int i = fcpTag(fcp, len, 0x82);
+    	if(i < 0){
+    		return SELECTED_UNKNOWN;
+    	}
+    	
+    	return fcp[i] == 0x01 ? SELECTED_EF : SELECTED_DF;
+    }
+    
+    //File size (tag 80 or 81) of the FCP returned by SELECT, -1 if not given
+    private static int fileSize(byte[] fcp, int len){
+    	
+    	int i = fcpTag(fcp, len, 0x80);
+    	if(i < 0){
+    		i = fcpTag(fcp, len, 0x81);
+    	}
+    	if(i < 0 || (fcp[i - 1] & 0xFF) != 2 || i + 2 > len){
+    		return -1;
+    	}
+    	
+    	return ((fcp[i] & 0xFF) << 8) + (fcp[i + 1] & 0xFF);
+    }
+    
+    //Offset of a tag value in an FCP template (62 L ...), -1 if absent
+    private static int fcpTag(byte[] fcp, int len, int tag){
+    	
+    	if(fcp == null || len < 2 || fcp[0] != (byte) 0x62){
+    		return -1;
+    	}
+    	int i = 2;
+    	while(i + 2 < len){
+    		int l = fcp[i + 1] & 0xFF;
+    		if((fcp[i] & 0xFF) == tag){
+    			return i + 2;
+    		}
+    		i = i + 2 + l;
+    	}
+    	
+    	return -1;
+    }
+    
+    //Parses a "3F00:2214:0036" path
+    private static int[] parsePath(String path) throws Exception{
+    	
+    	String[] ids = path.split(":");
+    	int[] parsed = new int[ids.length];
+    	try{
+    		for(int i = 0; i < ids.length; i++){
+    			parsed[i] = Integer.parseInt(ids[i].trim(), 16);
+    			if(parsed[i] < 0 || parsed[i] > 0xFFFF){
+    				throw new NumberFormatException();
+    			}
+    		}
+    	}catch(NumberFormatException e){
+    		throw new Exception("selectPath() - Invalid path : " + path);
+    	}
+    	
+    	return parsed;
+    }
+    
+    //Checks if the first len values of path are prefix
+    private static boolean startsWith(int[] path, int[] prefix, int len){
+    	
+    	if(len > path.length || len > prefix.length){
+    		return false;
+    	}
+    	for(int i = 0; i < len; i++){
+    		if(path[i] != prefix[i]){
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+    
+    //Whole content of the selected file from the file cache, read and cached if needed ; null if the file is not cacheable
+    private byte[] readCachedFile(){
+    	
+    	//A file too big for the cache is read the normal way
+    	if(this.fileCache == null || !this.fileCache.isCacheable(this.selectedPath) || !this.fileCache.fits(this.selectedSize)){
+    		return null;
+    	}
+    	
+    	byte[] serial = this.getCachedSerial();
+    	if(serial == null){
+    		return null;
+    	}
+    	
+    	int[] path = this.selectedPath;
+    	byte[] content = this.fileCache.get(serial, path);
+    	if(content == null){
+    		content = new byte[this.selectedSize];
+    		try{
+    			this.readBinary(0, content, 0, content.length);
+    		}catch(Exception e){
+    			System.err.println(e.getMessage());
+    			return null;
+    		}
+    		this.fileCache.put(serial, path, content);
+    	}
+    	
+    	return content;
+    }
+    
+    //Drops a file (or directory) from the file cache ; all the dongle files if path is not known (null)
+    private void invalidateCachedFile(int[] path){
+    	
+    	if(this.fileCache == null){
+    		return;
+    	}
+    	
+    	byte[] serial = this.getCachedSerial();
+    	if(serial == null){
+    		this.fileCache.clear();
+    	}else if(path == null){
+    		this.fileCache.invalidateAll(serial);
+    	}else{
+    		this.fileCache.invalidate(serial, path);
+    	}
+    }
+    
+    //encrypt() for secret data (data keys) : neither printed nor kept in the result cache
+    byte[] encryptSecret(int keyVersion, int keyId, int mode, byte[] iv, byte[] div1, byte[] div2, byte[] clearData) throws Exception{
+    	return crypt(keyVersion, keyId, mode, iv, div1, div2, clearData, ENCRYPT, false);
+    }
+    
+    //decrypt() for secret data (data keys) : neither printed nor kept in the result cache
+    byte[] decryptSecret(int keyVersion, int keyId, int mode, byte[] iv, byte[] div1, byte[] div2, byte[] encryptedData) throws Exception{
+    	return crypt(keyVersion, keyId, mode, iv, div1, div2, encryptedData, DECRYPT, false);
+    }
+    
+    //encrypt()/decrypt() through the result cache, in ECB mode only
+    private byte[] cachedCrypt(int keyVersion, int keyId, int mode, byte[] iv, byte[] div1, byte[] div2, byte[] inData, int enc) throws Exception{
+    	
+    	byte[] serial = (this.resultCache == null || (mode & ENC_CBC) != 0 || inData == null) ? null : this.getCachedSerial();
+    	if(serial == null){
+    		return crypt(keyVersion, keyId, mode, iv, div1, div2, inData, enc, true);
+    	}
+    	
+    	String op = String.format("C%02X%02X%02X", enc & 0xFF, keyId & 0xFF, mode & 0xFF) + resultCacheDivs(div1, div2);
+    	byte[] result = this.resultCache.get(serial, keyVersion, op, inData);
+    	if(result == null){
+    		result = crypt(keyVersion, keyId, mode, iv, div1, div2, inData, enc, true);
+    		if(result != null){
+    			this.resultCache.put(serial, keyVersion, op, inData, result);
+    		}
+    	}
+    	return result;
+    }
+    
+    private static String resultCacheDivs(byte[] div1, byte[] div2){
+    	return "-" + (div1 == null ? "" : DaplugUtils.byteArrayToHexString(div1)) + "-" + (div2 == null ? "" : DaplugUtils.byteArrayToHexString(div2));
+    }
+    
+    //Drops the cached results of a keyset of the current dongle
+    private void invalidateCachedResults(int keyVersion){
+    	
+    	if(this.resultCache == null){
+    		return;
+    	}
+    	
+    	byte[] serial = this.getCachedSerial();
+    	if(serial == null){
+    		this.resultCache.clear();
+    	}else{
+    		this.resultCache.invalidate(serial, keyVersion);
+    	}
+    }
+    
+    //Sends an already wrapped command to the dongle
+    private Callable<String[]> sendTask(final DaplugApduCommand wrappedApdu){
+    	final DaplugDongle d = this.dongle;
+    	return new Callable<String[]>(){
+    		@Override
+    		public String[] call() throws Exception{
+    			return d.exchange(wrappedApdu.toString());
+    		}
+    	};
+    }
+    
+    //Current dongle serial, read once
+    private byte[] getCachedSerial(){
+    	if(this.dongleSerial == null){
+    		this.dongleSerial = this.getDongleSerial();
+    	}
+    	return this.dongleSerial;
+    }
+    
     //Wrap an Apdu command according to the current SC security level
     private DaplugApduCommand wrapApdu(DaplugApduCommand apdu){
     	    	
@@ -1676,7 +2532,7 @@ public final class DaplugSession {
 	}
     
     //Encrypt/decrypt Apdu	
-	private byte[] crypt(int keyVersion, int keyID, int mode, byte[] iv, byte[] div1, byte[] div2, byte[] inData, int enc) throws Exception{
+	private byte[] crypt(int keyVersion, int keyID, int mode, byte[] iv, byte[] div1, byte[] div2, byte[] inData, int enc, boolean log) throws Exception{
     	
     	byte[] outData = null;
     	
@@ -1747,7 +2603,7 @@ public final class DaplugSession {
     	
     	try{
     		DaplugApduCommand a = new DaplugApduCommand(DaplugUtils.hexStringToByteArray(hexStrBuf));
-    		DaplugApduResponse r = this.exchange(a);
+    		DaplugApduResponse r = this.exchange(a, log);
     		if(r.normalEnding()){
     			outData = new byte[r.getDataLen()];
     			System.arraycopy(r.getData(), 0, outData, 0, r.getDataLen());
@@ -1908,6 +2764,9 @@ public final class DaplugSession {
     	try{
     		DaplugApduCommand a = new DaplugApduCommand(DaplugUtils.hexStringToByteArray(hexStrBuf));
     		DaplugApduResponse r = this.exchange(a);
+    		if(inData.length == 2){
+    			this.invalidateSelection(); //The counter file is selected by the dongle
+    		}
     		if(r.normalEnding()){
     			outData = new byte[r.getDataLen()];
     			System.arraycopy(r.getData(), 0, outData, 0, r.getDataLen());
@@ -1922,6 +2781,127 @@ public final class DaplugSession {
 		
 	}
 	
+	//Encryption/decryption of data longer than one command : the command header (key, mode, diversifiers) is formatted once
+	private final class CryptChunker {
+		
+		private final int enc;
+		private final boolean cbc;
+		private final int dataOff; //Data offset in the command
+		private final int chunkLen; //Data length per command
+		private final byte[] cmd;
+		private final String functionName;
+		
+		CryptChunker(int keyVersion, int keyId, int mode, byte[] iv, byte[] div1, byte[] div2, int enc) throws Exception{
+			
+			this.enc = enc;
+			this.cbc = (mode & ENC_CBC) != 0;
+			this.functionName = enc == ENCRYPT ? "encryptBuffer()" : "decryptBuffer()";
+			
+			if(iv == null){
+				iv = new byte[8];
+			}else if(iv.length != 8){
+				throw new Exception(this.functionName + " - Invalid IV : " + DaplugUtils.byteArrayToHexString(iv));
+			}
+			
+			int divs = 0;
+			if((mode & ENC_1_DIV) != 0 || (mode & ENC_2_DIV) != 0){
+				if(div1 == null || div1.length != 16){
+					throw new Exception(this.functionName + " - Invalid diversifier div1 : " + DaplugUtils.byteArrayToHexString(div1));
+				}
+				divs = 1;
+			}
+			if((mode & ENC_2_DIV) != 0){
+				if(div2 == null || div2.length != 16){
+					throw new Exception(this.functionName + " - Invalid diversifier div2 : " + DaplugUtils.byteArrayToHexString(div2));
+				}
+				divs = 2;
+			}
+			
+			//kv, kid, iv & diversifiers, then as many blocks as possible
+			this.dataOff = DaplugApduCommand.APDU_HEADER_LEN + 10 + 16 * divs;
+			this.chunkLen = getMaxCryptDataLength(mode);
+			
+			this.cmd = new byte[this.dataOff + this.chunkLen];
+			this.cmd[0] = (byte) 0xD0;
+			this.cmd[1] = (byte) 0x20;
+			this.cmd[2] = (byte) enc;
+			this.cmd[3] = (byte) mode;
+			this.cmd[5] = (byte) keyVersion;
+			this.cmd[6] = (byte) keyId;
+			System.arraycopy(iv, 0, this.cmd, 7, 8);
+			if(divs > 0){
+				System.arraycopy(div1, 0, this.cmd, 15, 16);
+			}
+			if(divs > 1){
+				System.arraycopy(div2, 0, this.cmd, 31, 16);
+			}
+		}
+		
+		void crypt(byte[] in, int inOff, int len, byte[] out, int outOff) throws Exception{
+			
+			if(len % 8 != 0){
+				throw new Exception(this.functionName + " - Invalid data length !");
+			}
+			
+			int done = 0;
+			while(done < len){
+				int n = Math.min(this.chunkLen, len - done);
+				cryptChunk(in, inOff + done, n, out, outOff + done);
+				done = done + n;
+			}
+		}
+		
+		long crypt(InputStream in, OutputStream out) throws Exception{
+			
+			byte[] inBuf = new byte[this.chunkLen];
+			byte[] outBuf = new byte[this.chunkLen];
+			long total = 0;
+			
+			while(true){
+				//Fill a whole chunk
+				int n = 0, r = 0;
+				while(n < inBuf.length && (r = in.read(inBuf, n, inBuf.length - n)) > 0){
+					n = n + r;
+				}
+				if(n == 0){
+					break;
+				}
+				if(n % 8 != 0){
+					throw new Exception(this.functionName + " - Invalid data length !");
+				}
+				cryptChunk(inBuf, 0, n, outBuf, 0);
+				out.write(outBuf, 0, n);
+				total = total + n;
+				if(r < 0){
+					break;
+				}
+			}
+			
+			return total;
+		}
+		
+		private void cryptChunk(byte[] in, int inOff, int n, byte[] out, int outOff) throws Exception{
+			
+			byte[] c = this.cmd;
+			if(n != this.chunkLen){
+				c = Arrays.copyOf(this.cmd, this.dataOff + n);
+			}
+			c[4] = (byte) (this.dataOff - DaplugApduCommand.APDU_HEADER_LEN + n);
+			System.arraycopy(in, inOff, c, this.dataOff, n);
+			
+			DaplugApduResponse r = DaplugSession.this.exchange(new DaplugApduCommand(c));
+			if(!r.normalEnding() || r.getDataLen() != n){
+				throw new Exception(this.functionName + " - Data " + (this.enc == ENCRYPT ? "encryption" : "decryption") + " failed !");
+			}
+			
+			//Next IV : last encrypted block
+			if(this.cbc){
+				System.arraycopy(this.enc == ENCRYPT ? r.getData() : in, this.enc == ENCRYPT ? n - 8 : inOff + n - 8, this.cmd, 7, 8);
+			}
+			System.arraycopy(r.getData(), 0, out, outOff, n);
+		}
+	}
+	
 	private boolean daplugMake(String apdu) {
 		try {
 			DaplugApduCommand a = new DaplugApduCommand(
@@ -0,0 +1,212 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.session;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import io.daplug.utils.DaplugFuture;
+
+/**
+ * A pool of opened sessions on dongles holding the same keysets, used to spread independent commands over several dongles.
+ * Each session has its own worker thread (a daemon thread) which runs the submitted tasks one after the other, 
+ * so a session is never used by two tasks at the same time. Tasks are taken by the first idle session.
+ * Sessions given to a pool must not be used directly while the pool is open.
+ */
+public class DaplugSessionPool implements Closeable {
+	
+	/**
+	 * A unit of work run on one of the pool sessions.
+	 * @param <V> The result type.
+	 */
+	public interface Task<V> {
+		V run(DaplugSession session) throws Exception;
+	}
+	
+	private static final class Job<V> {
+		
+		final Task<V> task;
+		final DaplugFuture<V> future = new DaplugFuture<V>();
+		
+		Job(Task<V> task){
+			this.task = task;
+		}
+		
+		void run(DaplugSession session){
+			try{
+				this.future.set(this.task.run(session));
+			}catch(Throwable e){
+				this.future.setException(e);
+			}
+		}
+	}
+	
+	private final List<DaplugSession> sessions;
+	private final LinkedBlockingQueue<Job<?>> jobs = new LinkedBlockingQueue<Job<?>>();
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private volatile boolean closed = false;
+	
+	/**
+	 * Constructs a new DaplugSessionPool object and starts one worker thread per session.
+	 * @param sessions Opened sessions, on dongles holding the same keysets.
+	 */
+	public DaplugSessionPool(List<DaplugSession> sessions){
+		
+		if(sessions == null || sessions.isEmpty()){
+			throw new IllegalArgumentException("DaplugSessionPool() - No session !");
+		}
+		this.sessions = Collections.unmodifiableList(new ArrayList<DaplugSession>(sessions));
+		
+		for(int i = 0; i < this.sessions.size(); i++){
+			final DaplugSession session = this.sessions.get(i);
+			Thread t = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					work(session);
+				}
+			}, "daplug-session-pool-" + i);
+			t.setDaemon(true);
+			this.workers.add(t);
+			t.start();
+		}
+	}
+	
+	/**
+	 * Queues a task. It is run by the first idle session.
+	 * @param task The task.
+	 * @return The future result of the task.
+	 */
+	public <V> DaplugFuture<V> submit(Task<V> task){
+		Job<V> job = new Job<V>(task);
+		if(this.closed){
+			job.future.setException(new IllegalStateException("DaplugSessionPool.submit() - Pool closed !"));
+			return job.future;
+		}
+		this.jobs.add(job);
+		//close() may have drained the queue before our job was added
+		if(this.closed && this.jobs.remove(job)){
+			job.future.setException(new IllegalStateException("DaplugSessionPool.submit() - Pool closed !"));
+		}
+		return job.future;
+	}
+	
+	/**
+	 * Decrypts data on all the pool dongles at the same time, with the same result as DaplugSession.decryptBuffer().
+	 * The data is split into command sized chunks. In CBC mode, the IV of a chunk is the last encrypted block of the previous chunk, 
+	 * which is known beforehand, so chunks do not depend on each other. The decrypted chunks are put back in order.
+	 * @param keyVersion Encryption DaplugKeyset version.
+	 * @param keyId The index of the keyset key to use for decryption (1,2 or 3).
+	 * @param mode Specifies block cipher mode (ECB or CBC) and if we use diversifiers or not.
+	 * @param iv initialization vector (Used only for CBC mode). If not specified, a zero-IV is used instead.
+	 * @param div1 First diversifier (optional).
+	 * @param div2 Second diversifier (optional).
+	 * @param encryptedData sequence of bytes to decrypt (length multiple of 8 bytes).
+	 * @return Resultant decrypted data.
+	 * @throws Exception if the decryption of a chunk failed.
+	 */
+	public byte[] decrypt(final int keyVersion, final int keyId, final int mode, byte[] iv, final byte[] div1, final byte[] div2, byte[] encryptedData) throws Exception{
+		
+		if(encryptedData.length % 8 != 0){
+			throw new Exception("DaplugSessionPool.decrypt() - Invalid data length !");
+		}
+		if(iv == null){
+			iv = new byte[8];
+		}
+		
+		boolean cbc = (mode & DaplugSession.ENC_CBC) != 0;
+		int chunkLen = DaplugSession.getMaxCryptDataLength(mode);
+		List<DaplugFuture<byte[]>> chunks = new ArrayList<DaplugFuture<byte[]>>();
+		
+		for(int off = 0; off < encryptedData.length; off = off + chunkLen){
+			final byte[] chunk = Arrays.copyOfRange(encryptedData, off, Math.min(off + chunkLen, encryptedData.length));
+			final byte[] chunkIv = (cbc && off > 0) ? Arrays.copyOfRange(encryptedData, off - 8, off) : iv;
+			chunks.add(submit(new Task<byte[]>(){
+				@Override
+				public byte[] run(DaplugSession session) throws Exception{
+					return session.decryptBuffer(keyVersion, keyId, mode, chunkIv, div1, div2, chunk);
+				}
+			}));
+		}
+		
+		byte[] out = new byte[encryptedData.length];
+		Exception error = null;
+		for(int i = 0; i < chunks.size(); i++){
+			try{
+				byte[] clear = chunks.get(i).get();
+				System.arraycopy(clear, 0, out, i * chunkLen, clear.length);
+			}catch(ExecutionException e){
+				//Wait for the other chunks before giving up, so no task of this call is still running
+				if(error == null){
+					error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			}
+		}
+		if(error != null){
+			throw error;
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * @return The number of sessions, that is the number of tasks run at the same time.
+	 */
+	public int size(){
+		return this.sessions.size();
+	}
+	
+	/**
+	 * @return The pool sessions.
+	 */
+	public List<DaplugSession> getSessions(){
+		return this.sessions;
+	}
+	
+	/**
+	 * Stops the worker threads once their current task is done. Queued tasks are failed. Sessions are not closed.
+	 */
+	@Override
+	public void close(){
+		this.closed = true;
+		for(Thread t : this.workers){
+			t.interrupt();
+		}
+		Job<?> job;
+		while((job = this.jobs.poll()) != null){
+			job.future.setException(new IllegalStateException("DaplugSessionPool.close() - Pool closed !"));
+		}
+	}
+	
+	//=== private methods ===
+	
+	private void work(DaplugSession session){
+		while(!this.closed){
+			Job<?> job;
+			try{
+				job = this.jobs.take();
+			}catch(InterruptedException e){
+				break;
+			}
+			job.run(session);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a dongle operation which is sent later, for example as part of a batch.
+ * The future is completed once, with a value or with an error. It cannot be cancelled.
+ * @param <V> The result type.
+ */
+public class DaplugFuture<V> implements Future<V> {
+	
+	private final CountDownLatch done = new CountDownLatch(1);
+	private V value = null;
+	private Throwable error = null;
+	private boolean completed = false;
+	
+	/**
+	 * Completes the future with a value.
+	 * @param value The result.
+	 * @return false if the future was already completed.
+	 */
+	public boolean set(V value){
+		synchronized(this){
+			if(this.completed){
+				return false;
+			}
+			this.value = value;
+			this.completed = true;
+		}
+		this.done.countDown();
+		return true;
+	}
+	
+	/**
+	 * Completes the future with an error. get() then throws an ExecutionException caused by this error.
+	 * @param error The error.
+	 * @return false if the future was already completed.
+	 */
+	public boolean setException(Throwable error){
+		synchronized(this){
+			if(this.completed){
+				return false;
+			}
+			this.error = error;
+			this.completed = true;
+		}
+		this.done.countDown();
+		return true;
+	}
+	
+	/**
+	 * A DaplugFuture cannot be cancelled : the operation may already be sent to the dongle.
+	 * @return false.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning){
+		return false;
+	}
+	
+	@Override
+	public boolean isCancelled(){
+		return false;
+	}
+	
+	@Override
+	public boolean isDone(){
+		return this.done.getCount() == 0;
+	}
+	
+	@Override
+	public V get() throws InterruptedException, ExecutionException{
+		this.done.await();
+		return result();
+	}
+	
+	@Override
+	public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException{
+		if(!this.done.await(timeout, unit)){
+			throw new TimeoutException("DaplugFuture.get() - Timeout !");
+		}
+		return result();
+	}
+	
+	private synchronized V result() throws ExecutionException{
+		if(this.error != null){
+			throw new ExecutionException(this.error);
+		}
+		return this.value;
+	}
+}
@@ -0,0 +1,51 @@
+/*
+* Copyright Plug-up International SAS (c)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package io.daplug.utils;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Holds the fork/join pool shared by the host side batch operations.
+ * The pool is created on first use with one worker per available processor. 
+ * An application can provide its own pool instead.
+ */
+public final class DaplugWorkers {
+
+	private static ForkJoinPool pool = null;
+	
+	private DaplugWorkers(){
+	}
+	
+	/**
+	 * Returns the shared fork/join pool, creating it if needed.
+	 * @return The shared pool.
+	 */
+	public static synchronized ForkJoinPool getPool(){
+		if(pool == null){
+			pool = new ForkJoinPool();
+		}
+		return pool;
+	}
+	
+	/**
+	 * Replaces the shared fork/join pool. The previous pool is not shut down.
+	 * @param p The new pool, or null to use a default pool again.
+	 */
+	public static synchronized void setPool(ForkJoinPool p){
+		pool = p;
+	}
+}